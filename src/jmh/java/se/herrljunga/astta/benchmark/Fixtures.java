@@ -0,0 +1,59 @@
+package se.herrljunga.astta.benchmark;
+
+import se.herrljunga.astta.filehandler.StorageHandler;
+import se.herrljunga.astta.simulator.SyntheticCalls;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+
+/**
+ * The Fixtures class.
+ * <p>
+ * This class builds the data the benchmarks run on: Speech to Text result files shaped like the real ones,
+ * analyses shaped like the answers of the prompt, and a StorageHandler that does nothing.
+ * The data is generated from a fixed seed, so every run of a benchmark measures the same input.
+ */
+public class Fixtures {
+    private static final long SEED = 42;
+
+    private Fixtures() {
+    }
+
+    /**
+     * Builds a pretty printed Speech to Text result with word level details, see SyntheticCalls.transcript().
+     * A call with 120 phrases of 10 words is about 10k lines.
+     *
+     * @param phrases        The number of recognized phrases.
+     * @param wordsPerPhrase The number of words of each phrase.
+     * @return The result as JSON.
+     */
+    public static String transcript(int phrases, int wordsPerPhrase) {
+        return SyntheticCalls.transcript(SEED, phrases, wordsPerPhrase, true);
+    }
+
+    /**
+     * Builds an answer of the analysis prompt.
+     *
+     * @return The analysis as JSON.
+     */
+    public static String analysis() {
+        return """
+                {"Summary": "Kunden ringer om en faktura med fel belopp och får en ny faktura skickad.",
+                 "Solution": "En ny faktura skickas till kunden.",
+                 "Keyword": {"Keyword": "Faktura", "Confidence": "0.9"},
+                 "CallerSatisfaction": {"CallerSatisfaction": "4", "Confidence": "0.8"},
+                 "Department": {"Department": "Ekonomi", "Confidence": "0.9"},
+                 "IssueSolved": {"IssueSolved": "Ja", "Confidence": "0.9"},
+                 "Language": "sv-SE"}""";
+    }
+
+    /**
+     * Creates a StorageHandler that saves and deletes nothing. Methods that return a list of failures return an empty list.
+     *
+     * @return The StorageHandler.
+     */
+    public static StorageHandler nullStorage() {
+        return (StorageHandler) Proxy.newProxyInstance(StorageHandler.class.getClassLoader(), new Class<?>[]{StorageHandler.class},
+                (proxy, method, args) -> method.getReturnType() == List.class ? List.of() : null);
+    }
+}
@@ -0,0 +1,34 @@
+package se.herrljunga.astta.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import se.herrljunga.astta.analyze.GetAgentName;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The GetAgentNameBenchmark class.
+ * <p>
+ * Measures getting the agent name from file names with each known agent and with an unknown agent, the worst case.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dastta.logLevel=warn")
+public class GetAgentNameBenchmark {
+    private final String[] fileNames = {
+            "temp/20240301-101500-henrik-0701234567.wav.json",
+            "temp/20240301-101500-linus-0701234567.wav.json",
+            "temp/20240301-101500-alexander-0701234567.wav.json",
+            "temp/20240301-101500-axel-0701234567.wav.json",
+            "temp/20240301-101500-okand-0701234567.wav.json"};
+
+    @Benchmark
+    public void getAgentName(Blackhole blackhole) {
+        for (String fileName : fileNames) {
+            blackhole.consume(GetAgentName.getAgentName(fileName));
+        }
+    }
+}
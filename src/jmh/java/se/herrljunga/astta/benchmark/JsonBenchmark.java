@@ -0,0 +1,50 @@
+package se.herrljunga.astta.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import se.herrljunga.astta.analyze.CallAnalysis;
+import se.herrljunga.astta.utils.Utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The JsonBenchmark class.
+ * <p>
+ * Measures building the saved JSON of an analyzed call, from the answer as a string and from an already parsed answer,
+ * and validating and parsing an answer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dastta.logLevel=warn")
+public class JsonBenchmark {
+    private String answer;
+    private CallAnalysis analysis;
+
+    @Setup
+    public void setup() {
+        answer = Fixtures.analysis();
+        analysis = CallAnalysis.tryParse(answer);
+    }
+
+    @Benchmark
+    public String createJsonFromString() {
+        return Utils.createJson(answer, "PT4M12S", 1234, false, "temp/henrik-2024-03-01.wav.json");
+    }
+
+    @Benchmark
+    public String createJsonFromAnalysis() {
+        return Utils.createJson(analysis.json(), "PT4M12S", 1234, false, "temp/henrik-2024-03-01.wav.json");
+    }
+
+    @Benchmark
+    public boolean validateJson() {
+        return Utils.validateJson(answer);
+    }
+
+    @Benchmark
+    public CallAnalysis tryParse() {
+        return CallAnalysis.tryParse(answer);
+    }
+}
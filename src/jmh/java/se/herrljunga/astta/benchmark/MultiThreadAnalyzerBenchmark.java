@@ -0,0 +1,55 @@
+package se.herrljunga.astta.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import se.herrljunga.astta.analyze.MultiThreadAnalyzer;
+import se.herrljunga.astta.analyze.RunReport;
+import se.herrljunga.astta.filehandler.StorageHandler;
+import se.herrljunga.astta.speechtotext.TranscriptParser;
+import se.herrljunga.astta.utils.TranscribedCallInformation;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The MultiThreadAnalyzerBenchmark class.
+ * <p>
+ * Measures MultiThreadAnalyzer.startAnalysis() for a run of calls, with a StubOpenAIAnalyzer instead of the service
+ * and a StorageHandler that saves nothing. With latencyMillis 0 it measures the overhead of the orchestration:
+ * token estimates, threads, building the JSON and the report. With a latency it shows how well the threads
+ * (maxThreadsForAnalysis and execution.mode in config.yaml) hide the latency of the service.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dastta.logLevel=warn")
+public class MultiThreadAnalyzerBenchmark {
+    @Param({"100"})
+    public int calls;
+    @Param({"0", "50"})
+    public long latencyMillis;
+    private MultiThreadAnalyzer analyzer;
+    private StorageHandler storage;
+    private List<TranscribedCallInformation> transcribedCalls;
+
+    @Setup
+    public void setup() throws IOException {
+        analyzer = new MultiThreadAnalyzer(new StubOpenAIAnalyzer(latencyMillis));
+        storage = Fixtures.nullStorage();
+        transcribedCalls = new ArrayList<>();
+        for (int i = 0; i < calls; i++) {
+            // Calls of different length, so the largest first order has something to sort
+            String transcript = Fixtures.transcript(20 + i % 10 * 10, 10);
+            transcribedCalls.add(TranscriptParser.parse(new StringReader(transcript), "temp/call-" + i + ".wav.json"));
+        }
+    }
+
+    @Benchmark
+    public RunReport startAnalysis() {
+        return analyzer.startAnalysis(transcribedCalls, storage, storage);
+    }
+}
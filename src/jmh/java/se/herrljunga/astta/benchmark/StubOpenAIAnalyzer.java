@@ -0,0 +1,42 @@
+package se.herrljunga.astta.benchmark;
+
+import se.herrljunga.astta.analyze.AnalyzeResult;
+import se.herrljunga.astta.analyze.CallAnalysis;
+import se.herrljunga.astta.analyze.OpenAIAnalyzer;
+import se.herrljunga.astta.utils.TranscribedCallInformation;
+
+/**
+ * The StubOpenAIAnalyzer class.
+ * <p>
+ * An OpenAIAnalyzer that sends no requests. Every call is answered with the same analysis after a fixed latency,
+ * so a benchmark measures the orchestration around the requests and not the service.
+ * The answer is parsed for every call, like a real answer.
+ */
+public class StubOpenAIAnalyzer extends OpenAIAnalyzer {
+    private final long latencyMillis;
+    private final String answer = Fixtures.analysis();
+
+    /**
+     * Constructs a new StubOpenAIAnalyzer.
+     *
+     * @param latencyMillis The time every call takes.
+     */
+    public StubOpenAIAnalyzer(long latencyMillis) {
+        super("key", "http://localhost", "gpt-4");
+        this.latencyMillis = latencyMillis;
+    }
+
+    @Override
+    public AnalyzeResult getAnalyzeResult(TranscribedCallInformation transcribedCall) {
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Exception thrown in StubOpenAIAnalyzer, getAnalyzeResult " + e.getMessage());
+            }
+        }
+        CallAnalysis analysis = CallAnalysis.tryParse(answer);
+        return new AnalyzeResult(analysis.json().toString(), 1000, false, 1, analysis);
+    }
+}
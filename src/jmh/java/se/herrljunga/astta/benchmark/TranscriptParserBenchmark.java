@@ -0,0 +1,55 @@
+package se.herrljunga.astta.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import se.herrljunga.astta.analyze.OpenAIAnalyzer;
+import se.herrljunga.astta.speechtotext.TranscriptParser;
+import se.herrljunga.astta.utils.TranscribedCallInformation;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The TranscriptParserBenchmark class.
+ * <p>
+ * Measures the extraction of the duration and the display text from a Speech to Text result of about 10k lines,
+ * from a local file like the download stage and from memory like the streaming parse stage.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dastta.logLevel=warn")
+public class TranscriptParserBenchmark {
+    @Param({"120"})
+    public int phrases;
+    private String transcript;
+    private Path file;
+
+    @Setup
+    public void setup() throws IOException {
+        transcript = Fixtures.transcript(phrases, 10);
+        file = Files.createTempFile("transcript", ".json");
+        Files.writeString(file, transcript, StandardCharsets.UTF_8);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public List<TranscribedCallInformation> extractInformationFromTranscribedFiles() {
+        return OpenAIAnalyzer.extractInformationFromTranscribedFiles(List.of(file.toString()));
+    }
+
+    @Benchmark
+    public TranscribedCallInformation parseFromMemory() throws IOException {
+        return TranscriptParser.parse(new StringReader(transcript), "call.json");
+    }
+}
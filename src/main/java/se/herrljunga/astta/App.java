@@ -1,68 +1,168 @@
 package se.herrljunga.astta;
 
+import com.azure.storage.blob.BlobServiceClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import se.herrljunga.astta.analyze.MultiThreadAnalyzer;
+import se.herrljunga.astta.analyze.BatchOpenAIAnalyzer;
 import se.herrljunga.astta.analyze.OpenAIAnalyzer;
 import se.herrljunga.astta.emailsender.EmailSender;
 import se.herrljunga.astta.filehandler.BlobStorageHandler;
-import se.herrljunga.astta.filehandler.StorageHandler;
+import se.herrljunga.astta.http.HttpTransport;
 import se.herrljunga.astta.keyvault.KeyVault;
+import se.herrljunga.astta.keyvault.SecretRefresher;
+import se.herrljunga.astta.metrics.Metrics;
+import se.herrljunga.astta.metrics.MetricsExporter;
+import se.herrljunga.astta.pipeline.IngestionDaemon;
+import se.herrljunga.astta.pipeline.JobJournal;
+import se.herrljunga.astta.pipeline.TranscriptionPipeline;
 import se.herrljunga.astta.speechtotext.BatchTranscriber;
+import se.herrljunga.astta.speechtotext.ProcessedManifest;
 import se.herrljunga.astta.utils.*;
 
 import javax.mail.MessagingException;
 import java.io.File;
+import java.time.Duration;
 import java.util.List;
 
 
 public class App {
     private static final Config config = ConfigLoader.loadConfig();
-    static StorageHandler reportBlobStorage = new BlobStorageHandler(KeyVault.getSecret(config.blobStorage.endpoint),
+    private static final Duration DAEMON_SHUTDOWN_GRACE = Duration.ofMinutes(2);
+    private static final Duration SECRET_REFRESH_INTERVAL = Duration.ofMinutes(1);
+    private static volatile boolean shuttingDown = false;
+    static MetricsExporter metricsExporter = new MetricsExporter(config.metrics.prometheusFile, config.metrics.port, config.metrics.exportIntervalSeconds);
+
+    static {
+        // Fetch every secret in parallel once, the clients below read them from the cache
+        KeyVault.prefetch(KeyVault.secretNames(config));
+    }
+
+    static HttpTransport httpTransport = new HttpTransport(config.http);
+    static BlobServiceClient blobServiceClient = httpTransport.getBlobServiceClient(KeyVault.getSecret(config.blobStorage.endpoint),
+            KeyVault.getSecret(config.blobStorage.sasTokenSecretName));
+    static BlobStorageHandler reportBlobStorage = new BlobStorageHandler(blobServiceClient,
             KeyVault.getSecret(config.blobStorage.sasTokenSecretName),
             config.blobStorage.reportSaveContainerName);
-    static StorageHandler powerBiBlobStorage = new BlobStorageHandler(KeyVault.getSecret(config.blobStorage.endpoint),
+    static BlobStorageHandler powerBiBlobStorage = new BlobStorageHandler(blobServiceClient,
             KeyVault.getSecret(config.blobStorage.sasTokenSecretName),
             config.blobStorage.powerBiContainerName);
-    static StorageHandler tempBlobStorage = new BlobStorageHandler(KeyVault.getSecret(config.blobStorage.endpoint),
+    static BlobStorageHandler tempBlobStorage = new BlobStorageHandler(blobServiceClient,
             KeyVault.getSecret(config.blobStorage.sasTokenSecretName),
             config.blobStorage.tempContainerName);
-    static StorageHandler audioSource = new BlobStorageHandler(KeyVault.getSecret(config.blobStorage.endpoint),
+    static BlobStorageHandler audioSource = new BlobStorageHandler(blobServiceClient,
             KeyVault.getSecret(config.blobStorage.sasTokenSecretName),
             config.blobStorage.audioSourceContainerName);
-    static MultiThreadAnalyzer multiThreadAnalyzer = new MultiThreadAnalyzer(new OpenAIAnalyzer(KeyVault.getSecret(config.openAI.secretName), KeyVault.getSecret(config.openAI.endpoint), config.openAI.model));
-    static BatchTranscriber batchTranscriber = new BatchTranscriber();
+    static OpenAIAnalyzer openAIAnalyzer = new OpenAIAnalyzer(KeyVault.getSecret(config.openAI.secretName), KeyVault.getSecret(config.openAI.endpoint), config.openAI.model,
+            httpTransport.getAzureHttpClient());
+    static BatchOpenAIAnalyzer batchOpenAIAnalyzer = "batch".equals(config.openAI.mode)
+            ? new BatchOpenAIAnalyzer(httpTransport.getOkHttpClient(), KeyVault.getSecret(config.openAI.secretName), KeyVault.getSecret(config.openAI.endpoint),
+            openAIAnalyzer, Duration.ofSeconds(config.openAI.batchPollSeconds), Duration.ofMinutes(config.openAI.batchMaxWaitMinutes))
+            : null;
+    static ProcessedManifest manifest = new ProcessedManifest(config.speechToText.manifestPath);
+    static BatchTranscriber batchTranscriber = new BatchTranscriber(audioSource, manifest, httpTransport);
+    static JobJournal journal = new JobJournal(config.journal.path, config.journal.syncEveryRecords, config.journal.syncIntervalMillis, config.journal.maxAttemptsPerCall);
+    static TranscriptionPipeline pipeline = new TranscriptionPipeline(batchTranscriber, tempBlobStorage, reportBlobStorage, powerBiBlobStorage, audioSource, openAIAnalyzer, batchOpenAIAnalyzer, journal, manifest);
     static EmailSender emailSender = new EmailSender(KeyVault.getSecret(config.emailSender.smtpHost), KeyVault.getSecret(config.emailSender.smtpPort), KeyVault.getSecret(config.emailSender.smtpFromAddress));
 
     public static void main(String[] args) {
         Logger logger = LoggerFactory.getLogger(App.class);
         logger.debug("Starting logger");
+        ConfigLoader.addListener(openAIAnalyzer::applyConfig);
+        ConfigLoader.addListener(pipeline::applyConfig);
+        ConfigWatcher configWatcher = null;
+        SecretRefresher secretRefresher = null;
+        if (config.configReload.enabled) {
+            if (ConfigLoader.getConfigFile() == null) {
+                logger.warn("configReload is enabled, but config.yaml is read from the classpath. Start with -D{}=<path to config.yaml> to reload it",
+                        ConfigLoader.CONFIG_FILE_PROPERTY);
+            } else {
+                configWatcher = new ConfigWatcher(ConfigLoader.getConfigFile(), config.configReload.intervalSeconds);
+            }
+        }
         try {
-            // Transcribe:
-            batchTranscriber.startTranscription();
-
-            List<String> transcribedPaths = tempBlobStorage.fetchFile();
-
-            List<String> filteredTranscribedPaths = Utils.extractReport(transcribedPaths, reportBlobStorage);
-
-            List<TranscribedCallInformation> transcribedCallInformations = OpenAIAnalyzer.extractInformationFromTranscribedFiles(filteredTranscribedPaths);
-
-            // Run the whole analyze chain
-            multiThreadAnalyzer.startAnalysis(transcribedCallInformations, powerBiBlobStorage, audioSource);
+            if (config.daemon.enabled) {
+                // Keep running and transcribe new audio files in small batches until the process is stopped
+                // The clients were built with the SAS token and API key of the startup, pass rotated values on to them
+                secretRefresher = new SecretRefresher(SECRET_REFRESH_INTERVAL);
+                secretRefresher.watch(config.blobStorage.sasTokenSecretName, sasToken -> {
+                    httpTransport.updateSasToken(sasToken);
+                    for (BlobStorageHandler storage : List.of(reportBlobStorage, powerBiBlobStorage, tempBlobStorage, audioSource)) {
+                        storage.setSasToken(sasToken);
+                    }
+                });
+                secretRefresher.watch(config.openAI.secretName, openAiKey -> {
+                    openAIAnalyzer.updateKey(openAiKey);
+                    if (batchOpenAIAnalyzer != null) {
+                        batchOpenAIAnalyzer.updateKey(openAiKey);
+                    }
+                });
+                IngestionDaemon daemon = new IngestionDaemon(config.daemon, audioSource, tempBlobStorage, pipeline, journal, manifest, App::sendErrorEmail, App::sendRecoveryEmail);
+                ConfigLoader.addListener(daemon::applyConfig);
+                Thread mainThread = Thread.currentThread();
+                // Shutdown hooks run at the same time, the connections are closed by the hook below when the batch is done
+                httpTransport.removeShutdownHook();
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    shuttingDown = true;
+                    daemon.stop();
+                    try {
+                        // Let the running batch and the cleanup below finish, an unfinished batch is resumed at the next start
+                        mainThread.join(DAEMON_SHUTDOWN_GRACE.toMillis());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        httpTransport.close();
+                    }
+                }, "daemon-shutdown"));
+                daemon.run();
+            } else {
+                // Transcribe, analyze and save each call as soon as its transcription is done
+                pipeline.run();
+            }
 
         } catch (Exception e) {
             e.printStackTrace();
             logger.error("Exception occurred: ", e);
-            try {
-                emailSender.sendEmail(KeyVault.getSecret(config.emailSender.smtpToAddress), "Astta error!", e.getMessage());
+            sendErrorEmail(e);
+        } finally {
+            logger.info("Run report:\n{}", pipeline.getRunReport().summary());
+            logger.info("Metrics:\n{}", Metrics.summary());
+            metricsExporter.close();
+            batchTranscriber.close();
+            if (configWatcher != null) {
+                configWatcher.close();
             }
-            catch (MessagingException ex) {
-                logger.error("Exception occurred: ", ex);
+            if (secretRefresher != null) {
+                secretRefresher.close();
             }
-        } finally {
-            Utils.deleteFolderIfExists(new File(config.utils.pathToTemp));
-            tempBlobStorage.deleteContainer();
-            System.exit(0);
+            if (journal.hasPendingWork()) {
+                // Keep the transcriptions and temp files, the next run resumes from the journal
+                logger.warn("The run did not finish, keeping temp files for the next run");
+                journal.close();
+            } else {
+                Utils.deleteFolderIfExists(new File(config.utils.pathToTemp));
+                tempBlobStorage.deleteContainer();
+            }
+            if (!shuttingDown) {
+                System.exit(0);
+            }
+        }
+    }
+
+    private static void sendRecoveryEmail() {
+        try {
+            emailSender.sendEmail(KeyVault.getSecret(config.emailSender.smtpToAddress), "Astta recovered", "The daemon is running batches again");
+        }
+        catch (MessagingException ex) {
+            LoggerFactory.getLogger(App.class).error("Exception occurred: ", ex);
+        }
+    }
+
+    private static void sendErrorEmail(Exception e) {
+        try {
+            emailSender.sendEmail(KeyVault.getSecret(config.emailSender.smtpToAddress), "Astta error!", e.getMessage());
+        }
+        catch (MessagingException ex) {
+            LoggerFactory.getLogger(App.class).error("Exception occurred: ", ex);
         }
     }
 }
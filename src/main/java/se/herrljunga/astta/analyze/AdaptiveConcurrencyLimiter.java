@@ -0,0 +1,156 @@
+package se.herrljunga.astta.analyze;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.herrljunga.astta.metrics.Metrics;
+
+import java.time.Duration;
+
+/**
+ * The AdaptiveConcurrencyLimiter class.
+ * <p>
+ * This class limits how many requests are sent to Azure OpenAI at the same time, and adapts the limit to the quota.
+ * It uses additive increase, multiplicative decrease (AIMD): every successful request that leaves room in the
+ * token quota raises the limit a little, and every 429 (Too Many Requests) response cuts the limit in half
+ * and pauses all new requests until the Retry-After time has passed.
+ * <p>
+ * The remaining token quota is read from the x-ratelimit-remaining-tokens header, and a request is only let through
+ * if its estimated tokens fit in what is left, so the limit settles close to the quota ceiling instead of above it.
+ * <p>
+ * The current limit, the number of requests in flight and the number of throttle events are exposed as metrics.
+ */
+public class AdaptiveConcurrencyLimiter {
+    /**
+     * How long a remaining tokens header is trusted before it is considered stale, the quota window is one minute.
+     */
+    private static final long REMAINING_TOKENS_TTL_MILLIS = 60_000;
+    private static final double DECREASE_FACTOR = 0.5;
+    private int minLimit;
+    private int maxLimit;
+    private double limit;
+    private int inFlight = 0;
+    private long inFlightTokens = 0;
+    private long remainingTokens = -1;
+    private long remainingTokensUpdatedAt = 0;
+    private long pausedUntil = 0;
+    private final Logger logger = LoggerFactory.getLogger(AdaptiveConcurrencyLimiter.class);
+
+    /**
+     * Constructs a new AdaptiveConcurrencyLimiter and registers its metrics.
+     *
+     * @param minLimit     The lowest number of concurrent requests the limit can shrink to.
+     * @param maxLimit     The highest number of concurrent requests the limit can grow to.
+     * @param initialLimit The number of concurrent requests allowed at start.
+     */
+    public AdaptiveConcurrencyLimiter(int minLimit, int maxLimit, int initialLimit) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+        Metrics.registerGauge("openai_concurrency_limit", this::getLimit);
+        Metrics.registerGauge("openai_requests_in_flight", this::getInFlight);
+    }
+
+    /**
+     * Waits until a request with the estimated number of tokens may be sent.
+     * <p>
+     * A request may be sent when there is no pause after a 429 response, the number of requests in flight is below
+     * the limit and the estimated tokens fit in the remaining quota. One request is always let through when nothing
+     * is in flight, so the quota headers are refreshed after the window has reset.
+     *
+     * @param estimatedTokens The estimated number of tokens for the request.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    public synchronized void acquire(int estimatedTokens) throws InterruptedException {
+        while (true) {
+            long now = System.currentTimeMillis();
+            if (now < pausedUntil) {
+                wait(pausedUntil - now);
+                continue;
+            }
+            if (inFlight == 0 || (inFlight < (int) limit && hasTokenHeadroom(estimatedTokens, now))) {
+                break;
+            }
+            wait(1000); // Re-check when the remaining tokens header goes stale
+        }
+        inFlight++;
+        inFlightTokens += estimatedTokens;
+    }
+
+    /**
+     * Releases a request acquired with acquire(), must be called when the request is done whether it succeeded or not.
+     *
+     * @param estimatedTokens The estimated number of tokens given to acquire().
+     */
+    public synchronized void release(int estimatedTokens) {
+        inFlight--;
+        inFlightTokens -= estimatedTokens;
+        notifyAll();
+    }
+
+    /**
+     * Records a successful response.
+     * <p>
+     * The limit grows by one for every limit's worth of successful requests, as long as the remaining token quota
+     * has room for one more request of average size.
+     *
+     * @param remainingTokens The value of the x-ratelimit-remaining-tokens header, or -1 if it was not sent.
+     */
+    public synchronized void onSuccess(long remainingTokens) {
+        if (remainingTokens >= 0) {
+            this.remainingTokens = remainingTokens;
+            this.remainingTokensUpdatedAt = System.currentTimeMillis();
+        }
+        long averageTokens = inFlight > 0 ? inFlightTokens / inFlight : 0;
+        if (remainingTokens < 0 || remainingTokens > inFlightTokens + averageTokens) {
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Records a 429 (Too Many Requests) response.
+     * <p>
+     * The limit is cut in half and no new requests are let through until the retry delay has passed.
+     *
+     * @param retryAfter The delay from the Retry-After header, or null if it was not sent.
+     */
+    public synchronized void onThrottle(Duration retryAfter) {
+        Metrics.increment("openai_throttle_events");
+        limit = Math.max(minLimit, limit * DECREASE_FACTOR);
+        if (retryAfter != null) {
+            pausedUntil = Math.max(pausedUntil, System.currentTimeMillis() + retryAfter.toMillis());
+        }
+        remainingTokens = 0;
+        remainingTokensUpdatedAt = System.currentTimeMillis();
+        logger.warn("OpenAI throttled the request, concurrency limit lowered to {}, retry after: {}", (int) limit, retryAfter);
+    }
+
+    /**
+     * Changes the bounds of the limit, for example after the configuration has been reloaded.
+     * The current limit is moved inside the new bounds.
+     *
+     * @param minLimit The lowest number of concurrent requests the limit can shrink to.
+     * @param maxLimit The highest number of concurrent requests the limit can grow to.
+     */
+    public synchronized void setBounds(int minLimit, int maxLimit) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, limit));
+        notifyAll();
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    private boolean hasTokenHeadroom(int estimatedTokens, long now) {
+        if (remainingTokens < 0 || now - remainingTokensUpdatedAt > REMAINING_TOKENS_TTL_MILLIS) {
+            return true;
+        }
+        return inFlightTokens + estimatedTokens <= remainingTokens;
+    }
+}
@@ -0,0 +1,202 @@
+package se.herrljunga.astta.analyze;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.herrljunga.astta.metrics.Metrics;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * The AnalysisCache class.
+ * <p>
+ * This class is a persistent local cache of analysis results, so a rerun does not send the same transcription
+ * to OpenAI again. Each entry is a small JSON file named after the SHA-256 hash of the model, the prompt and the
+ * transcribed text, so a changed prompt or model never returns an old result.
+ * <p>
+ * The cache has a maximum size on disk. When it is full, the least recently used entries are deleted.
+ * The last access time of an entry is kept as the modification time of its file, so the order survives a restart.
+ * Cache hits and misses are counted in the analysis_cache_hits and analysis_cache_misses metrics.
+ */
+public class AnalysisCache {
+    private static final String ENTRY_SUFFIX = ".json";
+    private final boolean enabled;
+    private final Path directory;
+    private final long maxSizeBytes;
+    private final LinkedHashMap<String, Long> entrySizes = new LinkedHashMap<>(16, 0.75f, true); // Access order, eldest first
+    private long totalSizeBytes = 0;
+    private final Gson gson = new Gson();
+    private final Logger logger = LoggerFactory.getLogger(AnalysisCache.class);
+
+    /**
+     * Constructs a new AnalysisCache and loads the index of existing entries from the cache directory.
+     *
+     * @param enabled          Whether the cache is used, a disabled cache never returns a result and stores nothing.
+     * @param directory        The directory to store the entries in.
+     * @param maxSizeMegabytes The maximum total size of the entries.
+     */
+    public AnalysisCache(boolean enabled, String directory, long maxSizeMegabytes) {
+        this.enabled = enabled;
+        this.directory = Paths.get(directory);
+        this.maxSizeBytes = maxSizeMegabytes * 1024 * 1024;
+        if (enabled) {
+            loadIndex();
+        }
+    }
+
+    /**
+     * Creates the cache key for a transcription.
+     *
+     * @param model           The model or deployment used for the analysis.
+     * @param prompt          The prompt used for the analysis.
+     * @param transcribedText The transcribed text.
+     * @param settings        Any other settings the analysis depends on, such as the reduce prompt of a chunked call.
+     * @return The hex encoded SHA-256 hash of the model, prompt, transcribed text and settings.
+     */
+    public static String createKey(String model, String prompt, String transcribedText, String... settings) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            List<String> parts = new ArrayList<>(List.of(String.valueOf(model), String.valueOf(prompt), String.valueOf(transcribedText)));
+            parts.addAll(Arrays.asList(settings));
+            for (String part : parts) {
+                digest.update(String.valueOf(part).getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0); // Separator, so the parts can't shift into each other
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Exception thrown in AnalysisCache, createKey " + e.getMessage());
+        }
+    }
+
+    /**
+     * Gets a cached analysis result.
+     *
+     * @param key The cache key, see createKey().
+     * @return The cached result marked as a cache hit, or null if there is no entry.
+     */
+    public AnalyzeResult get(String key) {
+        if (!enabled) {
+            return null;
+        }
+        synchronized (this) {
+            if (!entrySizes.containsKey(key)) {
+                Metrics.increment("analysis_cache_misses");
+                return null;
+            }
+            entrySizes.get(key); // Marks the entry as most recently used
+        }
+        Path entry = directory.resolve(key + ENTRY_SUFFIX);
+        try {
+            JsonObject jsonObject = gson.fromJson(Files.readString(entry), JsonObject.class);
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            Metrics.increment("analysis_cache_hits");
+            return new AnalyzeResult(jsonObject.get("result").getAsString(), jsonObject.get("tokensUsed").getAsInt(), true);
+        } catch (IOException | JsonParseException | NullPointerException e) {
+            logger.warn("Removing unreadable cache entry {}: {}", key, e.getMessage());
+            remove(key);
+            Metrics.increment("analysis_cache_misses");
+            return null;
+        }
+    }
+
+    /**
+     * Stores an analysis result, and deletes the least recently used entries if the cache gets too big.
+     * A failure to write the entry is logged and otherwise ignored, the cache is only an optimization.
+     *
+     * @param key    The cache key, see createKey().
+     * @param result The analysis result to store.
+     */
+    public void put(String key, AnalyzeResult result) {
+        if (!enabled) {
+            return;
+        }
+        JsonObject jsonObject = new JsonObject();
+        jsonObject.addProperty("result", result.result());
+        jsonObject.addProperty("tokensUsed", result.tokensUsed());
+        byte[] content = gson.toJson(jsonObject).getBytes(StandardCharsets.UTF_8);
+        Path entry = directory.resolve(key + ENTRY_SUFFIX);
+        try {
+            // Write to a temporary file first so a crash never leaves a half written entry
+            Path tempFile = Files.createTempFile(directory, key, ".tmp");
+            Files.write(tempFile, content);
+            Files.move(tempFile, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Could not write cache entry {}: {}", key, e.getMessage());
+            return;
+        }
+        synchronized (this) {
+            Long oldSize = entrySizes.put(key, (long) content.length);
+            totalSizeBytes += content.length - (oldSize == null ? 0 : oldSize);
+            evict();
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> iterator = entrySizes.entrySet().iterator();
+        while (totalSizeBytes > maxSizeBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            iterator.remove();
+            totalSizeBytes -= eldest.getValue();
+            try {
+                Files.deleteIfExists(directory.resolve(eldest.getKey() + ENTRY_SUFFIX));
+            } catch (IOException e) {
+                logger.warn("Could not delete cache entry {}: {}", eldest.getKey(), e.getMessage());
+            }
+        }
+    }
+
+    private synchronized void remove(String key) {
+        Long size = entrySizes.remove(key);
+        if (size != null) {
+            totalSizeBytes -= size;
+        }
+        try {
+            Files.deleteIfExists(directory.resolve(key + ENTRY_SUFFIX));
+        } catch (IOException e) {
+            logger.warn("Could not delete cache entry {}: {}", key, e.getMessage());
+        }
+    }
+
+    private void loadIndex() {
+        try {
+            Files.createDirectories(directory);
+            List<Path> entries;
+            try (Stream<Path> files = Files.list(directory)) {
+                entries = files.filter(file -> file.getFileName().toString().endsWith(ENTRY_SUFFIX)).toList();
+            }
+            // Oldest first, so the least recently used entries are evicted first
+            List<Path> sorted = new ArrayList<>(entries);
+            sorted.sort(Comparator.comparing(AnalysisCache::lastModified));
+            synchronized (this) {
+                for (Path entry : sorted) {
+                    String fileName = entry.getFileName().toString();
+                    long size = Files.size(entry);
+                    entrySizes.put(fileName.substring(0, fileName.length() - ENTRY_SUFFIX.length()), size);
+                    totalSizeBytes += size;
+                }
+                evict();
+            }
+            logger.info("Analysis cache loaded, entries: {}, size: {} bytes", entrySizes.size(), totalSizeBytes);
+        } catch (IOException e) {
+            logger.error("An error occurred when loading the analysis cache: {}", e.getMessage());
+            throw new RuntimeException("Exception thrown in AnalysisCache, loadIndex " + e.getMessage());
+        }
+    }
+
+    private static FileTime lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+}
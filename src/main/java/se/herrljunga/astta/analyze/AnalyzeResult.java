@@ -3,13 +3,24 @@ package se.herrljunga.astta.analyze;
  * The AnalyzeResult record class.
  *
  * This class is a record, a special kind of class in Java that is used to create immutable data objects.
- * It contains two fields: result and tokensUsed.
+ * It contains five fields: result, tokensUsed, cacheHit, attempts and analysis.
  * The result field is a String that represents the result of an analysis operation.
  * The tokensUsed field is an integer that represents the number of tokens used in the analysis operation.
+ * The cacheHit field is true when the result was taken from the AnalysisCache, tokensUsed is then the number of tokens
+ * the original analysis used, which were saved in this run.
+ * The attempts field is the number of requests it took to get a valid result, 1 if the first answer was valid.
+ * The analysis field is the result parsed into a CallAnalysis, or null if it has not been parsed yet.
  *
  * The class provides a constructor to initialize the fields, and methods to get the values of the fields.
  * Since it's a record, it also provides an implementation of equals(), hashCode(), and toString() methods.
  */
-public record AnalyzeResult(String result, int tokensUsed) {
+public record AnalyzeResult(String result, int tokensUsed, boolean cacheHit, int attempts, CallAnalysis analysis) {
 
+    public AnalyzeResult(String result, int tokensUsed, boolean cacheHit) {
+        this(result, tokensUsed, cacheHit, 1);
+    }
+
+    public AnalyzeResult(String result, int tokensUsed, boolean cacheHit, int attempts) {
+        this(result, tokensUsed, cacheHit, attempts, null);
+    }
 }
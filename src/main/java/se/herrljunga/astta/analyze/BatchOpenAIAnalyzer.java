@@ -0,0 +1,367 @@
+package se.herrljunga.astta.analyze;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import okhttp3.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.herrljunga.astta.metrics.Metrics;
+import se.herrljunga.astta.utils.*;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The BatchOpenAIAnalyzer class.
+ * <p>
+ * This class analyzes many calls with one job of the Azure OpenAI Batch API instead of one request per call.
+ * A batch job has a target turnaround of 24 hours, but costs less and is not limited by the rate limit of the deployment,
+ * which suits a nightly run that has no one waiting for the answer. The deployment must be a Global Batch deployment.
+ * <p>
+ * The prompts of all calls are written to a JSONL file, one request per line with the index of the call as custom_id.
+ * The file is uploaded, the batch job is created and its status is polled until it is done.
+ * The output file is read and every answer is mapped back to its call by custom_id.
+ * <p>
+ * A call without a valid answer, because its request failed, the answer is not valid JSON or the job did not finish
+ * within maxWait, is analyzed with the synchronous OpenAIAnalyzer instead. A few failed status checks in a row are
+ * tolerated. If the job can't be followed any longer, it is cancelled before the calls are analyzed synchronously,
+ * so no call is paid for twice.
+ * Calls in the AnalysisCache are not sent at all, and valid answers are stored in the cache.
+ * Every call sent with the job is counted against the TokenBudget of the run of the synchronous OpenAIAnalyzer.
+ * A call that does not fit in the budget is not sent, and is passed to the listener with a TokenBudgetExceededException.
+ * Calls that are too long for one request are analyzed in chunks by the synchronous OpenAIAnalyzer.
+ */
+public class BatchOpenAIAnalyzer {
+    /**
+     * Receives the result of each call. The methods are called from several threads.
+     */
+    public interface Listener {
+        void onResult(TranscribedCallInformation call, AnalyzeResult result);
+
+        void onFailure(TranscribedCallInformation call, Exception e);
+    }
+
+    private static Config config = ConfigLoader.loadConfig();
+    private static final MediaType JSON = MediaType.parse("application/json");
+    private static final MediaType JSONL = MediaType.parse("application/jsonl");
+    private static final Set<String> DONE_STATUSES = Set.of("completed", "failed", "expired", "cancelled");
+    private static final int MAX_CANCEL_POLLS = 10;
+    private static final int MAX_FAILED_REQUESTS = 5;
+    private final OkHttpClient httpClient;
+    private volatile String apiKey;
+    private final String endpoint;
+    private final OpenAIAnalyzer fallback;
+    private final Duration pollInterval;
+    private final Duration maxWait;
+    private final Logger logger = LoggerFactory.getLogger(BatchOpenAIAnalyzer.class);
+
+    /**
+     * Constructs a new BatchOpenAIAnalyzer.
+     *
+     * @param httpClient   The HTTP client to send the requests with, see HttpTransport.
+     * @param apiKey       The API key for accessing the OpenAI service.
+     * @param endpoint     The endpoint URL of the OpenAI service.
+     * @param fallback     The synchronous analyzer, also used for its prompt, model and cache.
+     * @param pollInterval The time between status checks of the batch job.
+     * @param maxWait      The time to wait for the batch job before it is cancelled.
+     */
+    public BatchOpenAIAnalyzer(OkHttpClient httpClient, String apiKey, String endpoint, OpenAIAnalyzer fallback,
+                               Duration pollInterval, Duration maxWait) {
+        this.httpClient = httpClient;
+        this.apiKey = apiKey;
+        this.endpoint = endpoint.endsWith("/") ? endpoint.substring(0, endpoint.length() - 1) : endpoint;
+        this.fallback = fallback;
+        this.pollInterval = pollInterval;
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * Replaces the API key, for example after it has been rotated. The next request is sent with the new key.
+     *
+     * @param apiKey The new API key.
+     */
+    public void updateKey(String apiKey) {
+        this.apiKey = apiKey;
+    }
+
+    /**
+     * Analyzes the calls with a batch job and falls back to synchronous requests for the calls the job did not answer.
+     * <p>
+     * The method returns when every call has been passed to the listener, either as a result or as a failure.
+     *
+     * @param calls    The calls to analyze.
+     * @param listener Receives the result of each call.
+     */
+    public void analyzeAll(List<TranscribedCallInformation> calls, Listener listener) {
+        List<TranscribedCallInformation> toSend = new ArrayList<>();
+        List<TranscribedCallInformation> stragglers = new ArrayList<>();
+        for (TranscribedCallInformation call : calls) {
+            AnalyzeResult cached = fallback.getCachedResult(call);
+            if (cached != null) {
+                listener.onResult(call, cached);
+            } else if (fallback.needsChunking(call)) {
+                // The chunks and the merge of a long call depend on each other, it is analyzed synchronously
+                stragglers.add(call);
+            } else {
+                toSend.add(call);
+            }
+        }
+        List<TokenBudget.Reservation> reservations = new ArrayList<>();
+        for (Iterator<TranscribedCallInformation> it = toSend.iterator(); it.hasNext(); ) {
+            TranscribedCallInformation call = it.next();
+            try {
+                reservations.add(fallback.getTokenBudget().reserve(fallback.estimateTokens(call)));
+            } catch (TokenBudgetExceededException e) {
+                it.remove();
+                listener.onFailure(call, e);
+            }
+        }
+        if (toSend.isEmpty()) {
+            if (!stragglers.isEmpty()) {
+                analyzeSynchronously(stragglers, listener);
+            }
+            return;
+        }
+
+        Map<Integer, AnalyzeResult> answers = Map.of();
+        try {
+            answers = runBatch(toSend);
+        } catch (RuntimeException e) {
+            logger.error("Batch job failed, analyzing {} calls one by one: {}", toSend.size(), e.getMessage());
+        }
+        for (int i = 0; i < toSend.size(); i++) {
+            AnalyzeResult answer = answers.get(i);
+            // A call without an answer is counted again by the synchronous request
+            fallback.getTokenBudget().settle(reservations.get(i), answer == null ? 0 : answer.tokensUsed());
+            if (answer == null) {
+                stragglers.add(toSend.get(i));
+            } else {
+                fallback.cacheResult(toSend.get(i), answer);
+                listener.onResult(toSend.get(i), answer);
+            }
+        }
+        Metrics.add("openai_batch_answers", answers.size());
+        Metrics.add("openai_batch_stragglers", stragglers.size());
+        if (!stragglers.isEmpty()) {
+            analyzeSynchronously(stragglers, listener);
+        }
+    }
+
+    /**
+     * Runs one batch job with all calls.
+     *
+     * @param calls The calls to send.
+     * @return The valid answers, by index of the call.
+     */
+    private Map<Integer, AnalyzeResult> runBatch(List<TranscribedCallInformation> calls) {
+        StringBuilder jsonl = new StringBuilder();
+        for (int i = 0; i < calls.size(); i++) {
+            jsonl.append(createRequestLine(i, calls.get(i))).append("\n");
+        }
+        String fileId = uploadFile(jsonl.toString());
+        String batchId = createBatch(fileId);
+        logger.info("Batch job {} created with {} calls", batchId, calls.size());
+
+        JsonObject batch;
+        try {
+            batch = awaitBatch(batchId);
+        } catch (RuntimeException e) {
+            // The calls are analyzed synchronously next, the job must not answer them a second time
+            cancel(batchId);
+            throw e;
+        }
+        String status = batch.get("status").getAsString();
+        logger.info("Batch job {} is {}", batchId, status);
+        if (!batch.has("output_file_id") || batch.get("output_file_id").isJsonNull()) {
+            return Map.of();
+        }
+        String outputUrl = endpoint + "/openai/files/" + batch.get("output_file_id").getAsString() + "/content?api-version=" + config.openAI.batchApiVersion;
+        for (int failedRequests = 1; true; failedRequests++) {
+            try {
+                return readOutput(send(new Request.Builder().url(outputUrl).get()), calls.size());
+            } catch (RuntimeException e) {
+                if (failedRequests >= MAX_FAILED_REQUESTS) {
+                    throw e;
+                }
+                logger.warn("Could not read the output of batch job {}, trying again: {}", batchId, e.getMessage());
+                sleep(pollInterval);
+            }
+        }
+    }
+
+    private JsonObject createRequestLine(int index, TranscribedCallInformation call) {
+        JsonObject body = fallback.createRequestBody(call);
+        body.addProperty("model", fallback.getDeploymentOrModelId());
+
+        JsonObject line = new JsonObject();
+        line.addProperty("custom_id", String.valueOf(index));
+        line.addProperty("method", "POST");
+        line.addProperty("url", "/chat/completions");
+        line.add("body", body);
+        return line;
+    }
+
+    private String uploadFile(String jsonl) {
+        RequestBody body = new MultipartBody.Builder()
+                .setType(MultipartBody.FORM)
+                .addFormDataPart("purpose", "batch")
+                .addFormDataPart("file", "astta-batch.jsonl", RequestBody.create(JSONL, jsonl))
+                .build();
+        String response = send(new Request.Builder()
+                .url(endpoint + "/openai/files?api-version=" + config.openAI.batchApiVersion)
+                .post(body));
+        return JsonParser.parseString(response).getAsJsonObject().get("id").getAsString();
+    }
+
+    private String createBatch(String fileId) {
+        JsonObject request = new JsonObject();
+        request.addProperty("input_file_id", fileId);
+        request.addProperty("endpoint", "/chat/completions");
+        request.addProperty("completion_window", "24h");
+        String response = send(new Request.Builder()
+                .url(endpoint + "/openai/batches?api-version=" + config.openAI.batchApiVersion)
+                .post(RequestBody.create(JSON, request.toString())));
+        return JsonParser.parseString(response).getAsJsonObject().get("id").getAsString();
+    }
+
+    /**
+     * Polls the batch job until it is done. A job that is not done within maxWait is cancelled,
+     * and the answers it finished before it was cancelled are still used.
+     * A failed status check is tried again at the next poll, the job is only given up after several failures in a row.
+     */
+    private JsonObject awaitBatch(String batchId) {
+        long deadline = System.nanoTime() + maxWait.toNanos();
+        int pollsAfterCancel = 0;
+        int failedChecks = 0;
+        boolean cancelled = false;
+        while (true) {
+            JsonObject batch = null;
+            try {
+                batch = getBatch(batchId);
+                failedChecks = 0;
+            } catch (RuntimeException e) {
+                if (++failedChecks >= MAX_FAILED_REQUESTS) {
+                    throw e;
+                }
+                logger.warn("Status check of batch job {} failed, trying again in {}: {}", batchId, pollInterval, e.getMessage());
+            }
+            if (batch != null && (DONE_STATUSES.contains(batch.get("status").getAsString()) || pollsAfterCancel >= MAX_CANCEL_POLLS)) {
+                return batch;
+            }
+            if (cancelled) {
+                pollsAfterCancel++;
+            } else if (System.nanoTime() > deadline) {
+                logger.warn("Batch job {} did not finish within {}, cancelling it", batchId, maxWait);
+                cancel(batchId);
+                cancelled = true;
+            }
+            sleep(pollInterval);
+        }
+    }
+
+    /**
+     * Asks the service to cancel a batch job. A failure is only logged, the job then runs to its end.
+     */
+    private void cancel(String batchId) {
+        try {
+            send(new Request.Builder()
+                    .url(endpoint + "/openai/batches/" + batchId + "/cancel?api-version=" + config.openAI.batchApiVersion)
+                    .post(RequestBody.create(JSON, "")));
+            logger.info("Batch job {} cancelled", batchId);
+        } catch (RuntimeException e) {
+            logger.error("Could not cancel batch job {}: {}", batchId, e.getMessage());
+        }
+    }
+
+    private static void sleep(Duration duration) {
+        try {
+            Thread.sleep(duration.toMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Exception thrown in BatchOpenAIAnalyzer, awaitBatch " + e.getMessage());
+        }
+    }
+
+    private JsonObject getBatch(String batchId) {
+        String response = send(new Request.Builder()
+                .url(endpoint + "/openai/batches/" + batchId + "?api-version=" + config.openAI.batchApiVersion)
+                .get());
+        return JsonParser.parseString(response).getAsJsonObject();
+    }
+
+    /**
+     * Reads the output file of a batch job. A line without a successful response, or with an answer that is not
+     * valid JSON even after CallAnalysis.tryParse() has repaired it, is skipped so its call is analyzed again.
+     */
+    private Map<Integer, AnalyzeResult> readOutput(String output, int calls) {
+        Map<Integer, AnalyzeResult> answers = new HashMap<>();
+        for (String line : output.split("\n")) {
+            if (line.isBlank()) {
+                continue;
+            }
+            try {
+                JsonObject result = JsonParser.parseString(line).getAsJsonObject();
+                int index = Integer.parseInt(result.get("custom_id").getAsString());
+                JsonObject response = result.getAsJsonObject("response");
+                if (index < 0 || index >= calls || response == null || response.get("status_code").getAsInt() != 200) {
+                    continue;
+                }
+                AnalyzeResult answer = OpenAIAnalyzer.parseChatCompletion(response.getAsJsonObject("body"));
+                CallAnalysis analysis = CallAnalysis.tryParse(answer.result());
+                if (analysis != null) {
+                    answers.put(index, new AnalyzeResult(analysis.json().toString(), answer.tokensUsed(), false, 1, analysis));
+                } else {
+                    Metrics.increment("openai_invalid_json");
+                }
+            } catch (RuntimeException e) {
+                logger.warn("Skipping unreadable line in batch output: {}", e.getMessage());
+            }
+        }
+        return answers;
+    }
+
+    private void analyzeSynchronously(List<TranscribedCallInformation> calls, Listener listener) {
+        logger.info("Analyzing {} calls without an answer from the batch job", calls.size());
+        ExecutorService executorService = ThreadPools.newExecutor(config.maxThreadsForAnalysis);
+        Semaphore openAI = ThreadPools.getServiceLimit(ThreadPools.Service.OPENAI);
+        List<Future<?>> futures = new ArrayList<>();
+        for (TranscribedCallInformation call : calls) {
+            futures.add(executorService.submit(() -> {
+                try {
+                    openAI.acquire();
+                    try {
+                        listener.onResult(call, fallback.getAnalyzeResult(call));
+                    } finally {
+                        openAI.release();
+                    }
+                } catch (Exception e) {
+                    listener.onFailure(call, e);
+                }
+            }));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            executorService.shutdownNow();
+            throw new RuntimeException("Exception thrown in BatchOpenAIAnalyzer, analyzeSynchronously " + e.getMessage());
+        }
+        executorService.shutdown();
+    }
+
+    private String send(Request.Builder request) {
+        try (Response response = httpClient.newCall(request.addHeader("api-key", apiKey).build()).execute()) {
+            String body = response.body() == null ? "" : response.body().string();
+            if (!response.isSuccessful()) {
+                throw new RuntimeException("Exception thrown in BatchOpenAIAnalyzer, send " + response.code() + " " + body);
+            }
+            return body;
+        } catch (IOException e) {
+            logger.error("An error occurred when calling the batch API: {}", e.getMessage());
+            throw new RuntimeException("Exception thrown in BatchOpenAIAnalyzer, send " + e.getMessage());
+        }
+    }
+}
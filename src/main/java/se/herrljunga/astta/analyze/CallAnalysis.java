@@ -0,0 +1,110 @@
+package se.herrljunga.astta.analyze;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import se.herrljunga.astta.metrics.Metrics;
+
+/**
+ * The CallAnalysis record class.
+ * <p>
+ * This record is the analysis of a call as described by the Output Format in prompt.txt, parsed once from the answer.
+ * The fields the answer does not contain are null. The parsed JSON object is kept as json, it is what is saved.
+ * <p>
+ * The model sometimes wraps the JSON in a markdown code fence or writes a sentence before or after it,
+ * tryParse() repairs that locally instead of asking the model again.
+ *
+ * @param summary            The summary of the call.
+ * @param solution           How the case was resolved.
+ * @param keyword            The keyword of the issue.
+ * @param callerSatisfaction The caller satisfaction score, 0-10.
+ * @param department         The department the caller calls from.
+ * @param issueSolved        "true" if the issue was solved.
+ * @param language           The language code of the call.
+ * @param json               The parsed answer.
+ */
+public record CallAnalysis(String summary, String solution, Scored keyword, Scored callerSatisfaction, Scored department,
+                           Scored issueSolved, Scored language, JsonObject json) {
+    /**
+     * A value the model has given with how confident it is, 0-100.
+     *
+     * @param value      The value.
+     * @param confidence The confidence.
+     */
+    public record Scored(String value, String confidence) {
+    }
+
+    /**
+     * Repairs and parses an answer.
+     *
+     * @param answer The answer from the model.
+     * @return The analysis, or null if the answer is not a JSON object even after repair.
+     */
+    public static CallAnalysis tryParse(String answer) {
+        if (answer == null) {
+            return null;
+        }
+        String repaired = repair(answer);
+        if (!repaired.equals(answer.strip())) {
+            Metrics.increment("openai_json_repairs");
+        }
+        JsonObject json;
+        try {
+            JsonElement element = JsonParser.parseString(repaired);
+            if (!element.isJsonObject()) {
+                return null;
+            }
+            json = element.getAsJsonObject();
+        } catch (JsonParseException e) {
+            return null;
+        }
+        return new CallAnalysis(
+                getString(json, "Summary"),
+                getString(json, "Solution"),
+                getScored(json, "Keyword", "Keyword"),
+                getScored(json, "CallerSatisfaction", "CallerSatisfactionScore"),
+                getScored(json, "Department", "Department"),
+                getScored(json, "IssueSolved", "IssueSolved"),
+                getScored(json, "Language", "LanguageCode"),
+                json);
+    }
+
+    /**
+     * Removes a markdown code fence and any text before the first { or after the last }.
+     *
+     * @param answer The answer from the model.
+     * @return The answer without the surrounding text.
+     */
+    static String repair(String answer) {
+        String repaired = answer.strip();
+        if (repaired.startsWith("```")) {
+            int firstLineEnd = repaired.indexOf('\n');
+            repaired = firstLineEnd < 0 ? "" : repaired.substring(firstLineEnd + 1);
+            int fenceEnd = repaired.lastIndexOf("```");
+            if (fenceEnd >= 0) {
+                repaired = repaired.substring(0, fenceEnd);
+            }
+        }
+        int start = repaired.indexOf('{');
+        int end = repaired.lastIndexOf('}');
+        if (start >= 0 && end > start) {
+            repaired = repaired.substring(start, end + 1);
+        }
+        return repaired.strip();
+    }
+
+    private static String getString(JsonObject json, String name) {
+        JsonElement element = json.get(name);
+        return element == null || !element.isJsonPrimitive() ? null : element.getAsString();
+    }
+
+    private static Scored getScored(JsonObject json, String name, String valueName) {
+        JsonElement element = json.get(name);
+        if (element == null || !element.isJsonObject()) {
+            return null;
+        }
+        JsonObject scored = element.getAsJsonObject();
+        return new Scored(getString(scored, valueName), getString(scored, "Confidence"));
+    }
+}
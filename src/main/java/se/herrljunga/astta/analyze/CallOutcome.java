@@ -0,0 +1,65 @@
+package se.herrljunga.astta.analyze;
+
+/**
+ * The CallOutcome record class.
+ * <p>
+ * This record is the outcome of analyzing one call, collected in a RunReport.
+ * A call that needed more than one attempt to get a valid answer is RETRIED, a call that could not be analyzed is
+ * FAILED and has the message of the exception as cause. The number of attempts of a failed call is not known, it is 0.
+ * A call that was not sent because the token budget of the run was used up is SKIPPED, it is analyzed in a later run.
+ *
+ * @param call          The name of the call.
+ * @param status        The outcome of the analysis.
+ * @param attempts      The number of requests sent to OpenAI, 0 for a cached or failed call.
+ * @param latencyMillis The time the analysis took.
+ * @param tokensUsed    The number of tokens used, 0 for a cached or failed call.
+ * @param cause         The reason the call failed, or null.
+ */
+public record CallOutcome(String call, Status status, int attempts, long latencyMillis, int tokensUsed, String cause) {
+    /**
+     * The outcome of the analysis of a call.
+     */
+    public enum Status {
+        SUCCEEDED, RETRIED, CACHED, FAILED, SKIPPED
+    }
+
+    /**
+     * Creates the outcome of a call that was analyzed.
+     *
+     * @param call          The name of the call.
+     * @param result        The result of the analysis.
+     * @param latencyMillis The time the analysis took.
+     * @return The outcome.
+     */
+    public static CallOutcome succeeded(String call, AnalyzeResult result, long latencyMillis) {
+        if (result.cacheHit()) {
+            return new CallOutcome(call, Status.CACHED, 0, latencyMillis, 0, null);
+        }
+        Status status = result.attempts() > 1 ? Status.RETRIED : Status.SUCCEEDED;
+        return new CallOutcome(call, status, result.attempts(), latencyMillis, result.tokensUsed(), null);
+    }
+
+    /**
+     * Creates the outcome of a call that could not be analyzed.
+     *
+     * @param call          The name of the call.
+     * @param latencyMillis The time until the analysis failed.
+     * @param cause         The exception the analysis failed with.
+     * @return The outcome.
+     */
+    public static CallOutcome failed(String call, long latencyMillis, Exception cause) {
+        return new CallOutcome(call, Status.FAILED, 0, latencyMillis, 0, cause.getMessage());
+    }
+
+    /**
+     * Creates the outcome of a call that was not analyzed because the token budget of the run was used up.
+     *
+     * @param call          The name of the call.
+     * @param latencyMillis The time until the call was rejected.
+     * @param cause         The exception the budget rejected the call with.
+     * @return The outcome.
+     */
+    public static CallOutcome skipped(String call, long latencyMillis, TokenBudgetExceededException cause) {
+        return new CallOutcome(call, Status.SKIPPED, 0, latencyMillis, 0, cause.getMessage());
+    }
+}
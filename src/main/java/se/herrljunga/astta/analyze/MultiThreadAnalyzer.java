@@ -6,11 +6,13 @@ import se.herrljunga.astta.filehandler.StorageHandler;
 import se.herrljunga.astta.utils.*;
 
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
 
 /**
  * The MultiThreadAnalyzer class.
@@ -18,11 +20,14 @@ import java.util.concurrent.Future;
  * This class provides methods for multi-threaded analysis of transcribed calls.
  * It uses an instance of OpenAIAnalyzer to perform the analysis.
  * The analysis is performed in a separate thread for each transcribed call.
+ * The outcome of every call is recorded in a RunReport, so one failed call does not fail the others.
+ * The calls are submitted largest first, by the tokens counted by the TokenEstimator, so the longest calls do not
+ * start last and hold up the end of the run.
  */
 public class MultiThreadAnalyzer {
     private static Config config = ConfigLoader.loadConfig();
     private final OpenAIAnalyzer analyzer;
-    private final Logger logger = LoggerFactory.getLogger(OpenAIAnalyzer.class);
+    private final Logger logger = LoggerFactory.getLogger(MultiThreadAnalyzer.class);
 
     /**
      * Constructs a new MultiThreadAnalyzer instance with the specified OpenAIAnalyzer.
@@ -36,47 +41,134 @@ public class MultiThreadAnalyzer {
     /**
      * Starts multi-threaded analysis of transcribed calls.
      * <p>
-     * This method uses an ExecutorService to manage threads. Each transcribed call is analyzed in a separate thread.
-     * The method waits for all threads to complete before it returns.
+     * This method uses an ExecutorService to manage threads, see ThreadPools. Each transcribed call is analyzed in a separate thread.
+     * When every call is analyzed, the analyzed calls are saved to Power BI Blob Storage concurrently and the audio files
+     * are deleted from the audio source in batches, instead of two requests per call. A call that can't be saved or deleted is failed.
+     * A call that fails is recorded as failed in the report, and the other calls continue.
+     * The outcomes are collected through an ExecutorCompletionService as the calls finish,
+     * and the method returns when every call has finished. The calls are submitted largest first.
      *
      * @param transcribedCalls   a list of transcribed calls to be analyzed
      * @param powerBiBlobStorage the StorageHandler for Power BI Blob Storage
      * @param audioSource        the StorageHandler for the audio source
-     * @return a list of analyzed calls
+     * @return a report with the outcome of every call and the analyzed calls that were saved
      */
-    public List<AnalyzedCall> startAnalysis(List<TranscribedCallInformation> transcribedCalls, StorageHandler powerBiBlobStorage, StorageHandler audioSource) {
-        ExecutorService executorService = Executors.newFixedThreadPool(config.maxThreadsForAnalysis);
-        List<Future<?>> futures = new ArrayList<>();
+    public RunReport startAnalysis(List<TranscribedCallInformation> transcribedCalls, StorageHandler powerBiBlobStorage, StorageHandler audioSource) {
+        ExecutorService executorService = ThreadPools.newExecutor(config.maxThreadsForAnalysis);
+        CompletionService<CallOutcome> completionService = new ExecutorCompletionService<>(executorService);
+        Semaphore openAI = ThreadPools.getServiceLimit(ThreadPools.Service.OPENAI);
+        RunReport report = new RunReport();
+        Map<String, AnalyzedCall> analyzedCalls = new ConcurrentHashMap<>(); // By call name, added to by the worker threads
 
-        List<AnalyzedCall> analyzedCalls = new ArrayList<>();
-
-        for (var call : transcribedCalls) {
-            Future<?> future = executorService.submit(() -> {
+        for (var call : largestFirst(transcribedCalls)) {
+            completionService.submit(() -> {
+                String name = Utils.removePathFromFilename(call.getPath());
+                long start = System.nanoTime();
                 try {
-                    AnalyzeResult analyzedCallResult = analyzer.getAnalyzeResult(call);
-                    AnalyzedCall analyzedCall = analyzer.buildJsonFile(analyzedCallResult, call);
-                    analyzedCalls.add(analyzedCall);
-                    powerBiBlobStorage.saveSingleFileToStorage((analyzedCall).savePath());
-                    audioSource.deleteFromStorage(Utils.getFileName((analyzedCall).savePath()));
+                    AnalyzeResult analyzedCallResult;
+                    openAI.acquire();
+                    try {
+                        analyzedCallResult = analyzer.getAnalyzeResult(call);
+                    } finally {
+                        openAI.release();
+                    }
+                    analyzedCalls.put(name, analyzer.buildJsonFile(analyzedCallResult, call));
+                    return CallOutcome.succeeded(name, analyzedCallResult, elapsedMillis(start));
+                } catch (TokenBudgetExceededException e) {
+                    logger.warn("Not analysing {}, the token budget of the run is used up", name);
+                    return CallOutcome.skipped(name, elapsedMillis(start), e);
                 } catch (Exception e) {
-                    logger.error("An error occurred when analysing the file: {}\n{}", Utils.removePathFromFilename(call.getPath()), e.getMessage());
-                    throw new RuntimeException(e);
+                    logger.error("An error occurred when analysing the file: {}\n{}", name, e.getMessage());
+                    return CallOutcome.failed(name, elapsedMillis(start), e);
                 }
             });
-            futures.add(future);
         }
 
-        // Wait for all tasks to complete
-        for (Future<?> future : futures) {
-            try {
-                future.get();
-            } catch (InterruptedException | ExecutionException e) {
-                logger.error("An error occurred when waiting for tasks to complete: {}", e.getMessage());
-                throw new RuntimeException("Exception thrown in OpenAiAnalyzer, analyze " + e.getMessage());
+        List<CallOutcome> outcomes = new ArrayList<>();
+        try {
+            for (int i = 1; i <= transcribedCalls.size(); i++) {
+                CallOutcome outcome = completionService.take().get();
+                outcomes.add(outcome);
+                logger.info("Analyzed {} of {}: {} {}", i, transcribedCalls.size(), outcome.call(), outcome.status());
             }
+        } catch (InterruptedException | ExecutionException e) {
+            executorService.shutdownNow();
+            logger.error("An error occurred when waiting for tasks to complete: {}", e.getMessage());
+            throw new RuntimeException("Exception thrown in MultiThreadAnalyzer, startAnalysis " + e.getMessage());
         }
         executorService.shutdown(); // Always remember to shut down the executor service
-        return analyzedCalls;
+
+        Set<String> notSaved = saveAndDelete(analyzedCalls, powerBiBlobStorage, audioSource);
+        for (CallOutcome outcome : outcomes) {
+            if (notSaved.contains(outcome.call())) {
+                report.add(CallOutcome.failed(outcome.call(), outcome.latencyMillis(),
+                        new RuntimeException("Exception thrown in MultiThreadAnalyzer, startAnalysis could not save or delete " + outcome.call())));
+            } else {
+                report.add(outcome);
+                if (analyzedCalls.containsKey(outcome.call())) {
+                    report.addAnalyzedCall(analyzedCalls.get(outcome.call()));
+                }
+            }
+        }
+        logger.info("Analysis done:\n{}", report.summary());
+        return report;
     }
 
-}
\ No newline at end of file
+    /**
+     * Saves the analyzed calls to Power BI Blob Storage and deletes the audio files of the saved calls from the audio source.
+     *
+     * @param analyzedCalls      The analyzed calls, by call name.
+     * @param powerBiBlobStorage the StorageHandler for Power BI Blob Storage
+     * @param audioSource        the StorageHandler for the audio source
+     * @return The names of the calls that could not be saved or deleted.
+     */
+    private Set<String> saveAndDelete(Map<String, AnalyzedCall> analyzedCalls, StorageHandler powerBiBlobStorage, StorageHandler audioSource) {
+        Set<String> notSaved = new HashSet<>();
+        if (analyzedCalls.isEmpty()) {
+            return notSaved;
+        }
+        Set<String> failedSaves = new HashSet<>();
+        for (AnalyzedCall failed : powerBiBlobStorage.saveAnalyzedCallsToStorage(new ArrayList<>(analyzedCalls.values()))) {
+            failedSaves.add(failed.savePath());
+        }
+        List<String> audioFiles = new ArrayList<>();
+        for (Map.Entry<String, AnalyzedCall> analyzedCall : analyzedCalls.entrySet()) {
+            if (failedSaves.contains(analyzedCall.getValue().savePath())) {
+                notSaved.add(analyzedCall.getKey());
+            } else {
+                audioFiles.add(Utils.getFileName(analyzedCall.getValue().savePath()));
+            }
+        }
+        Set<String> failedDeletes = new HashSet<>(audioSource.deleteFromStorage(audioFiles));
+        for (Map.Entry<String, AnalyzedCall> analyzedCall : analyzedCalls.entrySet()) {
+            if (failedDeletes.contains(Utils.getFileName(analyzedCall.getValue().savePath()))) {
+                notSaved.add(analyzedCall.getKey());
+            }
+        }
+        return notSaved;
+    }
+
+    /**
+     * Sorts the calls by their estimated tokens, largest first.
+     *
+     * @param transcribedCalls The calls.
+     * @return A sorted copy of the calls.
+     */
+    private List<TranscribedCallInformation> largestFirst(List<TranscribedCallInformation> transcribedCalls) {
+        Map<TranscribedCallInformation, Integer> estimatedTokens = new IdentityHashMap<>();
+        long totalTokens = 0;
+        for (var call : transcribedCalls) {
+            int tokens = analyzer.estimateTokens(call);
+            estimatedTokens.put(call, tokens);
+            totalTokens += tokens;
+        }
+        logger.info("Analyzing {} calls, estimated {} tokens", transcribedCalls.size(), totalTokens);
+        List<TranscribedCallInformation> sorted = new ArrayList<>(transcribedCalls);
+        sorted.sort(Comparator.comparing(estimatedTokens::get, Comparator.reverseOrder()));
+        return sorted;
+    }
+
+    private static long elapsedMillis(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+}
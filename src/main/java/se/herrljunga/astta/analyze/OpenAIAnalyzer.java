@@ -2,12 +2,15 @@ package se.herrljunga.astta.analyze;
 
 import com.azure.ai.openai.OpenAIClient;
 import com.azure.ai.openai.OpenAIClientBuilder;
-import com.azure.ai.openai.models.*;
 import com.azure.core.credential.AzureKeyCredential;
 import com.azure.core.http.HttpClient;
 import com.azure.core.http.netty.NettyAsyncHttpClientBuilder;
+import com.azure.core.http.policy.ExponentialBackoff;
+import com.azure.core.http.policy.ExponentialBackoffOptions;
 import com.azure.core.http.policy.RetryPolicy;
-import com.azure.core.http.policy.RetryStrategy;
+import com.azure.core.http.rest.RequestOptions;
+import com.azure.core.http.rest.Response;
+import com.azure.core.util.BinaryData;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
@@ -15,18 +18,21 @@ import com.google.gson.JsonParser;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import se.herrljunga.astta.metrics.Metrics;
+import se.herrljunga.astta.speechtotext.TranscriptParser;
 import se.herrljunga.astta.utils.*;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The OpenAIAnalyzer class provides functionality to analyze text using the OpenAI API.
@@ -35,123 +41,470 @@ import java.util.stream.Collectors;
  * <p>
  * The class is initialized with an API key, endpoint, and deployment or model ID for the OpenAI service.
  * It uses a custom HttpClient with a modified response timeout and a RetryPolicy for handling retries.
+ * <p>
+ * A transcription longer than openAI.chunkSizeTokens is split into chunks by TranscriptChunker. The chunks are analyzed
+ * in parallel with the main prompt, and the analyses are merged into one with the reduce prompt.
+ * <p>
+ * The tokens of every request are counted locally by the TokenEstimator before it is sent. A chunk is never larger than
+ * what fits in openAI.contextWindowTokens together with the prompt and the answer, and every request is checked against
+ * the TokenBudget of the run.
+ * <p>
+ * When the configuration is reloaded, applyConfig() changes the bounds of the AdaptiveConcurrencyLimiter and the limits
+ * of the TokenBudget to the new configuration.
  */
 public class OpenAIAnalyzer {
     private static Config config = ConfigLoader.loadConfig();
     private final OpenAIClient client;
+    private final AzureKeyCredential credential;
     private final String deploymentOrModelId;
+    private final String prompt;
+    private final String reducePrompt;
+    private final AdaptiveConcurrencyLimiter limiter;
+    private final TokenEstimator tokenEstimator = TokenEstimator.getDefault();
+    private final TokenBudget budget = new TokenBudget(config.openAI.tokenBudgetPerRun, config.openAI.tokenBudgetPerMinute,
+            TimeUnit.HOURS.toMillis(config.openAI.tokenBudgetWindowHours));
+    private final int chunkSizeTokens;
+    private final AnalysisCache cache;
     private final Logger logger = LoggerFactory.getLogger(OpenAIAnalyzer.class);
 
     /**
      * Constructs a new OpenAIAnalyzer with the specified API key, endpoint, and deployment or model ID.
-     * It initializes the OpenAIClient with a custom HttpClient and RetryPolicy.
-     * The HttpClient has a modified response timeout of 2 minutes.
-     * The RetryPolicy has a delay of 10 seconds and a maximum of 3 retry attempts.
+     * It initializes the OpenAIClient with its own HttpClient with a response timeout of 2 minutes.
      *
      * @param openAiKey           The API key for accessing the OpenAI service.
      * @param openAiEndpoint      The endpoint URL of the OpenAI service.
      * @param deploymentOrModelId The deployment or model ID to interact with.
      */
     public OpenAIAnalyzer(String openAiKey, String openAiEndpoint, String deploymentOrModelId) {
+        this(openAiKey, openAiEndpoint, deploymentOrModelId, new NettyAsyncHttpClientBuilder()
+                .responseTimeout(Duration.ofMinutes(2))
+                .build());
+    }
 
-        RetryPolicy retryPolicy = new RetryPolicy(new RetryStrategy() {
-            @Override
-            public Duration calculateRetryDelay(int retryAttempts) {
-                return Duration.ofSeconds(10); // Set the delay to 120 seconds
-            }
+    /**
+     * Constructs a new OpenAIAnalyzer with the specified API key, endpoint, and deployment or model ID.
+     * It initializes the OpenAIClient with the given HttpClient and a RetryPolicy.
+     * The application passes the shared HttpClient of HttpTransport, so the OpenAI connections are pooled with the others.
+     * The RetryPolicy uses exponential backoff starting at 10 seconds, and waits for the Retry-After time when the service sends one.
+     * The number of concurrent requests is controlled by an AdaptiveConcurrencyLimiter, which reads the rate limit headers of every response.
+     *
+     * @param openAiKey           The API key for accessing the OpenAI service.
+     * @param openAiEndpoint      The endpoint URL of the OpenAI service.
+     * @param deploymentOrModelId The deployment or model ID to interact with.
+     * @param httpClient          The HttpClient to send the requests with.
+     */
+    public OpenAIAnalyzer(String openAiKey, String openAiEndpoint, String deploymentOrModelId, HttpClient httpClient) {
+        this(openAiKey, openAiEndpoint, deploymentOrModelId, httpClient,
+                new AnalysisCache(config.analysisCache.enabled, config.analysisCache.directory, config.analysisCache.maxSizeMegabytes));
+    }
 
-            @Override
-            public int getMaxRetries() {
-                return 3; // Set the maximum number of retry attempts to 3
-            }
-        });
+    /**
+     * Constructs a new OpenAIAnalyzer with its own AnalysisCache, for example one in a temporary directory
+     * for the simulator and the tests.
+     *
+     * @param openAiKey           The API key for accessing the OpenAI service.
+     * @param openAiEndpoint      The endpoint URL of the OpenAI service.
+     * @param deploymentOrModelId The deployment or model ID to interact with.
+     * @param httpClient          The HttpClient to send the requests with.
+     * @param cache               The cache of earlier analyses.
+     */
+    public OpenAIAnalyzer(String openAiKey, String openAiEndpoint, String deploymentOrModelId, HttpClient httpClient, AnalysisCache cache) {
 
-        // Create a custom HttpClient with a modified timeout
-        HttpClient httpClient = new NettyAsyncHttpClientBuilder()
-                .responseTimeout(Duration.ofMinutes(2))
-                .build();
+        RetryPolicy retryPolicy = new RetryPolicy(new ExponentialBackoff(new ExponentialBackoffOptions()
+                .setMaxRetries(config.openAI.maxRetries)
+                .setBaseDelay(Duration.ofSeconds(10))
+                .setMaxDelay(Duration.ofMinutes(2))));
 
-        this.client = new OpenAIClientBuilder().credential(new AzureKeyCredential(openAiKey)).endpoint(openAiEndpoint).httpClient(httpClient).retryPolicy(retryPolicy).buildClient();
+        this.limiter = new AdaptiveConcurrencyLimiter(config.openAI.minConcurrentRequests, config.maxThreadsForAnalysis, config.openAI.initialConcurrentRequests);
+
+        this.credential = new AzureKeyCredential(openAiKey);
+        this.client = new OpenAIClientBuilder()
+                .credential(credential)
+                .endpoint(openAiEndpoint)
+                .httpClient(httpClient)
+                .retryPolicy(retryPolicy)
+                .addPolicy(new RateLimitHeaderPolicy(limiter))
+                .buildClient();
         this.deploymentOrModelId = deploymentOrModelId;
+        this.prompt = loadPrompt(config.openAI.promptPath);
+        this.reducePrompt = loadPrompt(config.openAI.reducePromptPath);
+        // Room for the "Part x of y:" line before each chunk
+        int contextLeft = config.openAI.contextWindowTokens - tokenEstimator.countTokens(prompt) - tokenEstimator.getOverheadTokens() - 16;
+        if (contextLeft <= 0) {
+            throw new RuntimeException("Exception thrown in OpenAIAnalyzer, the prompt does not fit in openAI.contextWindowTokens");
+        }
+        this.chunkSizeTokens = Math.min(config.openAI.chunkSizeTokens, contextLeft);
+        this.cache = cache;
         logger.info("OpenAIAnalyzer initialized with deployment/model ID: {}", deploymentOrModelId);
     }
 
     /**
      * Analyzes the transcribed text using the OpenAI API.
      * <p>
-     * This method reads a prompt from a file, sends a series of chat messages to the OpenAI API, and collects the responses.
-     * The chat messages include a system message to clear the cache, a system message containing the main prompt, and a user message containing the transcribed text.
+     * This method sends the main prompt as a system message and the transcribed text as a user message to the OpenAI API, and collects the responses.
      * The responses from the OpenAI API are concatenated into a single string.
      * The total number of tokens used in the analysis is also recorded.
+     * The request is counted against the TokenBudget and waits for the AdaptiveConcurrencyLimiter before it is sent.
      *
      * @param transcribedCallInformation The transcribed call information, which includes the transcribed text.
      * @return An AnalyzeResult object containing the analysis result and the number of tokens used.
-     * @throws RuntimeException if an IOException occurs when reading the prompt file or if an error occurs during the analysis.
+     * @throws RuntimeException if an error occurs during the analysis.
      */
     public AnalyzeResult analyze(TranscribedCallInformation transcribedCallInformation) {
-        List<ChatRequestMessage> chatMessages = new ArrayList<>();
-        String promptPath = config.openAI.promptPath;
-        InputStream in = getClass().getResourceAsStream(promptPath);
-        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-        String mainPrompt = reader.lines().collect(Collectors.joining(System.lineSeparator()));
-        chatMessages.add(new ChatRequestSystemMessage("Before continuing, REMOVE OLD CACHE."));
-        chatMessages.add(new ChatRequestSystemMessage(mainPrompt));
-        chatMessages.add(new ChatRequestUserMessage(transcribedCallInformation.getTranscribedText()));
-        ChatCompletions chatCompletions = client.getChatCompletions(deploymentOrModelId, new ChatCompletionsOptions(chatMessages));
+        return complete(prompt, transcribedCallInformation.getTranscribedText(), transcribedCallInformation.getPath());
+    }
+
+    /**
+     * Sends a system prompt and a user message to the OpenAI API, see analyze().
+     *
+     * @param systemPrompt The system prompt.
+     * @param userText     The user message.
+     * @param path         The path of the transcribed call, for logging.
+     * @return An AnalyzeResult object containing the analysis result and the number of tokens used.
+     */
+    private AnalyzeResult complete(String systemPrompt, String userText, String path) {
+        JsonObject requestBody = createRequestBody(systemPrompt, userText);
 
+        int estimatedTokens = tokenEstimator.estimateRequest(systemPrompt, userText);
+        Response<BinaryData> response;
+        AnalyzeResult result;
+        TokenBudget.Reservation reservation;
+        try {
+            reservation = budget.acquire(estimatedTokens);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Exception thrown in OpenAIAnalyzer, analyze " + e.getMessage());
+        }
+        try {
+            long waitStart = System.nanoTime();
+            limiter.acquire(estimatedTokens);
+            Metrics.recordSince("openai_limiter_wait_millis", waitStart);
+            long requestStart = System.nanoTime();
+            try {
+                // The protocol method returns the whole response, the typed ChatCompletions has no cached token count
+                response = client.getChatCompletionsWithResponse(deploymentOrModelId, BinaryData.fromString(requestBody.toString()), new RequestOptions());
+            } finally {
+                limiter.release(estimatedTokens);
+                Metrics.recordSince("openai_request_millis", requestStart);
+            }
+            result = parseChatCompletion(JsonParser.parseString(response.getValue().toString()).getAsJsonObject());
+        } catch (InterruptedException e) {
+            budget.settle(reservation, 0);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Exception thrown in OpenAIAnalyzer, analyze " + e.getMessage());
+        } catch (RuntimeException e) {
+            budget.settle(reservation, 0);
+            throw e;
+        }
+        budget.settle(reservation, result.tokensUsed());
+
+        logger.info("Analysis of {} completed successfully. Total tokens used: {}", Utils.removePathFromFilename(path), result.tokensUsed());
+        return result;
+    }
+
+    /**
+     * Creates the body of a chat completions request for a call.
+     * <p>
+     * The prompt comes first and is the same in every request, only the transcribed text at the end differs.
+     * The service can then reuse the processed prompt from its prompt cache, which makes those tokens cheaper and faster.
+     * The request asks for JSON mode, so the answer is always a JSON object. The fields of the object are described by
+     * the Output Format in the prompt.
+     *
+     * @param transcribedCall The transcribed call.
+     * @return The request body, without model, see BatchOpenAIAnalyzer.
+     */
+    JsonObject createRequestBody(TranscribedCallInformation transcribedCall) {
+        return createRequestBody(prompt, transcribedCall.getTranscribedText());
+    }
+
+    private static JsonObject createRequestBody(String systemPrompt, String userText) {
+        JsonArray messages = new JsonArray();
+        messages.add(createMessage("system", systemPrompt));
+        messages.add(createMessage("user", userText));
+        JsonObject requestBody = new JsonObject();
+        requestBody.add("messages", messages);
+        JsonObject responseFormat = new JsonObject();
+        responseFormat.addProperty("type", "json_object");
+        requestBody.add("response_format", responseFormat);
+        return requestBody;
+    }
+
+    private static JsonObject createMessage(String role, String content) {
+        JsonObject message = new JsonObject();
+        message.addProperty("role", role);
+        message.addProperty("content", content);
+        return message;
+    }
+
+    /**
+     * Reads the answer and token usage from a chat completions response.
+     * The prompt and completion tokens, and the part of the prompt tokens that came from the prompt cache of the service,
+     * are added to the metrics.
+     *
+     * @param completion The chat completions response.
+     * @return An AnalyzeResult object containing the concatenated answers and the number of tokens used.
+     */
+    static AnalyzeResult parseChatCompletion(JsonObject completion) {
         StringBuilder sb = new StringBuilder();
-        for (ChatChoice choice : chatCompletions.getChoices()) {
-            ChatResponseMessage message = choice.getMessage();
-            sb.append(message.getContent()).append("\n");
+        for (JsonElement choice : completion.getAsJsonArray("choices")) {
+            JsonElement content = choice.getAsJsonObject().getAsJsonObject("message").get("content");
+            sb.append(content == null || content.isJsonNull() ? "" : content.getAsString()).append("\n");
+        }
+        JsonObject usage = completion.getAsJsonObject("usage");
+        Metrics.add("openai_prompt_tokens", usage.get("prompt_tokens").getAsLong());
+        if (usage.has("completion_tokens")) {
+            Metrics.add("openai_completion_tokens", usage.get("completion_tokens").getAsLong());
+        }
+        JsonObject promptTokensDetails = usage.getAsJsonObject("prompt_tokens_details");
+        if (promptTokensDetails != null && promptTokensDetails.has("cached_tokens")) {
+            Metrics.add("openai_cached_prompt_tokens", promptTokensDetails.get("cached_tokens").getAsLong());
+        }
+        return new AnalyzeResult(sb.toString(), usage.get("total_tokens").getAsInt(), false);
+    }
+
+    /**
+     * Loads the main prompt from the prompt file. It is loaded once, every request uses the same prompt.
+     * Line endings are normalized so the prompt is the same on every platform.
+     *
+     * @param promptPath The path of the prompt file on the classpath.
+     * @return The main prompt.
+     * @throws RuntimeException if the prompt file can't be read.
+     */
+    static String loadPrompt(String promptPath) {
+        try (InputStream in = OpenAIAnalyzer.class.getResourceAsStream(promptPath)) {
+            if (in == null) {
+                throw new IOException("No prompt file at " + promptPath);
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8).replace("\r\n", "\n").strip();
+        } catch (IOException e) {
+            LoggerFactory.getLogger(OpenAIAnalyzer.class).error("An error occurred when reading the prompt: {}", e.getMessage());
+            throw new RuntimeException("Exception thrown in OpenAIAnalyzer, loadPrompt " + e.getMessage());
         }
-        CompletionsUsage usage = chatCompletions.getUsage();
+    }
+
+    String getPrompt() {
+        return prompt;
+    }
 
-        logger.info("Analysis of {} completed successfully. Total tokens used: {}", Utils.removePathFromFilename(transcribedCallInformation.getPath()), usage.getTotalTokens());
-        return new AnalyzeResult(sb.toString(), usage.getTotalTokens());
+    /**
+     * Estimates the number of tokens the analysis of a call will use, counted with the TokenEstimator.
+     *
+     * @param transcribedCall The transcribed call.
+     * @return The estimated number of tokens of one request with the whole transcribed text.
+     */
+    public int estimateTokens(TranscribedCallInformation transcribedCall) {
+        return tokenEstimator.estimateRequest(prompt, transcribedCall.getTranscribedText());
     }
 
     /**
      * This method attempts to analyze a transcribed call up to three times.
-     * It uses the analyze() method to perform the analysis and checks if the result is a valid JSON.
-     * If the result is not a valid JSON, it retries the analysis up to three times.
+     * It first looks for a result of the same transcription, prompt and model in the AnalysisCache, and returns it without calling OpenAI if there is one.
+     * Otherwise it uses the analyze() method to perform the analysis and parses the result into a CallAnalysis.
+     * An answer wrapped in a code fence or surrounded by text is repaired locally, see CallAnalysis.tryParse().
+     * Only if the result is still not a valid JSON object, it retries the analysis up to three times,
+     * each retry is counted in the openai_json_retries metric.
      * If after three attempts the result is still not a valid JSON, it throws a RuntimeException.
+     * A valid result is stored in the cache, as the repaired JSON.
+     * A transcription that is longer than openAI.chunkSizeTokens, or does not fit in the context window of the model,
+     * is analyzed in chunks, see analyzeInChunks().
      *
      * @param transcribedCall The transcribed call information, which includes the transcribed text, its duration, and the path to the file.
-     * @return An AnalyzeResult object containing the analysis result and the number of tokens used.
+     * @return An AnalyzeResult object containing the analysis result, the number of tokens used and the number of attempts.
      * @throws RuntimeException if after three attempts the result of the analysis is still not a valid JSON.
      */
     @NotNull
     public AnalyzeResult getAnalyzeResult(TranscribedCallInformation transcribedCall) {
+        AnalyzeResult analyzedCallResult = getCachedResult(transcribedCall);
+        if (analyzedCallResult != null) {
+            return analyzedCallResult;
+        }
+        List<String> chunks = TranscriptChunker.split(transcribedCall.getTranscribedText(), chunkSizeTokens, tokenEstimator);
+        analyzedCallResult = chunks.size() == 1
+                ? completeValid(prompt, transcribedCall.getTranscribedText(), transcribedCall.getPath())
+                : analyzeInChunks(transcribedCall, chunks);
+        cacheResult(transcribedCall, analyzedCallResult);
+        return analyzedCallResult;
+    }
+
+    /**
+     * Sends a request up to three times until the answer is a valid JSON object, see getAnalyzeResult().
+     *
+     * @param systemPrompt The system prompt.
+     * @param userText     The user message.
+     * @param path         The path of the transcribed call, for logging.
+     * @return An AnalyzeResult object containing the parsed analysis, the number of tokens used and the number of attempts.
+     * @throws RuntimeException if after three attempts the answer is still not a valid JSON.
+     */
+    private AnalyzeResult completeValid(String systemPrompt, String userText, String path) {
         AnalyzeResult analyzedCallResult;
         for (int i = 1; true; i++) {
-            logger.info("Analyzing {} attempt: {}", Utils.removePathFromFilename(transcribedCall.getPath()), i);
-            analyzedCallResult = analyze(transcribedCall);
+            logger.info("Analyzing {} attempt: {}", Utils.removePathFromFilename(path), i);
+            analyzedCallResult = complete(systemPrompt, userText, path);
 
-            if (Utils.validateJson(analyzedCallResult.result())) {
+            CallAnalysis analysis = CallAnalysis.tryParse(analyzedCallResult.result());
+            if (analysis != null) {
+                analyzedCallResult = new AnalyzeResult(analysis.json().toString(), analyzedCallResult.tokensUsed(), false, i, analysis);
                 break;
-            } else if (i == 3) {
+            }
+            Metrics.increment("openai_invalid_json");
+            if (i == 3) {
                 throw new RuntimeException("Couldn't create valid JSON file after 3 tries.");
             }
-
+            logger.warn("Bad json string:\n{}", analyzedCallResult.result());
+            Metrics.increment("openai_json_retries");
         }
         return analyzedCallResult;
     }
 
     /**
-     * Build json file out of the analyzed call
+     * Analyzes a long transcription in chunks.
+     * <p>
+     * Each chunk is analyzed with the main prompt, at most openAI.maxParallelChunks at a time. The chunks run on an
+     * executor from ThreadPools, which uses virtual threads in the virtual execution mode and a fixed pool of
+     * platform threads otherwise. The requests still wait for the AdaptiveConcurrencyLimiter like any other request.
+     * The analyses of the chunks are then sent in order with the reduce prompt, which merges them into one analysis
+     * with the same Output Format. The tokens of all requests are added up.
+     *
+     * @param transcribedCall The transcribed call.
+     * @param chunks          The chunks of the transcribed text.
+     * @return The merged analysis, attempts is the highest number of attempts of any request.
+     * @throws RuntimeException if a chunk or the merge can't be analyzed.
+     */
+    private AnalyzeResult analyzeInChunks(TranscribedCallInformation transcribedCall, List<String> chunks) {
+        logger.info("{} is too long to analyze at once, analyzing it in {} chunks", Utils.removePathFromFilename(transcribedCall.getPath()), chunks.size());
+        Metrics.increment("openai_chunked_calls");
+        Metrics.add("openai_chunks", chunks.size());
+
+        int parallelChunks = Math.min(chunks.size(), config.openAI.maxParallelChunks);
+        ExecutorService executorService = ThreadPools.newExecutor(parallelChunks);
+        // A virtual thread executor starts every task at once, the semaphore keeps the limit in both modes
+        Semaphore chunkPermits = new Semaphore(Math.max(1, parallelChunks));
+        List<Future<AnalyzeResult>> futures = new ArrayList<>();
+        for (int i = 0; i < chunks.size(); i++) {
+            String part = "Part " + (i + 1) + " of " + chunks.size() + ":\n" + chunks.get(i);
+            futures.add(executorService.submit(() -> {
+                chunkPermits.acquire();
+                try {
+                    return completeValid(prompt, part, transcribedCall.getPath());
+                } finally {
+                    chunkPermits.release();
+                }
+            }));
+        }
+        StringBuilder analyses = new StringBuilder();
+        int tokensUsed = 0;
+        int attempts = 1;
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                AnalyzeResult chunkResult = futures.get(i).get();
+                analyses.append("Part ").append(i + 1).append(":\n").append(chunkResult.result()).append("\n\n");
+                tokensUsed += chunkResult.tokensUsed();
+                attempts = Math.max(attempts, chunkResult.attempts());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Exception thrown in OpenAIAnalyzer, analyzeInChunks " + e.getMessage());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TokenBudgetExceededException budgetExceeded) {
+                throw budgetExceeded;
+            }
+            throw new RuntimeException("Exception thrown in OpenAIAnalyzer, analyzeInChunks " + e.getCause().getMessage());
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        AnalyzeResult merged = completeValid(reducePrompt, analyses.toString().strip(), transcribedCall.getPath());
+        return new AnalyzeResult(merged.result(), tokensUsed + merged.tokensUsed(), false, Math.max(attempts, merged.attempts()), merged.analysis());
+    }
+
+    /**
+     * Checks if a transcription is too long to be analyzed with one request.
+     *
+     * @param transcribedCall The transcribed call.
+     * @return True if the transcribed text is longer than a chunk.
+     */
+    boolean needsChunking(TranscribedCallInformation transcribedCall) {
+        return tokenEstimator.countTokens(transcribedCall.getTranscribedText()) > chunkSizeTokens;
+    }
+
+    /**
+     * Creates the AnalysisCache key of a transcription. A transcription that is analyzed in chunks also depends on
+     * the reduce prompt and the chunk size, so they are part of its key.
+     *
+     * @param transcribedCall The transcribed call.
+     * @return The cache key.
+     */
+    private String cacheKey(TranscribedCallInformation transcribedCall) {
+        if (needsChunking(transcribedCall)) {
+            return AnalysisCache.createKey(deploymentOrModelId, getPrompt(), transcribedCall.getTranscribedText(),
+                    reducePrompt, String.valueOf(chunkSizeTokens));
+        }
+        return AnalysisCache.createKey(deploymentOrModelId, getPrompt(), transcribedCall.getTranscribedText());
+    }
+
+    /**
+     * Looks for an earlier analysis of the same transcription, prompt and model in the AnalysisCache.
+     *
+     * @param transcribedCall The transcribed call.
+     * @return The cached result, or null if there is none.
+     */
+    AnalyzeResult getCachedResult(TranscribedCallInformation transcribedCall) {
+        AnalyzeResult cached = cache.get(cacheKey(transcribedCall));
+        if (cached != null) {
+            logger.info("Using cached analysis of {}", Utils.removePathFromFilename(transcribedCall.getPath()));
+        }
+        return cached;
+    }
+
+    /**
+     * Stores a valid analysis in the AnalysisCache.
+     *
+     * @param transcribedCall The transcribed call.
+     * @param result          The result of the analysis.
+     */
+    void cacheResult(TranscribedCallInformation transcribedCall, AnalyzeResult result) {
+        cache.put(cacheKey(transcribedCall), result);
+    }
+
+    TokenBudget getTokenBudget() {
+        return budget;
+    }
+
+    String getDeploymentOrModelId() {
+        return deploymentOrModelId;
+    }
+
+    /**
+     * Build json file out of the analyzed call.
+     * The parsed analysis of the result is used, a result from the cache is parsed here.
+     * The json is kept in memory and uploaded from there, see StorageHandler.saveAnalyzedCallToStorage().
      *
      * @param analyzedCallResult the result of the analyzed call
      * @param transcribedCall    the transcribed call
      * @return final result of the analyzed call in .json format
      */
     public AnalyzedCall buildJsonFile(AnalyzeResult analyzedCallResult, TranscribedCallInformation transcribedCall) {
-        String analyzedCallJson = Utils.createJson(analyzedCallResult.result(), transcribedCall.getCallDuration(), analyzedCallResult.tokensUsed(), transcribedCall.getPath());
-        String analyzedCallJsonPath = config.utils.analyzedJsonSaveDirectory +    // The json save location folder
-                Utils.getFileName(transcribedCall.getPath()) // Adds the filename of the audiofile (removes path)
+        CallAnalysis analysis = analyzedCallResult.analysis() != null
+                ? analyzedCallResult.analysis()
+                : CallAnalysis.tryParse(analyzedCallResult.result());
+        if (analysis == null) {
+            throw new RuntimeException("Exception thrown in OpenAIAnalyzer, buildJsonFile the result is not a JSON object");
+        }
+        String analyzedCallJson = Utils.createJson(analysis.json(), transcribedCall.getCallDuration(), analyzedCallResult.tokensUsed(), analyzedCallResult.cacheHit(), transcribedCall.getPath());
+        String analyzedCallJsonPath = getAnalyzedJsonSavePath(transcribedCall.getPath());
+        return new AnalyzedCall(analyzedCallJsonPath, analyzedCallJson);
+    }
+
+    /**
+     * Gets the path the analyzed call of a transcribed file is saved to.
+     *
+     * @param transcribedPath The path of the transcribed file.
+     * @return The save path of the analyzed call json file.
+     */
+    public static String getAnalyzedJsonSavePath(String transcribedPath) {
+        return config.utils.analyzedJsonSaveDirectory +    // The json save location folder
+                Utils.getFileName(transcribedPath) // Adds the filename of the audiofile (removes path)
                 + ".json"; // Make it a json file
-        AnalyzedCall analyzedCall = new AnalyzedCall(analyzedCallJsonPath, analyzedCallJson);
-        Utils.writeToFile(analyzedCall);
-        return analyzedCall;
     }
 
     /**
@@ -163,29 +516,40 @@ public class OpenAIAnalyzer {
      */
     public static List<TranscribedCallInformation> extractInformationFromTranscribedFiles(List<String> paths) {
         List<TranscribedCallInformation> transcribedCalls = new ArrayList<>();
-        try {
-            for (var path : paths) {
-                String content = Files.readString(Paths.get(path));
-
-                JsonElement jsonElement = JsonParser.parseString(content);
-                JsonObject jsonObject = jsonElement.getAsJsonObject();
-                JsonArray jsonArray = jsonObject.getAsJsonArray("combinedRecognizedPhrases");
+        for (var path : paths) {
+            transcribedCalls.add(extractInformationFromTranscribedFile(path));
+        }
+        return transcribedCalls;
+    }
 
-                String transcription = null;
+    /**
+     * Extracting the information needed from a single transcribed file.
+     * The file is streamed by TranscriptParser instead of being read and parsed as a whole.
+     *
+     * @param path The file path to the transcribed file.
+     * @return A TranscribedCallInformation object containing the transcription, duration, and path of the transcribed call.
+     * @throws RuntimeException if an IOException occurs when reading the file or parsing the JSON content.
+     */
+    public static TranscribedCallInformation extractInformationFromTranscribedFile(String path) {
+        return TranscriptParser.parse(path);
+    }
 
-                for (JsonElement element : jsonArray) {
-                    JsonObject combinedRecognizedPhrase = element.getAsJsonObject();
-                    transcription = combinedRecognizedPhrase.get("display").getAsString();
-                }
-                String duration = Utils.getElementFromJson(content, "duration");
+    /**
+     * Replaces the API key, for example after it has been rotated. The next request is sent with the new key.
+     *
+     * @param openAiKey The new API key.
+     */
+    public void updateKey(String openAiKey) {
+        credential.update(openAiKey);
+    }
 
-                TranscribedCallInformation transcribedCall = new TranscribedCallInformation(transcription, duration, path);
-                transcribedCalls.add(transcribedCall);
-            }
-        } catch (IOException e) {
-            LoggerFactory.getLogger(OpenAIAnalyzer.class).error("An error occurred when extracting information from {}, {}", paths, e.getMessage());
-            throw new RuntimeException(e.getMessage());
-        }
-        return transcribedCalls;
+    /**
+     * Applies the concurrency bounds and token budgets of a reloaded configuration.
+     *
+     * @param config The reloaded configuration.
+     */
+    public void applyConfig(Config config) {
+        limiter.setBounds(config.openAI.minConcurrentRequests, config.maxThreadsForAnalysis);
+        budget.setLimits(config.openAI.tokenBudgetPerRun, config.openAI.tokenBudgetPerMinute, TimeUnit.HOURS.toMillis(config.openAI.tokenBudgetWindowHours));
     }
-}
\ No newline at end of file
+}
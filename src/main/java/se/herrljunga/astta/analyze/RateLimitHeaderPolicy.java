@@ -0,0 +1,85 @@
+package se.herrljunga.astta.analyze;
+
+import com.azure.core.http.HttpPipelineCallContext;
+import com.azure.core.http.HttpPipelineNextPolicy;
+import com.azure.core.http.HttpPipelineNextSyncPolicy;
+import com.azure.core.http.HttpPipelinePosition;
+import com.azure.core.http.HttpResponse;
+import com.azure.core.http.policy.HttpPipelinePolicy;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+
+/**
+ * The RateLimitHeaderPolicy class.
+ * <p>
+ * This class is an HTTP pipeline policy for the OpenAI client that reads the rate limit headers of every response,
+ * including the responses of retried requests, and reports them to an AdaptiveConcurrencyLimiter.
+ */
+public class RateLimitHeaderPolicy implements HttpPipelinePolicy {
+    private static final int TOO_MANY_REQUESTS = 429;
+    private final AdaptiveConcurrencyLimiter limiter;
+
+    /**
+     * Constructs a new RateLimitHeaderPolicy.
+     *
+     * @param limiter The limiter to report the rate limit headers to.
+     */
+    public RateLimitHeaderPolicy(AdaptiveConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    @Override
+    public Mono<HttpResponse> process(HttpPipelineCallContext context, HttpPipelineNextPolicy next) {
+        return next.process().doOnNext(this::report);
+    }
+
+    @Override
+    public HttpResponse processSync(HttpPipelineCallContext context, HttpPipelineNextSyncPolicy next) {
+        HttpResponse response = next.processSync();
+        report(response);
+        return response;
+    }
+
+    @Override
+    public HttpPipelinePosition getPipelinePosition() {
+        return HttpPipelinePosition.PER_RETRY;
+    }
+
+    private void report(HttpResponse response) {
+        if (response.getStatusCode() == TOO_MANY_REQUESTS) {
+            limiter.onThrottle(getRetryAfter(response));
+        } else if (response.getStatusCode() < 400) {
+            limiter.onSuccess(parseLong(response.getHeaderValue("x-ratelimit-remaining-tokens")));
+        }
+    }
+
+    /**
+     * Gets the retry delay of a throttled response, the millisecond headers are preferred over Retry-After.
+     *
+     * @param response The throttled response.
+     * @return The retry delay, or null if no header was sent.
+     */
+    private static Duration getRetryAfter(HttpResponse response) {
+        long millis = parseLong(response.getHeaderValue("retry-after-ms"));
+        if (millis < 0) {
+            millis = parseLong(response.getHeaderValue("x-ms-retry-after-ms"));
+        }
+        if (millis >= 0) {
+            return Duration.ofMillis(millis);
+        }
+        long seconds = parseLong(response.getHeaderValue("Retry-After"));
+        return seconds >= 0 ? Duration.ofSeconds(seconds) : null;
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package se.herrljunga.astta.analyze;
+
+import se.herrljunga.astta.utils.AnalyzedCall;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The RunReport class.
+ * <p>
+ * This class collects the outcome of every analyzed call in a run, and the analyzed calls themselves.
+ * Both can be added from many threads at the same time.
+ * summary() gives the number of calls per status, the latency, the tokens used and the cause of every failed call.
+ */
+public class RunReport {
+    private final Queue<CallOutcome> outcomes = new ConcurrentLinkedQueue<>();
+    private final Queue<AnalyzedCall> analyzedCalls = new ConcurrentLinkedQueue<>();
+
+    public void add(CallOutcome outcome) {
+        outcomes.add(outcome);
+    }
+
+    public void addAnalyzedCall(AnalyzedCall analyzedCall) {
+        analyzedCalls.add(analyzedCall);
+    }
+
+    public List<CallOutcome> getOutcomes() {
+        return new ArrayList<>(outcomes);
+    }
+
+    public List<AnalyzedCall> getAnalyzedCalls() {
+        return new ArrayList<>(analyzedCalls);
+    }
+
+    /**
+     * Counts the calls with a status.
+     *
+     * @param status The status.
+     * @return The number of calls with the status.
+     */
+    public long count(CallOutcome.Status status) {
+        return outcomes.stream().filter(outcome -> outcome.status() == status).count();
+    }
+
+    /**
+     * Summarizes the run.
+     *
+     * @return A text with one line per figure, and one line per failed call.
+     */
+    public String summary() {
+        List<CallOutcome> snapshot = getOutcomes();
+        List<Long> latencies = snapshot.stream().map(CallOutcome::latencyMillis).sorted().toList();
+        StringBuilder sb = new StringBuilder();
+        sb.append("Calls: ").append(snapshot.size()).append("\n");
+        for (CallOutcome.Status status : CallOutcome.Status.values()) {
+            sb.append(status).append(": ").append(count(status)).append("\n");
+        }
+        sb.append("Tokens used: ").append(snapshot.stream().mapToLong(CallOutcome::tokensUsed).sum()).append("\n");
+        if (!latencies.isEmpty()) {
+            sb.append("Latency ms, median: ").append(latencies.get((latencies.size() - 1) / 2))
+                    .append(", max: ").append(latencies.get(latencies.size() - 1)).append("\n");
+        }
+        snapshot.stream()
+                .filter(outcome -> outcome.status() == CallOutcome.Status.FAILED)
+                .sorted(Comparator.comparing(CallOutcome::call))
+                .forEach(outcome -> sb.append("Failed ").append(outcome.call()).append(": ").append(outcome.cause()).append("\n"));
+        return sb.toString();
+    }
+}
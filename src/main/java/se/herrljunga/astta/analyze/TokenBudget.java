@@ -0,0 +1,189 @@
+package se.herrljunga.astta.analyze;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.LongSupplier;
+
+/**
+ * The TokenBudget class.
+ * <p>
+ * This class limits the tokens the application may use, per run and per minute, from the local estimate of each request.
+ * A request that does not fit in what is left of the budget of the run is rejected before it is sent with a
+ * TokenBudgetExceededException, and its call is left in the audio source for the next run.
+ * The requests of a batch job are only counted against the budget of the run, see reserve().
+ * A request that does not fit in the budget of the last minute waits until older requests have left the minute.
+ * <p>
+ * When the answer comes, the estimate is replaced by the tokens the request really used, see settle(). The correction
+ * is made to the entry of the request in the last minute, so it leaves the minute at the time the request was sent.
+ * A limit of 0 or less means no limit.
+ * <p>
+ * The budget of the run is not started over by a new pipeline run, so the many small runs of the IngestionDaemon
+ * share it. It covers the whole process, or a window of the given length when the window is more than 0. A new window
+ * starts with the first request after the last one has ended, and a request from an earlier window is not settled
+ * against the new one.
+ */
+public class TokenBudget {
+    private static final long MINUTE_MILLIS = 60_000;
+    private long perRun;
+    private long perMinute;
+    private long windowMillis;
+    private long windowStart;
+    private final LongSupplier clock;
+    private final Deque<Reservation> lastMinute = new ArrayDeque<>();
+    private long lastMinuteTokens = 0;
+    private long usedTokens = 0;
+
+    /**
+     * The tokens reserved for one request, handed back to settle() when the answer comes.
+     */
+    public static final class Reservation {
+        private final long time;
+        private final int estimatedTokens;
+        private long tokens;
+        private boolean inLastMinute;
+
+        private Reservation(long time, int estimatedTokens) {
+            this.time = time;
+            this.estimatedTokens = estimatedTokens;
+            this.tokens = estimatedTokens;
+        }
+    }
+
+    /**
+     * Constructs a new TokenBudget.
+     *
+     * @param perRun    The maximum number of tokens of the run.
+     * @param perMinute The maximum number of tokens of any minute.
+     */
+    public TokenBudget(long perRun, long perMinute) {
+        this(perRun, perMinute, 0, System::currentTimeMillis);
+    }
+
+    /**
+     * Constructs a new TokenBudget whose budget of the run starts over after every window.
+     *
+     * @param perRun       The maximum number of tokens of the run.
+     * @param perMinute    The maximum number of tokens of any minute.
+     * @param windowMillis The length of the window of the run budget, 0 or less for the whole process.
+     */
+    public TokenBudget(long perRun, long perMinute, long windowMillis) {
+        this(perRun, perMinute, windowMillis, System::currentTimeMillis);
+    }
+
+    /**
+     * Constructs a new TokenBudget with its own clock, for tests.
+     *
+     * @param perRun    The maximum number of tokens of the run.
+     * @param perMinute    The maximum number of tokens of any minute.
+     * @param windowMillis The length of the window of the run budget, 0 or less for the whole process.
+     * @param clock        The current time in milliseconds.
+     */
+    public TokenBudget(long perRun, long perMinute, long windowMillis, LongSupplier clock) {
+        this.perRun = perRun;
+        this.perMinute = perMinute;
+        this.windowMillis = windowMillis;
+        this.clock = clock;
+        this.windowStart = clock.getAsLong();
+    }
+
+    /**
+     * Reserves the estimated tokens of a request, and waits until they fit in the budget of the last minute.
+     * A request larger than the whole minute budget is let through when nothing else was sent in the last minute.
+     *
+     * @param estimatedTokens The estimated number of tokens of the request.
+     * @return The reservation to settle when the answer comes.
+     * @throws InterruptedException        if the thread is interrupted while waiting.
+     * @throws TokenBudgetExceededException if the tokens do not fit in what is left of the budget of the run.
+     */
+    public synchronized Reservation acquire(int estimatedTokens) throws InterruptedException {
+        checkRunBudget(estimatedTokens);
+        while (perMinute > 0) {
+            long now = clock.getAsLong();
+            removeOlderThanAMinute(now);
+            if (lastMinute.isEmpty() || lastMinuteTokens + estimatedTokens <= perMinute) {
+                break;
+            }
+            wait(Math.max(1, lastMinute.peekFirst().time + MINUTE_MILLIS - now));
+        }
+        usedTokens += estimatedTokens;
+        Reservation reservation = new Reservation(clock.getAsLong(), estimatedTokens);
+        if (perMinute > 0) {
+            reservation.inLastMinute = true;
+            lastMinute.addLast(reservation);
+            lastMinuteTokens += estimatedTokens;
+        }
+        return reservation;
+    }
+
+    /**
+     * Reserves the estimated tokens of a request that is sent with a batch job. A batch job is not limited by the
+     * rate limit of the deployment, so the request only counts against the budget of the run.
+     *
+     * @param estimatedTokens The estimated number of tokens of the request.
+     * @return The reservation to settle when the answer comes.
+     * @throws TokenBudgetExceededException if the tokens do not fit in what is left of the budget of the run.
+     */
+    public synchronized Reservation reserve(int estimatedTokens) {
+        checkRunBudget(estimatedTokens);
+        usedTokens += estimatedTokens;
+        return new Reservation(clock.getAsLong(), estimatedTokens);
+    }
+
+    /**
+     * Replaces the estimate of a request with the tokens it used. A request that failed used no tokens.
+     * If the request has already left the last minute, only the budget of the run is corrected, and if it was sent
+     * in an earlier window of the run budget, only the budget of the last minute is.
+     *
+     * @param reservation The reservation returned by acquire() or reserve().
+     * @param usedTokens  The number of tokens the request used.
+     */
+    public synchronized void settle(Reservation reservation, int usedTokens) {
+        if (reservation.time >= windowStart) {
+            this.usedTokens += usedTokens - reservation.estimatedTokens;
+        }
+        if (reservation.inLastMinute) {
+            lastMinuteTokens += usedTokens - reservation.tokens;
+        }
+        reservation.tokens = usedTokens;
+        notifyAll();
+    }
+
+    /**
+     * Changes the limits, for example after the configuration has been reloaded. Tokens already used count against
+     * the new limits, and the current window keeps its start.
+     *
+     * @param perRun       The maximum number of tokens of the run.
+     * @param perMinute    The maximum number of tokens of any minute.
+     * @param windowMillis The length of the window of the run budget, 0 or less for the whole process.
+     */
+    public synchronized void setLimits(long perRun, long perMinute, long windowMillis) {
+        this.perRun = perRun;
+        this.perMinute = perMinute;
+        this.windowMillis = windowMillis;
+        notifyAll();
+    }
+
+    public synchronized long getUsedTokens() {
+        return usedTokens;
+    }
+
+    private void checkRunBudget(int estimatedTokens) {
+        long now = clock.getAsLong();
+        if (windowMillis > 0 && now - windowStart >= windowMillis) {
+            windowStart = now;
+            usedTokens = 0;
+        }
+        if (perRun > 0 && usedTokens + estimatedTokens > perRun) {
+            throw new TokenBudgetExceededException("Exception thrown in TokenBudget, acquire the token budget of the run is used up, "
+                    + usedTokens + " of " + perRun + " tokens used");
+        }
+    }
+
+    private void removeOlderThanAMinute(long now) {
+        while (!lastMinute.isEmpty() && lastMinute.peekFirst().time <= now - MINUTE_MILLIS) {
+            Reservation reservation = lastMinute.pollFirst();
+            reservation.inLastMinute = false;
+            lastMinuteTokens -= reservation.tokens;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package se.herrljunga.astta.analyze;
+
+/**
+ * The TokenBudgetExceededException class.
+ * <p>
+ * Thrown when a request does not fit in what is left of the token budget of the run, see TokenBudget.
+ * The call was not analyzed, but this is not a failure of the call: the pipeline leaves its audio file in the
+ * audio source for the next run, and does not count it against journal.maxAttemptsPerCall.
+ */
+public class TokenBudgetExceededException extends RuntimeException {
+    public TokenBudgetExceededException(String message) {
+        super(message);
+    }
+}
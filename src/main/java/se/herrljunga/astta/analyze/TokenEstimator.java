@@ -0,0 +1,76 @@
+package se.herrljunga.astta.analyze;
+
+import com.knuddels.jtokkit.Encodings;
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.EncodingRegistry;
+import com.knuddels.jtokkit.api.EncodingType;
+import se.herrljunga.astta.utils.Config;
+import se.herrljunga.astta.utils.ConfigLoader;
+
+/**
+ * The TokenEstimator class.
+ * <p>
+ * This class counts tokens locally with the tokenizer of the model, so the size of a request is known before it is sent.
+ * The encoding is chosen from openAI.model, a model the tokenizer does not know uses o200k_base.
+ * <p>
+ * The estimate of a request is the tokens of the prompt and the transcribed text, a few tokens per message for the chat
+ * format, and openAI.answerTokens for the answer.
+ */
+public class TokenEstimator {
+    private static Config config = ConfigLoader.loadConfig();
+    private static final int TOKENS_PER_MESSAGE = 4;
+    private static final TokenEstimator defaultEstimator = new TokenEstimator(config.openAI.model, config.openAI.answerTokens);
+    private final Encoding encoding;
+    private final int answerTokens;
+
+    /**
+     * Constructs a new TokenEstimator.
+     *
+     * @param model        The model the requests are sent to.
+     * @param answerTokens The number of tokens reserved for the answer.
+     */
+    public TokenEstimator(String model, int answerTokens) {
+        EncodingRegistry registry = Encodings.newLazyEncodingRegistry();
+        this.encoding = registry.getEncodingForModel(model).orElseGet(() -> registry.getEncoding(EncodingType.O200K_BASE));
+        this.answerTokens = answerTokens;
+    }
+
+    /**
+     * Gets the estimator of the model in config.yaml.
+     *
+     * @return The shared TokenEstimator.
+     */
+    public static TokenEstimator getDefault() {
+        return defaultEstimator;
+    }
+
+    /**
+     * Counts the tokens of a text.
+     *
+     * @param text The text.
+     * @return The number of tokens, 0 for null.
+     */
+    public int countTokens(String text) {
+        return text == null || text.isEmpty() ? 0 : encoding.countTokensOrdinary(text);
+    }
+
+    /**
+     * Estimates the number of tokens a request with a system prompt and a user message will use, including the answer.
+     *
+     * @param systemPrompt The system prompt.
+     * @param userText     The user message.
+     * @return The estimated number of tokens.
+     */
+    public int estimateRequest(String systemPrompt, String userText) {
+        return countTokens(systemPrompt) + countTokens(userText) + getOverheadTokens();
+    }
+
+    /**
+     * Gets the tokens of a request that are not prompt or text, the chat format and the answer.
+     *
+     * @return The number of tokens.
+     */
+    public int getOverheadTokens() {
+        return 2 * TOKENS_PER_MESSAGE + answerTokens;
+    }
+}
@@ -0,0 +1,95 @@
+package se.herrljunga.astta.analyze;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The TranscriptChunker class.
+ * <p>
+ * This class splits a long transcribed text into chunks of at most a given number of tokens, so each chunk
+ * fits the context of the model and its answer comes back well within the response timeout.
+ * The tokens are counted with the TokenEstimator.
+ * <p>
+ * The text is split between sentences, a chunk only ends in the middle of a sentence if the sentence alone
+ * is longer than a chunk, then it is split between words.
+ */
+public class TranscriptChunker {
+    private TranscriptChunker() {
+    }
+
+    /**
+     * Splits a text into chunks, counting tokens with the default TokenEstimator.
+     *
+     * @param text      The transcribed text.
+     * @param maxTokens The maximum number of tokens of a chunk.
+     * @return The chunks in order, a single chunk if the text fits.
+     */
+    public static List<String> split(String text, int maxTokens) {
+        return split(text, maxTokens, TokenEstimator.getDefault());
+    }
+
+    /**
+     * Splits a text into chunks.
+     * <p>
+     * The tokens of a chunk are counted as the sum of the tokens of its sentences, which is close to the tokens of the
+     * joined text since a space is part of the token of the word after it.
+     *
+     * @param text      The transcribed text.
+     * @param maxTokens The maximum number of tokens of a chunk.
+     * @param estimator Counts the tokens.
+     * @return The chunks in order, a single chunk if the text fits.
+     */
+    public static List<String> split(String text, int maxTokens, TokenEstimator estimator) {
+        if (text == null || estimator.countTokens(text) <= maxTokens) {
+            return List.of(text == null ? "" : text);
+        }
+        List<String> chunks = new ArrayList<>();
+        StringBuilder chunk = new StringBuilder();
+        int chunkTokens = 0;
+        for (String sentence : text.split("(?<=[.!?])\\s+")) {
+            int sentenceTokens = estimator.countTokens(sentence);
+            if (sentenceTokens > maxTokens) {
+                addChunk(chunks, chunk);
+                chunkTokens = 0;
+                splitWords(sentence, maxTokens, estimator, chunks);
+                continue;
+            }
+            if (chunkTokens + sentenceTokens > maxTokens) {
+                addChunk(chunks, chunk);
+                chunkTokens = 0;
+            }
+            if (!chunk.isEmpty()) {
+                chunk.append(' ');
+            }
+            chunk.append(sentence);
+            chunkTokens += sentenceTokens;
+        }
+        addChunk(chunks, chunk);
+        return chunks;
+    }
+
+    private static void splitWords(String sentence, int maxTokens, TokenEstimator estimator, List<String> chunks) {
+        StringBuilder chunk = new StringBuilder();
+        int chunkTokens = 0;
+        for (String word : sentence.split("\\s+")) {
+            int wordTokens = estimator.countTokens(" " + word);
+            if (!chunk.isEmpty() && chunkTokens + wordTokens > maxTokens) {
+                addChunk(chunks, chunk);
+                chunkTokens = 0;
+            }
+            if (!chunk.isEmpty()) {
+                chunk.append(' ');
+            }
+            chunk.append(word);
+            chunkTokens += wordTokens;
+        }
+        addChunk(chunks, chunk);
+    }
+
+    private static void addChunk(List<String> chunks, StringBuilder chunk) {
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk.toString());
+            chunk.setLength(0);
+        }
+    }
+}
@@ -1,27 +1,60 @@
 package se.herrljunga.astta.filehandler;
 
+import com.azure.core.http.HttpClient;
+import com.azure.core.http.rest.Response;
+import com.azure.core.util.BinaryData;
 import com.azure.core.util.Context;
 import com.azure.storage.blob.BlobClient;
 import com.azure.storage.blob.BlobContainerClient;
 import com.azure.storage.blob.BlobServiceClient;
 import com.azure.storage.blob.BlobServiceClientBuilder;
+import com.azure.storage.blob.batch.BlobBatch;
+import com.azure.storage.blob.batch.BlobBatchClient;
+import com.azure.storage.blob.batch.BlobBatchClientBuilder;
 import com.azure.storage.blob.implementation.models.StorageErrorException;
+import com.azure.storage.blob.models.AppendBlobItem;
+import com.azure.storage.blob.models.AppendBlobRequestConditions;
+import com.azure.storage.blob.models.BlobErrorCode;
+import com.azure.storage.blob.models.BlobHttpHeaders;
 import com.azure.storage.blob.models.BlobItem;
+import com.azure.storage.blob.models.BlobItemProperties;
+import com.azure.storage.blob.models.BlobRange;
 import com.azure.storage.blob.models.BlobStorageException;
+import com.azure.storage.blob.models.ParallelTransferOptions;
+import com.azure.storage.blob.options.BlobInputStreamOptions;
+import com.azure.storage.blob.options.BlobParallelUploadOptions;
+import com.azure.storage.blob.options.BlobUploadFromFileOptions;
+import com.azure.storage.blob.specialized.AppendBlobClient;
 import com.azure.storage.common.StorageSharedKeyCredential;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import se.herrljunga.astta.metrics.Metrics;
 import se.herrljunga.astta.utils.AnalyzedCall;
 import se.herrljunga.astta.utils.Config;
 import se.herrljunga.astta.utils.ConfigLoader;
+import se.herrljunga.astta.utils.ThreadPools;
 import se.herrljunga.astta.utils.Utils;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPOutputStream;
 // TODO Separate to two classes, one for the entire blob, one for blob container
 
 /**
@@ -33,14 +66,36 @@ import java.util.concurrent.Future;
  *
  * The class is initialized with an endpoint and a Shared Access Signature (SAS) token for the Azure Blob Storage service.
  * It can also be initialized with a StorageSharedKeyCredential for authentication.
+ *
+ * Analyzed calls are uploaded straight from memory, optionally gzip compressed, without a local file.
+ * Many analyzed calls are saved concurrently with saveAnalyzedCallsToStorage(), and many blobs are deleted with
+ * the Blob Batch API, up to 256 deletes in one request, with deleteFromStorage(List).
+ *
+ * The time of each download and upload is recorded in the histograms blob_download_millis and blob_upload_millis,
+ * and the bytes in the counters blob_downloaded_bytes and blob_uploaded_bytes, see Metrics.
+ * A download through openInputStream() is recorded when the stream is closed.
  */
 public class BlobStorageHandler implements StorageHandler {
     private static Config config = ConfigLoader.loadConfig();
+    private static final int MAX_BATCH_SIZE = 256;
+    private static final int MAX_APPEND_BLOCK_BYTES = 4 * 1024 * 1024;
+    private static final int MAX_APPEND_ATTEMPTS = 5;
     BlobServiceClient blobServiceClient;
     BlobContainerClient blobContainerClient;
-    List<String> blobFilePath = new ArrayList<>();
+    volatile String sasToken;
+    List<String> blobFilePath = Collections.synchronizedList(new ArrayList<>());
+    Map<String, AppendBlob> appendBlobs = new ConcurrentHashMap<>();
     Logger logger = LoggerFactory.getLogger(BlobStorageHandler.class);
 
+    /**
+     * The append position of an append blob this handler writes to. The lock is held for the whole append,
+     * so the blob is created once and the blocks of this process are appended one at a time.
+     */
+    private static class AppendBlob {
+        private final ReentrantLock lock = new ReentrantLock();
+        private long position = -1; // Not known until the blob has been created and its size read
+    }
+
     /**
      * Constructs a BlobStorageHandler object.
      *
@@ -59,6 +114,7 @@ public class BlobStorageHandler implements StorageHandler {
                 .sasToken(sasToken)
                 .buildClient();
         this.blobContainerClient = blobServiceClient.getBlobContainerClient(blobContainerName);
+        this.sasToken = sasToken;
     }
 
     /**
@@ -77,14 +133,49 @@ public class BlobStorageHandler implements StorageHandler {
                 .sasToken(sasToken)
                 .credential(credential)
                 .buildClient();
+        this.sasToken = sasToken;
 
     }
 
+    /**
+     * Constructs a BlobStorageHandler object for a container of a shared BlobServiceClient.
+     *
+     * This is the constructor used by the application, all containers share the BlobServiceClient and its connections,
+     * see HttpTransport.getBlobServiceClient().
+     *
+     * @param blobServiceClient The shared BlobServiceClient.
+     * @param sasToken The Shared Access Signature (SAS) token for accessing the Blob Storage.
+     * @param blobContainerName The name of the Blob Storage container.
+     */
+    public BlobStorageHandler(BlobServiceClient blobServiceClient, String sasToken, String blobContainerName) {
+        this.blobServiceClient = blobServiceClient;
+        this.blobContainerClient = blobServiceClient.getBlobContainerClient(blobContainerName);
+        this.sasToken = sasToken;
+    }
+
+    /**
+     * Constructs a BlobStorageHandler object with a StorageSharedKeyCredential that sends its requests through a shared HttpClient.
+     *
+     * @param endpoint The endpoint URL of the Azure Blob Storage service.
+     * @param sasToken The Shared Access Signature (SAS) token for accessing the Blob Storage.
+     * @param credential The StorageSharedKeyCredential used for authentication.
+     * @param httpClient The shared HttpClient, see HttpTransport.getAzureHttpClient().
+     */
+    public BlobStorageHandler(String endpoint, String sasToken, StorageSharedKeyCredential credential, HttpClient httpClient) {
+        this.blobServiceClient = new BlobServiceClientBuilder()
+                .endpoint(endpoint)
+                .sasToken(sasToken)
+                .credential(credential)
+                .httpClient(httpClient)
+                .buildClient();
+        this.sasToken = sasToken;
+    }
+
 
     /**
      * Fetches WAV files from the Blob Storage container and saves them temporarily on the local filesystem.
      *
-     * This method starts by logging the start of the fetching process and creating a fixed thread pool executor service.
+     * This method starts by logging the start of the fetching process and creating an executor service, see ThreadPools.
      * It then iterates over each BlobItem in the Blob Storage container.
      * For each BlobItem, it submits a task to the executor service to fetch the file and save it locally.
      * The method waits for all tasks to complete before shutting down the executor service and logging the completion of the fetching process.
@@ -96,26 +187,23 @@ public class BlobStorageHandler implements StorageHandler {
     @Override
     public List<String> fetchFile() {
         logger.info("Fetching files");
-        ExecutorService executorService = Executors.newFixedThreadPool(4);
+        ExecutorService executorService = ThreadPools.newExecutor(4);
+        Semaphore blobStorage = ThreadPools.getServiceLimit(ThreadPools.Service.BLOB_STORAGE);
         List<Future<?>> futures = new ArrayList<>();
-        List<String> paths = new ArrayList<>();
+        List<String> paths = Collections.synchronizedList(new ArrayList<>()); // Added to by the worker threads
         Utils.createTempDirectory();
         for (BlobItem blobItem : blobContainerClient.listBlobs()) {
             Future<?> future = executorService.submit(() -> {
+                // Retrieve file title
+                String blobName = blobItem.getName();
+                blobFilePath.add(blobName);
+                blobStorage.acquire();
                 try {
-                    // Retrieve file title
-                    String blobName = blobItem.getName();
-                    logger.info("Fetching file: {}", blobName);
-                    // blobName - Adding the same name as the file in Blob Storage
-                    BlobClient blobClient = blobContainerClient.getBlobClient(blobName);
-                    blobFilePath.add(blobName);
-                    blobClient.downloadToFile(config.utils.pathToTemp + Utils.removePathFromFilename(blobName));
-                    paths.add(config.utils.pathToTemp + Utils.removePathFromFilename(blobName));
-                    logger.info("Done fetching file: {}", Utils.removePathFromFilename(blobName));
-                } catch (BlobStorageException | StorageErrorException e) {
-                    System.err.println("An error fetching files from blob");
-                    throw new RuntimeException("Exception thrown in BlobStorageHandler, fetchFile " + e.getMessage());
+                    paths.add(fetchSingleFile(blobName));
+                } finally {
+                    blobStorage.release();
                 }
+                return null;
             });
             futures.add(future);
         }
@@ -125,7 +213,7 @@ public class BlobStorageHandler implements StorageHandler {
                 future.get();
             } catch (InterruptedException | ExecutionException e) {
                 logger.error("An error occurred when waiting for tasks to complete: {}", e.getMessage());
-                throw new RuntimeException("Exception thrown in OpenAiAnalyzer, analyze " + e.getMessage());
+                throw new RuntimeException("Exception thrown in BlobStorageHandler, fetchFile " + e.getMessage());
             }
         }
         executorService.shutdown(); // Always remember to shutdown the executor service
@@ -133,12 +221,129 @@ public class BlobStorageHandler implements StorageHandler {
         return paths;
     }
 
+    /**
+     * Lists the names of all blobs currently in the Blob Storage container.
+     *
+     * Only committed blobs are returned, so a file that is still being written by another service will not show up
+     * until it is complete.
+     *
+     * @return A list of blob names in the container.
+     * @throws RuntimeException if an error occurs when listing the container.
+     */
+    @Override
+    public List<String> listFiles() {
+        List<String> blobNames = new ArrayList<>();
+        try {
+            for (BlobItem blobItem : blobContainerClient.listBlobs()) {
+                blobNames.add(blobItem.getName());
+            }
+        } catch (BlobStorageException | StorageErrorException e) {
+            logger.error("An error occurred when listing files in {}: {}", blobContainerClient.getBlobContainerName(), e.getMessage());
+            throw new RuntimeException("Exception thrown in BlobStorageHandler, listFiles " + e.getMessage());
+        }
+        return blobNames;
+    }
+
+    /**
+     * Lists the name, ETag, last modified time and size of all blobs currently in the Blob Storage container.
+     *
+     * @return A list of the blobs in the container.
+     * @throws RuntimeException if an error occurs when listing the container.
+     */
+    @Override
+    public List<StoredFile> listFileDetails() {
+        List<StoredFile> storedFiles = new ArrayList<>();
+        try {
+            for (BlobItem blobItem : blobContainerClient.listBlobs()) {
+                BlobItemProperties properties = blobItem.getProperties();
+                storedFiles.add(new StoredFile(blobItem.getName(), properties.getETag(), properties.getLastModified(), properties.getContentLength()));
+            }
+        } catch (BlobStorageException | StorageErrorException e) {
+            logger.error("An error occurred when listing files in {}: {}", blobContainerClient.getBlobContainerName(), e.getMessage());
+            throw new RuntimeException("Exception thrown in BlobStorageHandler, listFileDetails " + e.getMessage());
+        }
+        return storedFiles;
+    }
+
+    /**
+     * Replaces the SAS token that is added to the URLs of getFileUrl(), for example after it has been rotated.
+     * The BlobServiceClient is updated separately, see HttpTransport.updateSasToken().
+     *
+     * @param sasToken The new Shared Access Signature (SAS) token.
+     */
+    public void setSasToken(String sasToken) {
+        this.sasToken = sasToken;
+    }
+
+    /**
+     * Gets the URL of a blob, including the SAS token, so another service can read it.
+     *
+     * @param blobName The name of the blob.
+     * @return The URL of the blob with the SAS token as query string.
+     */
+    @Override
+    public String getFileUrl(String blobName) {
+        return blobContainerClient.getBlobClient(blobName).getBlobUrl() + "?" + sasToken;
+    }
+
+    /**
+     * Fetches a single blob from the Blob Storage container and saves it temporarily on the local filesystem.
+     *
+     * The file is saved in the temp directory under the blob name without its virtual directory path.
+     * Note: The temp directory must already exist, see Utils.createTempDirectory().
+     *
+     * @param blobName The name of the blob to fetch.
+     * @return The local path of the fetched file.
+     * @throws RuntimeException if an error occurs when fetching the file.
+     */
+    @Override
+    public String fetchSingleFile(String blobName) {
+        logger.info("Fetching file: {}", blobName);
+        String localPath = config.utils.pathToTemp + Utils.removePathFromFilename(blobName);
+        long start = System.nanoTime();
+        try {
+            // blobName - Adding the same name as the file in Blob Storage
+            BlobClient blobClient = blobContainerClient.getBlobClient(blobName);
+            Metrics.add("blob_downloaded_bytes", blobClient.downloadToFile(localPath, true).getBlobSize());
+            Metrics.recordSince("blob_download_millis", start);
+        } catch (BlobStorageException | StorageErrorException e) {
+            logger.error("An error occurred when fetching {} from blob: {}", blobName, e.getMessage());
+            throw new RuntimeException("Exception thrown in BlobStorageHandler, fetchSingleFile " + e.getMessage());
+        }
+        logger.info("Done fetching file: {}", Utils.removePathFromFilename(blobName));
+        return localPath;
+    }
+
+    /**
+     * Opens a blob in the Blob Storage container as a stream, without saving it on the local filesystem.
+     *
+     * The blob is read in blocks of streamBlockSizeKilobytes, a transcription of a normal call fits in one or a few blocks.
+     * The stream reads the blob as it was when it was opened, a change to the blob while reading makes the read fail.
+     *
+     * @param blobName The name of the blob to open.
+     * @return A stream of the blob content, the caller must close it.
+     * @throws RuntimeException if an error occurs when opening the blob.
+     */
+    @Override
+    public InputStream openInputStream(String blobName) {
+        logger.info("Opening stream of file: {}", blobName);
+        try {
+            BlobClient blobClient = blobContainerClient.getBlobClient(blobName);
+            return new MeteredInputStream(blobClient.openInputStream(new BlobInputStreamOptions()
+                    .setBlockSize(config.blobStorage.streamBlockSizeKilobytes * 1024)));
+        } catch (BlobStorageException | StorageErrorException e) {
+            logger.error("An error occurred when opening {} from blob: {}", blobName, e.getMessage());
+            throw new RuntimeException("Exception thrown in BlobStorageHandler, openInputStream " + e.getMessage());
+        }
+    }
+
     /**
      * Saves a single file to Azure Blob Storage.
      *
      * This method attempts to save a file to Azure Blob Storage.
      * It logs the start of the saving process and the name of the file being saved.
      * If an error occurs during the saving process, it logs the error and throws a RuntimeException.
+     * A file larger than uploadBlockSizeKilobytes is uploaded in blocks, uploadMaxConcurrency blocks at a time.
      *
      * @param filePath The local file path of the file to be saved.
      * @throws RuntimeException if an error occurs during the saving process.
@@ -147,30 +352,287 @@ public class BlobStorageHandler implements StorageHandler {
     public void saveSingleFileToStorage(String filePath) {
         logger.info("Saving to storage: {}", Utils.removePathFromFilename(filePath));
         try {
+            long start = System.nanoTime();
             BlobClient blobClient = blobContainerClient.getBlobClient(Utils.removePathFromFilename(filePath)); // Name of saved file
-            blobClient.uploadFromFile(filePath, true);
+            // Without request conditions an existing blob is overwritten
+            blobClient.uploadFromFileWithResponse(new BlobUploadFromFileOptions(filePath)
+                    .setParallelTransferOptions(getParallelTransferOptions()), null, Context.NONE);
+            Metrics.recordSince("blob_upload_millis", start);
         } catch (BlobStorageException | StorageErrorException e) {
             System.err.println("An error saving files to blob");
             throw new RuntimeException("Exception thrown in BlobStorageHandler, saveToStorage " + e.getMessage());
         }
+        Metrics.add("blob_uploaded_bytes", new File(filePath).length());
         logger.info("Done saving to storage: {}", filePath);
     }
 
+    /**
+     * Saves the content of a stream to Azure Blob Storage, overwriting any blob with the same name.
+     *
+     * @param blobName The name of the blob to save, the path is removed from the name.
+     * @param data     The content to save, it is not closed.
+     * @throws RuntimeException if an error occurs during the saving process.
+     */
+    @Override
+    public void saveStreamToStorage(String blobName, InputStream data) {
+        logger.info("Saving stream to storage: {}", Utils.removePathFromFilename(blobName));
+        try {
+            long start = System.nanoTime();
+            BlobClient blobClient = blobContainerClient.getBlobClient(Utils.removePathFromFilename(blobName));
+            blobClient.upload(data, true);
+            Metrics.recordSince("blob_upload_millis", start);
+        } catch (BlobStorageException | StorageErrorException e) {
+            logger.error("An error occurred when saving {} to blob: {}", blobName, e.getMessage());
+            throw new RuntimeException("Exception thrown in BlobStorageHandler, saveStreamToStorage " + e.getMessage());
+        }
+        logger.info("Done saving stream to storage: {}", Utils.removePathFromFilename(blobName));
+    }
+
+    /**
+     * Saves an analyzed call to Azure Blob Storage straight from memory, overwriting any blob with the same name.
+     *
+     * The blob is named after the save path of the analyzed call, without the path.
+     * With gzipAnalyzedCalls the JSON is gzip compressed and the blob gets Content-Encoding gzip,
+     * so clients that read it over HTTP decompress it by themselves.
+     *
+     * @param analyzedCall The analyzed call to save.
+     * @throws RuntimeException if an error occurs during the saving process.
+     */
+    @Override
+    public void saveAnalyzedCallToStorage(AnalyzedCall analyzedCall) {
+        String blobName = Utils.removePathFromFilename(analyzedCall.savePath());
+        logger.info("Saving to storage: {}", blobName);
+        byte[] json = analyzedCall.analyzedCallJson().getBytes(StandardCharsets.UTF_8);
+        BlobHttpHeaders headers = new BlobHttpHeaders().setContentType("application/json; charset=utf-8");
+        if (config.blobStorage.gzipAnalyzedCalls) {
+            json = gzip(json);
+            headers.setContentEncoding("gzip");
+        }
+        try {
+            long start = System.nanoTime();
+            BlobClient blobClient = blobContainerClient.getBlobClient(blobName);
+            // Without request conditions an existing blob is overwritten
+            blobClient.uploadWithResponse(new BlobParallelUploadOptions(BinaryData.fromBytes(json))
+                    .setHeaders(headers)
+                    .setParallelTransferOptions(getParallelTransferOptions()), null, Context.NONE);
+            Metrics.recordSince("blob_upload_millis", start);
+        } catch (BlobStorageException | StorageErrorException e) {
+            logger.error("An error occurred when saving {} to blob: {}", blobName, e.getMessage());
+            throw new RuntimeException("Exception thrown in BlobStorageHandler, saveAnalyzedCallToStorage " + e.getMessage());
+        }
+        Metrics.add("blob_uploaded_bytes", json.length);
+        logger.info("Done saving to storage: {}", blobName);
+    }
+
+    /**
+     * Appends data to an append blob in the Blob Storage container, the blob is created if it does not exist.
+     *
+     * Every append is one block that is written as a whole, so appends from several threads or processes to the same
+     * blob never mix. Data larger than a block (4 MiB) is split after the last newline that fits, so newline delimited
+     * records are never split between blocks.
+     *
+     * Appends to the same blob from this handler wait for each other, and each block is sent with the append position
+     * it expects as condition. If the condition fails, either a retry of the HTTP client has already appended the
+     * block, which is then done, or another process appended in between, and the block is appended at the new end.
+     *
+     * @param blobName The name of the append blob.
+     * @param data     The data to append.
+     * @throws RuntimeException if an error occurs when appending.
+     */
+    @Override
+    public void appendToStorage(String blobName, byte[] data) {
+        long appendStart = System.nanoTime();
+        AppendBlob appendBlob = appendBlobs.computeIfAbsent(blobName, name -> new AppendBlob());
+        appendBlob.lock.lock();
+        try {
+            AppendBlobClient appendBlobClient = blobContainerClient.getBlobClient(blobName).getAppendBlobClient();
+            if (appendBlob.position < 0) {
+                appendBlobClient.createIfNotExists();
+                appendBlob.position = appendBlobClient.getProperties().getBlobSize();
+            }
+            int start = 0;
+            while (start < data.length) {
+                int end = Math.min(start + MAX_APPEND_BLOCK_BYTES, data.length);
+                if (end < data.length) {
+                    int lastNewline = lastIndexOf(data, (byte) '\n', start, end);
+                    end = lastNewline >= start ? lastNewline + 1 : end;
+                }
+                appendBlock(appendBlobClient, blobName, appendBlob, data, start, end - start);
+                start = end;
+            }
+        } catch (BlobStorageException | StorageErrorException e) {
+            appendBlob.position = -1; // Read again at the next append
+            logger.error("An error occurred when appending to {}: {}", blobName, e.getMessage());
+            throw new RuntimeException("Exception thrown in BlobStorageHandler, appendToStorage " + e.getMessage());
+        } finally {
+            appendBlob.lock.unlock();
+        }
+        Metrics.recordSince("blob_upload_millis", appendStart);
+        Metrics.add("blob_uploaded_bytes", data.length);
+    }
+
+    /**
+     * Appends one block at the known append position of the blob, see appendToStorage().
+     */
+    private void appendBlock(AppendBlobClient appendBlobClient, String blobName, AppendBlob appendBlob, byte[] data, int offset, int length) {
+        for (int attempt = 1; true; attempt++) {
+            try {
+                AppendBlobItem appended = appendBlobClient.appendBlockWithResponse(new ByteArrayInputStream(data, offset, length), length, null,
+                        new AppendBlobRequestConditions().setAppendPosition(appendBlob.position), null, Context.NONE).getValue();
+                logger.debug("Appended {} bytes to {} at offset {}", length, blobName, appended.getBlobAppendOffset());
+                appendBlob.position += length;
+                return;
+            } catch (BlobStorageException e) {
+                if (e.getErrorCode() != BlobErrorCode.APPEND_POSITION_CONDITION_NOT_MET || attempt >= MAX_APPEND_ATTEMPTS) {
+                    throw e;
+                }
+            }
+            long size = appendBlobClient.getProperties().getBlobSize();
+            if (size >= appendBlob.position + length && isAppendedAt(appendBlobClient, appendBlob.position, data, offset, length)) {
+                logger.info("Block of {} bytes was already appended to {} at offset {}", length, blobName, appendBlob.position);
+                appendBlob.position += length;
+                return;
+            }
+            logger.warn("{} was appended to by someone else, appending at offset {} instead of {}", blobName, size, appendBlob.position);
+            appendBlob.position = size;
+        }
+    }
+
+    private static boolean isAppendedAt(AppendBlobClient appendBlobClient, long position, byte[] data, int offset, int length) {
+        ByteArrayOutputStream written = new ByteArrayOutputStream(length);
+        appendBlobClient.downloadStreamWithResponse(written, new BlobRange(position, (long) length), null, null, false, null, Context.NONE);
+        return Arrays.equals(written.toByteArray(), 0, written.size(), data, offset, offset + length);
+    }
+
+    private static int lastIndexOf(byte[] data, byte value, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            if (data[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     /**
      * Saves a list of AnalyzedCall objects to Azure Blob Storage.
      *
-     * This method iterates over a list of AnalyzedCall objects and saves each one to Azure Blob Storage.
-     * It does this by calling the saveSingleFileToStorage method with the save path of each AnalyzedCall object.
+     * This method saves the analyzed calls concurrently, see saveAnalyzedCallsToStorage().
      *
      * @param analyzedCalls The list of AnalyzedCall objects to be saved.
+     * @throws RuntimeException if one or more calls could not be saved, after every call has been tried.
      */
     @Override
     public void saveToStorage(List<AnalyzedCall> analyzedCalls) {
-        for (var analyzedCall : analyzedCalls) {
-            saveSingleFileToStorage(analyzedCall.savePath());
+        List<AnalyzedCall> failed = saveAnalyzedCallsToStorage(analyzedCalls);
+        if (!failed.isEmpty()) {
+            throw new RuntimeException("Exception thrown in BlobStorageHandler, saveToStorage " + failed.size() + " file(s) could not be saved");
         }
     }
 
+    /**
+     * Saves many analyzed calls to Azure Blob Storage concurrently.
+     *
+     * The calls are saved with saveAnalyzedCallToStorage(), uploadThreads at a time and within the shared Blob Storage limit,
+     * see ThreadPools. A call that can't be saved does not stop the others.
+     *
+     * @param analyzedCalls The analyzed calls to be saved.
+     * @return The analyzed calls that could not be saved, empty if every call was saved.
+     */
+    @Override
+    public List<AnalyzedCall> saveAnalyzedCallsToStorage(List<AnalyzedCall> analyzedCalls) {
+        logger.info("Saving {} files to storage", analyzedCalls.size());
+        ExecutorService executorService = ThreadPools.newExecutor(config.blobStorage.uploadThreads);
+        Semaphore blobStorage = ThreadPools.getServiceLimit(ThreadPools.Service.BLOB_STORAGE);
+        List<AnalyzedCall> failed = Collections.synchronizedList(new ArrayList<>());
+        List<Future<?>> futures = new ArrayList<>();
+        for (AnalyzedCall analyzedCall : analyzedCalls) {
+            futures.add(executorService.submit(() -> {
+                try {
+                    blobStorage.acquire();
+                    try {
+                        saveAnalyzedCallToStorage(analyzedCall);
+                    } finally {
+                        blobStorage.release();
+                    }
+                } catch (Exception e) {
+                    logger.error("An error occurred when saving {}: {}", analyzedCall.savePath(), e.getMessage());
+                    failed.add(analyzedCall);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException | ExecutionException e) {
+                executorService.shutdownNow();
+                logger.error("An error occurred when waiting for tasks to complete: {}", e.getMessage());
+                throw new RuntimeException("Exception thrown in BlobStorageHandler, saveAnalyzedCallsToStorage " + e.getMessage());
+            }
+        }
+        executorService.shutdown();
+        logger.info("Done saving {} files to storage, failed: {}", analyzedCalls.size(), failed.size());
+        return failed;
+    }
+
+    /**
+     * A stream of a blob that records its download time and bytes when it is closed.
+     */
+    private static class MeteredInputStream extends FilterInputStream {
+        private final long start = System.nanoTime();
+        private long bytesRead = 0;
+        private boolean closed = false;
+
+        private MeteredInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                bytesRead++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                bytesRead += n;
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                Metrics.recordSince("blob_download_millis", start);
+                Metrics.add("blob_downloaded_bytes", bytesRead);
+            }
+            super.close();
+        }
+    }
+
+    private static ParallelTransferOptions getParallelTransferOptions() {
+        return new ParallelTransferOptions()
+                .setBlockSizeLong(config.blobStorage.uploadBlockSizeKilobytes * 1024L)
+                .setMaxSingleUploadSizeLong(config.blobStorage.uploadBlockSizeKilobytes * 1024L)
+                .setMaxConcurrency(config.blobStorage.uploadMaxConcurrency);
+    }
+
+    private static byte[] gzip(byte[] data) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(data);
+        } catch (IOException e) {
+            throw new RuntimeException("Exception thrown in BlobStorageHandler, gzip " + e.getMessage());
+        }
+        return compressed.toByteArray();
+    }
+
     /**
      * Deletes the Blob Storage container.
      *
@@ -232,6 +694,47 @@ public class BlobStorageHandler implements StorageHandler {
         logger.info("Done deleting from storage: {}", Utils.removePathFromFilename(fileToDeletePath));
     }
 
+    /**
+     * Deletes many blobs from the Blob Storage container with the Blob Batch API.
+     *
+     * The blobs are deleted in batches of deleteBatchSize, at most 256, each batch is one request.
+     * A blob that does not exist counts as deleted. A blob that can't be deleted does not stop the others.
+     *
+     * @param fileToDeletePaths The names of the blobs to delete, the path is removed from the names.
+     * @return The names that could not be deleted, empty if every blob was deleted.
+     */
+    @Override
+    public List<String> deleteFromStorage(List<String> fileToDeletePaths) {
+        logger.info("Deleting {} files from storage", fileToDeletePaths.size());
+        BlobBatchClient blobBatchClient = new BlobBatchClientBuilder(blobServiceClient).buildClient();
+        int batchSize = Math.max(1, Math.min(config.blobStorage.deleteBatchSize, MAX_BATCH_SIZE));
+        List<String> failed = new ArrayList<>();
+        for (int start = 0; start < fileToDeletePaths.size(); start += batchSize) {
+            BlobBatch blobBatch = blobBatchClient.getBlobBatch();
+            Map<String, Response<Void>> responses = new LinkedHashMap<>();
+            for (String path : fileToDeletePaths.subList(start, Math.min(start + batchSize, fileToDeletePaths.size()))) {
+                String blobName = Utils.removePathFromFilename(path);
+                responses.put(blobName, blobBatch.deleteBlob(blobContainerClient.getBlobContainerName(), blobName));
+            }
+            try {
+                blobBatchClient.submitBatchWithResponse(blobBatch, false, null, Context.NONE);
+            } catch (BlobStorageException | StorageErrorException e) {
+                logger.error("An error occurred when deleting a batch of {} files: {}", responses.size(), e.getMessage());
+                failed.addAll(responses.keySet());
+                continue;
+            }
+            for (Map.Entry<String, Response<Void>> response : responses.entrySet()) {
+                int statusCode = response.getValue().getStatusCode();
+                if (statusCode != 202 && statusCode != 404) {
+                    logger.error("Error deleting {} from blob, status code: {}", response.getKey(), statusCode);
+                    failed.add(response.getKey());
+                }
+            }
+        }
+        logger.info("Done deleting {} files from storage, failed: {}", fileToDeletePaths.size(), failed.size());
+        return failed;
+    }
+
     public List<String> getBlobFilePath() {
         if (blobFilePath.isEmpty()) {
             fetchFile();
@@ -0,0 +1,168 @@
+package se.herrljunga.astta.filehandler;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.herrljunga.astta.metrics.Metrics;
+import se.herrljunga.astta.utils.AnalyzedCall;
+import se.herrljunga.astta.utils.Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * The NdjsonOutputWriter class.
+ * <p>
+ * This class writes analyzed calls as lines of newline delimited JSON (NDJSON) to a few append blobs, instead of one blob
+ * per call, so a Power BI refresh opens one file per day and department instead of thousands of small files.
+ * The blobs are named prefix + date + "/" + department + ".ndjson", or prefix + date + ".ndjson" without partitionByDepartment.
+ * Each line is the compact JSON of one call, with its name added as "Call".
+ * <p>
+ * The lines of a partition are buffered and appended as one block, when the buffer reaches flushBytes and every flushInterval.
+ * write() returns when the line has been appended, so an analyzed call is saved when write() returns, like with
+ * StorageHandler.saveAnalyzedCallToStorage(). Lines written by many threads at the same time share one append.
+ */
+public class NdjsonOutputWriter implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(NdjsonOutputWriter.class);
+    private final StorageHandler storage;
+    private final String prefix;
+    private final boolean partitionByDepartment;
+    private final int flushBytes;
+    private final Map<String, Partition> partitions = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+
+    /**
+     * The buffered lines of one blob, and the future of the append they will be part of.
+     */
+    private static class Partition {
+        private final String blobName;
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private CompletableFuture<Void> appended = new CompletableFuture<>();
+
+        private Partition(String blobName) {
+            this.blobName = blobName;
+        }
+    }
+
+    /**
+     * Constructs a new NdjsonOutputWriter.
+     *
+     * @param storage               The storage to append to, the Power BI container.
+     * @param prefix                The prefix of the blob names.
+     * @param partitionByDepartment True to write one blob per department and day, false for one blob per day.
+     * @param flushBytes            The size of the buffer of a partition that is appended right away.
+     * @param flushIntervalMillis   The time between appends of the buffers that are not full.
+     */
+    public NdjsonOutputWriter(StorageHandler storage, String prefix, boolean partitionByDepartment, int flushBytes, long flushIntervalMillis) {
+        this.storage = storage;
+        this.prefix = prefix;
+        this.partitionByDepartment = partitionByDepartment;
+        this.flushBytes = flushBytes;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ndjson-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushAll, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes an analyzed call and waits until it has been appended.
+     *
+     * @param analyzedCall The analyzed call.
+     * @throws RuntimeException if the analyzed call is not a JSON object or the append fails.
+     */
+    public void write(AnalyzedCall analyzedCall) {
+        JsonObject json = JsonParser.parseString(analyzedCall.analyzedCallJson()).getAsJsonObject();
+        json.addProperty("Call", Utils.getFileName(analyzedCall.savePath()));
+        byte[] line = (json + "\n").getBytes(StandardCharsets.UTF_8);
+
+        Partition partition = partitions.computeIfAbsent(getBlobName(json), Partition::new);
+        CompletableFuture<Void> appended;
+        boolean full;
+        synchronized (partition) {
+            partition.buffer.writeBytes(line);
+            appended = partition.appended;
+            full = partition.buffer.size() >= flushBytes;
+        }
+        if (full) {
+            flush(partition);
+        }
+        try {
+            appended.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Exception thrown in NdjsonOutputWriter, write " + e.getMessage());
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Exception thrown in NdjsonOutputWriter, write " + e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Appends what is left in the buffers and stops the background appends.
+     */
+    @Override
+    public void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushAll();
+    }
+
+    String getBlobName(JsonObject json) {
+        String blobName = prefix + LocalDate.now();
+        if (partitionByDepartment) {
+            blobName += "/" + getDepartment(json);
+        }
+        return blobName + ".ndjson";
+    }
+
+    private static String getDepartment(JsonObject json) {
+        JsonElement department = json.get("Department");
+        if (department != null && department.isJsonObject()) {
+            department = department.getAsJsonObject().get("Department");
+        }
+        if (department == null || !department.isJsonPrimitive() || department.getAsString().isBlank()) {
+            return "okänt";
+        }
+        // A department is part of a blob name, so / and other separators are replaced
+        return department.getAsString().strip().toLowerCase(Locale.ROOT).replaceAll("[^\\p{L}\\p{N}]+", "-");
+    }
+
+    private void flushAll() {
+        for (Partition partition : partitions.values()) {
+            flush(partition);
+        }
+    }
+
+    private void flush(Partition partition) {
+        byte[] data;
+        CompletableFuture<Void> appended;
+        synchronized (partition) {
+            if (partition.buffer.size() == 0) {
+                return;
+            }
+            data = partition.buffer.toByteArray();
+            partition.buffer.reset();
+            appended = partition.appended;
+            partition.appended = new CompletableFuture<>();
+        }
+        try {
+            storage.appendToStorage(partition.blobName, data);
+            Metrics.increment("ndjson_appends");
+            appended.complete(null);
+        } catch (RuntimeException e) {
+            logger.error("An error occurred when appending to {}: {}", partition.blobName, e.getMessage());
+            appended.completeExceptionally(e);
+        }
+    }
+}
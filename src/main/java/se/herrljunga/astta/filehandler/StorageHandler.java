@@ -3,13 +3,24 @@ package se.herrljunga.astta.filehandler;
 import com.azure.storage.blob.BlobContainerClient;
 import se.herrljunga.astta.utils.AnalyzedCall;
 
+import java.io.InputStream;
 import java.util.List;
 
 public interface StorageHandler {
     List<String> fetchFile();
+    List<String> listFiles();
+    List<StoredFile> listFileDetails();
+    String getFileUrl(String blobName);
+    String fetchSingleFile(String blobName);
+    InputStream openInputStream(String blobName);
     void saveToStorage(List<AnalyzedCall> analyzedCalls);
     void saveSingleFileToStorage(String filePath);
+    void saveAnalyzedCallToStorage(AnalyzedCall analyzedCall);
+    List<AnalyzedCall> saveAnalyzedCallsToStorage(List<AnalyzedCall> analyzedCalls);
+    void saveStreamToStorage(String blobName, InputStream data);
+    void appendToStorage(String blobName, byte[] data);
     void deleteFromStorage(String path);
+    List<String> deleteFromStorage(List<String> paths);
     public List<String> getBlobFilePath();
     public void deleteContainer();
     public BlobContainerClient createTempContainer(String tempContainer);
@@ -0,0 +1,13 @@
+package se.herrljunga.astta.filehandler;
+
+import java.time.OffsetDateTime;
+
+/**
+ * A record with the properties of a file in storage
+ * @param name The name of the file
+ * @param eTag The ETag of the file, changes every time the file is written
+ * @param lastModified The time the file was last written
+ * @param size The size of the file in bytes
+ * **/
+public record StoredFile(String name, String eTag, OffsetDateTime lastModified, long size) {
+}
@@ -0,0 +1,150 @@
+package se.herrljunga.astta.http;
+
+import com.azure.core.credential.AzureSasCredential;
+import com.azure.core.http.HttpClient;
+import com.azure.core.http.netty.NettyAsyncHttpClientBuilder;
+import com.azure.storage.blob.BlobServiceClient;
+import com.azure.storage.blob.BlobServiceClientBuilder;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.netty.resources.ConnectionProvider;
+import se.herrljunga.astta.utils.Config;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The HttpTransport class.
+ * <p>
+ * This class owns the HTTP clients of the application, so every request to the same host reuses the same pooled,
+ * kept-alive connections instead of opening a new connection and TLS session for every call.
+ * <p>
+ * The Speech to Text REST calls go through a shared OkHttpClient, which uses HTTP/2 when the service supports it.
+ * Blob Storage and OpenAI go through one shared Azure Netty HttpClient, and all blob containers with the same SAS token
+ * share one BlobServiceClient, see getBlobServiceClient().
+ * <p>
+ * The connections are closed by a shutdown hook when the application exits, or by close().
+ * Shutdown hooks run at the same time, so an application whose own shutdown hook still sends requests removes the hook
+ * of the transport with removeShutdownHook() and closes the transport itself when its hook is done.
+ */
+public class HttpTransport implements AutoCloseable {
+    private final OkHttpClient okHttpClient;
+    private final ConnectionProvider connectionProvider;
+    private final HttpClient azureHttpClient;
+    private BlobServiceClient blobServiceClient;
+    private AzureSasCredential sasCredential;
+    private final Thread shutdownHook = new Thread(this::close, "http-transport-shutdown");
+    private boolean closed = false;
+    private final Logger logger = LoggerFactory.getLogger(HttpTransport.class);
+
+    /**
+     * Constructs a new HttpTransport with the settings in the http section of config.yaml.
+     *
+     * @param config The http settings.
+     */
+    public HttpTransport(Config.Http config) {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(config.maxConnections);
+        dispatcher.setMaxRequestsPerHost(config.maxConnectionsPerHost);
+        this.okHttpClient = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(config.maxConnectionsPerHost, config.keepAliveSeconds, TimeUnit.SECONDS))
+                .protocols(List.of(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .connectTimeout(Duration.ofSeconds(config.connectTimeoutSeconds))
+                .readTimeout(Duration.ofSeconds(config.responseTimeoutSeconds))
+                .build();
+
+        // Requests over maxConnectionsPerHost wait for a free connection instead of failing
+        this.connectionProvider = ConnectionProvider.builder("astta")
+                .maxConnections(config.maxConnectionsPerHost)
+                .pendingAcquireMaxCount(-1)
+                .maxIdleTime(Duration.ofSeconds(config.keepAliveSeconds))
+                .build();
+        this.azureHttpClient = new NettyAsyncHttpClientBuilder()
+                .connectionProvider(connectionProvider)
+                .connectTimeout(Duration.ofSeconds(config.connectTimeoutSeconds))
+                .responseTimeout(Duration.ofSeconds(config.responseTimeoutSeconds))
+                .build();
+
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+        logger.info("HttpTransport initialized, max connections per host: {}, keep-alive: {} seconds",
+                config.maxConnectionsPerHost, config.keepAliveSeconds);
+    }
+
+    /**
+     * Removes the shutdown hook of the transport, the caller then closes the transport with close().
+     */
+    public synchronized void removeShutdownHook() {
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // The application is already shutting down
+        }
+    }
+
+    public OkHttpClient getOkHttpClient() {
+        return okHttpClient;
+    }
+
+    public HttpClient getAzureHttpClient() {
+        return azureHttpClient;
+    }
+
+    /**
+     * Gets the shared BlobServiceClient for a storage account, it is created on the first call.
+     * Every container of the application is in the same storage account and uses the same SAS token.
+     * The token can be replaced while the application runs, see updateSasToken().
+     *
+     * @param endpoint The endpoint URL of the Azure Blob Storage service.
+     * @param sasToken The Shared Access Signature (SAS) token for accessing the Blob Storage.
+     * @return The shared BlobServiceClient.
+     */
+    public synchronized BlobServiceClient getBlobServiceClient(String endpoint, String sasToken) {
+        if (blobServiceClient == null) {
+            blobServiceClient = new BlobServiceClientBuilder()
+                    .endpoint(endpoint)
+                    .credential(sasCredential = new AzureSasCredential(sasToken))
+                    .httpClient(azureHttpClient)
+                    .buildClient();
+        }
+        return blobServiceClient;
+    }
+
+    /**
+     * Replaces the SAS token of the shared BlobServiceClient, the next request is signed with the new token.
+     *
+     * @param sasToken The new Shared Access Signature (SAS) token.
+     */
+    public synchronized void updateSasToken(String sasToken) {
+        if (sasCredential != null) {
+            sasCredential.update(sasToken);
+        }
+    }
+
+    /**
+     * Closes the pooled connections and stops the OkHttp threads.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // The application is already shutting down
+            }
+        }
+        okHttpClient.dispatcher().executorService().shutdown();
+        okHttpClient.connectionPool().evictAll();
+        connectionProvider.dispose();
+        logger.info("HttpTransport closed");
+    }
+}
@@ -3,6 +3,26 @@ package se.herrljunga.astta.keyvault;
 import com.azure.identity.DefaultAzureCredentialBuilder;
 import com.azure.security.keyvault.secrets.SecretClient;
 import com.azure.security.keyvault.secrets.SecretClientBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.herrljunga.astta.metrics.Metrics;
+import se.herrljunga.astta.utils.Config;
+import se.herrljunga.astta.utils.ConfigLoader;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The KeyVault class.
@@ -11,8 +31,17 @@ import com.azure.security.keyvault.secrets.SecretClientBuilder;
  * It uses the Azure Key Vault SDK for Java to interact with Azure Key Vault.
  * The class is initialized with the name of the Key Vault, which is retrieved from an environment variable.
  * It provides a method to get the value of a secret from the Key Vault.
+ * <p>
+ * Secrets are cached for keyVault.cacheTtlMinutes. When less than keyVault.refreshAheadMinutes of that time is left,
+ * the cached value is still returned and the secret is fetched again in the background, so only the first read of
+ * a secret waits for Key Vault. If the background fetch fails the old value is kept until it expires.
+ * Concurrent reads of a secret that is not cached share one request. prefetch() fetches a set of secrets in parallel,
+ * App uses it at startup with every secret name in config.yaml, see secretNames().
  */
 public class KeyVault {
+    private static Config config = ConfigLoader.loadConfig();
+    private static final Logger logger = LoggerFactory.getLogger(KeyVault.class);
+
     /**
      * The name of the Key Vault, retrieved from an environment variable.
      */
@@ -23,28 +52,134 @@ public class KeyVault {
      */
     private static final String keyVaultUri = "https://" + keyVaultName + ".vault.azure.net";
 
+    private static final long ttlNanos = TimeUnit.MINUTES.toNanos(config.keyVault.cacheTtlMinutes);
+    private static final long refreshAfterNanos = ttlNanos - TimeUnit.MINUTES.toNanos(config.keyVault.refreshAheadMinutes);
+    private static final Map<String, CompletableFuture<Secret>> secrets = new ConcurrentHashMap<>();
+    private static final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, config.keyVault.fetchThreads), runnable -> {
+        Thread thread = new Thread(runnable, "key-vault-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private record Secret(String value, long fetchedAtNanos) {
+    }
+
     /**
      * The client used to interact with Azure Key Vault.
      * This client is an instance of SecretClient from the Azure Key Vault SDK for Java.
+     * It is created by the first thread that needs it, the class loader makes sure it is only created once.
      */
-    private static SecretClient secretClient;
+    private static class ClientHolder {
+        private static final SecretClient secretClient = new SecretClientBuilder()
+                .vaultUrl(keyVaultUri)
+                .credential(new DefaultAzureCredentialBuilder().build())
+                .buildClient();
+    }
+
+    private KeyVault() {
+    }
 
     /**
      * Retrieves the value of the secret associated with the specified key from Azure Key Vault.
      *
-     * This method uses the SecretClient to get the secret from the Key Vault.
-     * If the SecretClient has not been initialized, it initializes it with the Key Vault URI and a DefaultAzureCredential.
+     * The value is returned from the cache when it has not expired. An expired or missing secret is fetched
+     * from the Key Vault before returning.
      *
      * @param keySecretName The key of the secret.
      * @return The value of the secret.
      */
     public static String getSecret(String keySecretName) {
-        if (secretClient == null) {
-            secretClient = new SecretClientBuilder()
-                    .vaultUrl(keyVaultUri)
-                    .credential(new DefaultAzureCredentialBuilder().build())
-                    .buildClient();
+        CompletableFuture<Secret> entry = secrets.computeIfAbsent(keySecretName, KeyVault::load);
+        Secret secret = await(keySecretName, entry);
+        long age = System.nanoTime() - secret.fetchedAtNanos();
+        if (age > ttlNanos) {
+            secrets.remove(keySecretName, entry);
+            return await(keySecretName, secrets.computeIfAbsent(keySecretName, KeyVault::load)).value();
+        }
+        if (age > refreshAfterNanos) {
+            refreshInBackground(keySecretName);
+        }
+        return secret.value();
+    }
+
+    /**
+     * Fetches secrets in parallel and caches them, secrets that are already cached are not fetched again.
+     *
+     * @param keySecretNames The keys of the secrets.
+     * @throws RuntimeException if one or more secrets could not be fetched.
+     */
+    public static void prefetch(Collection<String> keySecretNames) {
+        long start = System.nanoTime();
+        Map<String, CompletableFuture<Secret>> entries = new LinkedHashMap<>();
+        for (String keySecretName : new LinkedHashSet<>(keySecretNames)) {
+            entries.put(keySecretName, secrets.computeIfAbsent(keySecretName, KeyVault::load));
+        }
+        List<String> failed = new ArrayList<>();
+        entries.forEach((keySecretName, entry) -> {
+            try {
+                await(keySecretName, entry);
+            } catch (RuntimeException e) {
+                failed.add(keySecretName);
+            }
+        });
+        Metrics.recordSince("keyvault_prefetch_millis", start);
+        if (!failed.isEmpty()) {
+            throw new RuntimeException("Exception thrown in KeyVault, prefetch could not fetch " + failed);
+        }
+        logger.info("Fetched {} secrets from Key Vault in {} ms", entries.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Gets the names of the secrets in the configuration, the values in config.yaml that are keys in the Key Vault.
+     *
+     * @param config The configuration.
+     * @return The secret names.
+     */
+    public static List<String> secretNames(Config config) {
+        return List.of(config.blobStorage.endpoint, config.blobStorage.sasTokenSecretName,
+                config.blobStorage.accountSecretName, config.blobStorage.accountSecretKey,
+                config.openAI.secretName, config.openAI.endpoint, config.speechToText.secretName,
+                config.emailSender.smtpHost, config.emailSender.smtpPort,
+                config.emailSender.smtpFromAddress, config.emailSender.smtpToAddress);
+    }
+
+    private static CompletableFuture<Secret> load(String keySecretName) {
+        return CompletableFuture.supplyAsync(() -> fetch(keySecretName), executor);
+    }
+
+    private static Secret fetch(String keySecretName) {
+        long start = System.nanoTime();
+        String value = ClientHolder.secretClient.getSecret(keySecretName).getValue();
+        Metrics.recordSince("keyvault_fetch_millis", start);
+        return new Secret(value, System.nanoTime());
+    }
+
+    private static Secret await(String keySecretName, CompletableFuture<Secret> entry) {
+        try {
+            return entry.join();
+        } catch (CompletionException e) {
+            // Forget the failed request, the next read tries again
+            secrets.remove(keySecretName, entry);
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            throw new RuntimeException("Exception thrown in KeyVault, getSecret " + keySecretName + ": " + cause.getMessage());
+        }
+    }
+
+    private static void refreshInBackground(String keySecretName) {
+        if (!refreshing.add(keySecretName)) {
+            return;
         }
-        return secretClient.getSecret(keySecretName).getValue();
+        executor.execute(() -> {
+            try {
+                secrets.put(keySecretName, CompletableFuture.completedFuture(fetch(keySecretName)));
+                Metrics.increment("keyvault_refreshes");
+            } catch (RuntimeException e) {
+                logger.warn("Could not refresh secret {}, keeping the cached value: {}", keySecretName, e.getMessage());
+            } finally {
+                refreshing.remove(keySecretName);
+            }
+        });
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,100 @@
+package se.herrljunga.astta.keyvault;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * The SecretRefresher class.
+ * <p>
+ * This class passes a rotated secret on to the clients that were built with it. The SDK clients read their SAS token
+ * and API key once when they are built, so without it a long-running daemon would keep using a key or token that has
+ * been rotated or has expired. Every interval the watched secrets are read from the Key Vault cache, which fetches them
+ * again in the background before they expire, and the listeners of a secret whose value has changed are called.
+ */
+public class SecretRefresher implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(SecretRefresher.class);
+    private final Function<String, String> secrets;
+    private final List<Watch> watches = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService scheduler;
+
+    private static final class Watch {
+        private final String secretName;
+        private final Consumer<String> onChange;
+        private volatile String value;
+
+        private Watch(String secretName, Consumer<String> onChange, String value) {
+            this.secretName = secretName;
+            this.onChange = onChange;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Constructs a new SecretRefresher that reads the secrets from KeyVault, and starts checking them.
+     *
+     * @param interval The time between checks.
+     */
+    public SecretRefresher(Duration interval) {
+        this(interval, KeyVault::getSecret);
+    }
+
+    /**
+     * Constructs a new SecretRefresher with its own source of secrets, for tests, and starts checking them.
+     *
+     * @param interval The time between checks.
+     * @param secrets  Gets the current value of a secret by name.
+     */
+    public SecretRefresher(Duration interval, Function<String, String> secrets) {
+        this.secrets = secrets;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "secret-refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::check, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Calls a listener with the new value every time a secret changes. The current value is the one the clients
+     * were built with, so the listener is not called for it.
+     *
+     * @param secretName The name of the secret in the Key Vault.
+     * @param onChange   Called with the new value of the secret.
+     */
+    public void watch(String secretName, Consumer<String> onChange) {
+        watches.add(new Watch(secretName, onChange, secrets.apply(secretName)));
+    }
+
+    /**
+     * Stops checking the secrets.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    private void check() {
+        for (Watch watch : watches) {
+            try {
+                String value = secrets.apply(watch.secretName);
+                if (value != null && !value.equals(watch.value)) {
+                    watch.value = value;
+                    watch.onChange.accept(value);
+                    logger.info("The secret {} has changed, its clients use the new value", watch.secretName);
+                }
+            } catch (RuntimeException e) {
+                // The clients keep the old value, it is checked again at the next interval
+                logger.error("Could not refresh the secret {}: {}", watch.secretName, e.getMessage());
+            }
+        }
+    }
+}
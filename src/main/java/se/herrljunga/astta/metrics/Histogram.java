@@ -0,0 +1,124 @@
+package se.herrljunga.astta.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The Histogram class.
+ * <p>
+ * This class counts recorded values, usually durations in milliseconds, in buckets with fixed upper bounds.
+ * Recording a value is lock free, so it can be done from every worker thread.
+ * The buckets are the same as the buckets of a Prometheus histogram, see Metrics.toPrometheus().
+ * <p>
+ * Percentiles are estimated from the buckets, as the upper bound of the bucket the percentile falls in.
+ * A percentile in the last bucket, above the highest bound, is the largest recorded value.
+ */
+public class Histogram {
+    /**
+     * The default bounds, from 1 ms to 10 minutes, which covers a parse as well as a long transcription job.
+     */
+    public static final long[] MILLIS_BOUNDS = {1, 5, 10, 25, 50, 100, 250, 500, 1_000, 2_500, 5_000, 10_000, 30_000, 60_000, 120_000, 300_000, 600_000};
+    private final long[] bounds;
+    private final LongAdder[] buckets;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * Constructs a new Histogram with the default millisecond bounds.
+     */
+    public Histogram() {
+        this(MILLIS_BOUNDS);
+    }
+
+    /**
+     * Constructs a new Histogram.
+     *
+     * @param bounds The upper bounds of the buckets, in increasing order. A last bucket without bound is added.
+     */
+    public Histogram(long[] bounds) {
+        this.bounds = bounds.clone();
+        this.buckets = new LongAdder[bounds.length + 1];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a value.
+     *
+     * @param value The value, a value equal to a bound is counted in the bucket of that bound.
+     */
+    public void record(long value) {
+        int i = 0;
+        while (i < bounds.length && value > bounds[i]) {
+            i++;
+        }
+        buckets[i].increment();
+        count.increment();
+        sum.add(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Gets the largest recorded value.
+     *
+     * @return The largest value, or 0 if nothing has been recorded.
+     */
+    public long getMax() {
+        long value = max.get();
+        return value == Long.MIN_VALUE ? 0 : value;
+    }
+
+    long[] getBounds() {
+        return bounds.clone();
+    }
+
+    /**
+     * Gets the number of recorded values of each bucket, the last bucket is the values above the highest bound.
+     *
+     * @return The counts of the buckets, not cumulative.
+     */
+    long[] getBucketCounts() {
+        long[] counts = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    /**
+     * Estimates a percentile of the recorded values.
+     *
+     * @param percentile The percentile, between 0 and 100.
+     * @return The upper bound of the bucket of the percentile, or the largest value if it is above the highest bound,
+     * or 0 if nothing has been recorded.
+     */
+    public long getPercentile(double percentile) {
+        long[] counts = getBucketCounts();
+        long total = 0;
+        for (long bucketCount : counts) {
+            total += bucketCount;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(bounds[i], getMax());
+            }
+        }
+        return getMax();
+    }
+}
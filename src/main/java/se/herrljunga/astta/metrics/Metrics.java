@@ -0,0 +1,166 @@
+package se.herrljunga.astta.metrics;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * The Metrics class.
+ * <p>
+ * This class is a process wide registry of named counters, gauges and histograms.
+ * Counters only go up and are updated by the code that does the work, for example the number of throttled requests.
+ * Gauges are read from a supplier when the metrics are reported, for example the current number of requests in flight.
+ * Histograms count durations in milliseconds, for example the latency of the requests to OpenAI, their names end with _millis.
+ * <p>
+ * The metrics are summarized at the end of a run, see summary(), and can be exported in the Prometheus text format,
+ * see toPrometheus() and MetricsExporter.
+ */
+public class Metrics {
+    private static final String PROMETHEUS_PREFIX = "astta_";
+    private static final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private static final Map<String, Supplier<Number>> gauges = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * Adds one to a counter, the counter is created if it does not exist.
+     *
+     * @param name The name of the counter.
+     */
+    public static void increment(String name) {
+        add(name, 1);
+    }
+
+    /**
+     * Adds a value to a counter, the counter is created if it does not exist.
+     *
+     * @param name  The name of the counter.
+     * @param value The value to add.
+     */
+    public static void add(String name, long value) {
+        counters.computeIfAbsent(name, key -> new AtomicLong()).addAndGet(value);
+    }
+
+    /**
+     * Gets the current value of a counter.
+     *
+     * @param name The name of the counter.
+     * @return The value of the counter, or 0 if it does not exist.
+     */
+    public static long getCounter(String name) {
+        AtomicLong counter = counters.get(name);
+        return counter == null ? 0 : counter.get();
+    }
+
+    /**
+     * Registers a gauge, replacing any earlier gauge with the same name.
+     *
+     * @param name     The name of the gauge.
+     * @param supplier Supplies the current value of the gauge.
+     */
+    public static void registerGauge(String name, Supplier<Number> supplier) {
+        gauges.put(name, supplier);
+    }
+
+    /**
+     * Records a value in a histogram, the histogram is created with the default millisecond bounds if it does not exist.
+     *
+     * @param name  The name of the histogram.
+     * @param value The value to record, usually a duration in milliseconds.
+     */
+    public static void record(String name, long value) {
+        histograms.computeIfAbsent(name, key -> new Histogram()).record(value);
+    }
+
+    /**
+     * Records the milliseconds since a start time in a histogram.
+     *
+     * @param name       The name of the histogram.
+     * @param startNanos The start time, from System.nanoTime().
+     */
+    public static void recordSince(String name, long startNanos) {
+        record(name, (System.nanoTime() - startNanos) / 1_000_000);
+    }
+
+    /**
+     * Gets a histogram.
+     *
+     * @param name The name of the histogram.
+     * @return The histogram, or null if nothing has been recorded in it.
+     */
+    public static Histogram getHistogram(String name) {
+        return histograms.get(name);
+    }
+
+    /**
+     * Gets the current values of all counters and gauges, sorted by name.
+     *
+     * @return A map from metric name to value.
+     */
+    public static Map<String, Number> snapshot() {
+        Map<String, Number> snapshot = new TreeMap<>();
+        counters.forEach((name, counter) -> snapshot.put(name, counter.get()));
+        gauges.forEach((name, supplier) -> snapshot.put(name, supplier.get()));
+        return snapshot;
+    }
+
+    /**
+     * Formats all counters and gauges as one "name value" line each,
+     * followed by one line with the count, average, p50, p95, p99 and max of each histogram.
+     *
+     * @return The metrics summary.
+     */
+    public static String summary() {
+        StringBuilder sb = new StringBuilder();
+        snapshot().forEach((name, value) -> sb.append(name).append(' ').append(value).append('\n'));
+        new TreeMap<>(histograms).forEach((name, histogram) -> sb.append(String.format(Locale.ROOT,
+                "%s count=%d avg=%d p50=%d p95=%d p99=%d max=%d%n", name, histogram.getCount(),
+                histogram.getCount() == 0 ? 0 : histogram.getSum() / histogram.getCount(),
+                histogram.getPercentile(50), histogram.getPercentile(95), histogram.getPercentile(99), histogram.getMax())));
+        return sb.toString();
+    }
+
+    /**
+     * Formats all metrics in the Prometheus text exposition format.
+     * <p>
+     * The names get the prefix astta_ and counters get the suffix _total. A histogram has one cumulative _bucket line
+     * per bound, with the bound as label le, and a _sum and a _count line.
+     *
+     * @return The metrics in the Prometheus text format.
+     */
+    public static String toPrometheus() {
+        StringBuilder sb = new StringBuilder();
+        new TreeMap<>(counters).forEach((name, counter) -> {
+            String metric = toPrometheusName(name) + "_total";
+            sb.append("# TYPE ").append(metric).append(" counter\n");
+            sb.append(metric).append(' ').append(counter.get()).append('\n');
+        });
+        new TreeMap<>(gauges).forEach((name, supplier) -> {
+            String metric = toPrometheusName(name);
+            sb.append("# TYPE ").append(metric).append(" gauge\n");
+            sb.append(metric).append(' ').append(supplier.get()).append('\n');
+        });
+        new TreeMap<>(histograms).forEach((name, histogram) -> {
+            String metric = toPrometheusName(name);
+            sb.append("# TYPE ").append(metric).append(" histogram\n");
+            long[] bounds = histogram.getBounds();
+            long[] counts = histogram.getBucketCounts();
+            long cumulative = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                cumulative += counts[i];
+                sb.append(metric).append("_bucket{le=\"").append(bounds[i]).append("\"} ").append(cumulative).append('\n');
+            }
+            cumulative += counts[bounds.length];
+            sb.append(metric).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+            sb.append(metric).append("_sum ").append(histogram.getSum()).append('\n');
+            sb.append(metric).append("_count ").append(cumulative).append('\n');
+        });
+        return sb.toString();
+    }
+
+    private static String toPrometheusName(String name) {
+        return PROMETHEUS_PREFIX + name.replaceAll("[^a-zA-Z0-9_]", "_");
+    }
+}
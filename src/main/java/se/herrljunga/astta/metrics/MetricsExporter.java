@@ -0,0 +1,107 @@
+package se.herrljunga.astta.metrics;
+
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The MetricsExporter class.
+ * <p>
+ * This class exports the Metrics in the Prometheus text format while the application runs, in two ways that can be
+ * used together:
+ * <p>
+ * A file that is rewritten every interval and at close, for the textfile collector of the Prometheus node exporter or
+ * to read after a run. The file is written next to itself and then moved in place, so a reader never sees half a file.
+ * <p>
+ * An HTTP endpoint, /metrics on the loopback address, for a Prometheus or an agent on the same machine to scrape.
+ */
+public class MetricsExporter implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(MetricsExporter.class);
+    private final Path file;
+    private final HttpServer server;
+    private final ScheduledExecutorService writer;
+
+    /**
+     * Constructs a new MetricsExporter and starts the export.
+     *
+     * @param file            The path of the file to write, or null or empty to not write a file.
+     * @param port            The port of the HTTP endpoint, or 0 to not start the endpoint.
+     * @param intervalSeconds The time between writes of the file.
+     * @throws RuntimeException if the HTTP endpoint can't be started.
+     */
+    public MetricsExporter(String file, int port, long intervalSeconds) {
+        this.file = file == null || file.isBlank() ? null : Paths.get(file);
+        this.server = port > 0 ? startServer(port) : null;
+        if (this.file != null) {
+            writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "metrics-exporter");
+                thread.setDaemon(true);
+                return thread;
+            });
+            writer.scheduleWithFixedDelay(this::writeFile, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        } else {
+            writer = null;
+        }
+    }
+
+    /**
+     * Writes the file a last time and stops the HTTP endpoint.
+     */
+    @Override
+    public void close() {
+        if (writer != null) {
+            writer.shutdownNow();
+            writeFile();
+        }
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    private static HttpServer startServer(int port) {
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = Metrics.toPrometheus().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.start();
+            logger.info("Serving metrics on http://localhost:{}/metrics", port);
+            return server;
+        } catch (IOException e) {
+            throw new RuntimeException("Exception thrown in MetricsExporter, startServer " + e.getMessage());
+        }
+    }
+
+    private synchronized void writeFile() {
+        try {
+            Path directory = file.toAbsolutePath().getParent();
+            if (directory != null) {
+                Files.createDirectories(directory);
+            }
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.writeString(temp, Metrics.toPrometheus(), StandardCharsets.UTF_8);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Metrics are not worth failing the run for
+            logger.warn("Could not write metrics to {}: {}", file, e.getMessage());
+        }
+    }
+}
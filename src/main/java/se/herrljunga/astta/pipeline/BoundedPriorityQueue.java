@@ -0,0 +1,230 @@
+package se.herrljunga.astta.pipeline;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToLongFunction;
+
+/**
+ * The BoundedPriorityQueue class.
+ * <p>
+ * A blocking queue with a fixed capacity that hands out the item with the highest priority first,
+ * and items with the same priority in the order they were added. Like ArrayBlockingQueue, put() waits while the
+ * queue is full, so it keeps the backpressure between two PipelineStages while it reorders the waiting items.
+ * <p>
+ * The priority of an item is computed once when it is added, before the lock is taken.
+ *
+ * @param <E> The type of the items.
+ */
+public class BoundedPriorityQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+    private final int capacity;
+    private final ToLongFunction<? super E> priority;
+    private final PriorityQueue<Entry<E>> entries;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private long nextSequence;
+
+    private record Entry<E>(E item, long priority, long sequence) {
+    }
+
+    /**
+     * Constructs a new BoundedPriorityQueue.
+     *
+     * @param capacity The maximum number of items in the queue.
+     * @param priority The priority of an item, a higher value is taken first.
+     */
+    public BoundedPriorityQueue(int capacity, ToLongFunction<? super E> priority) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Exception thrown in BoundedPriorityQueue, capacity must be at least 1");
+        }
+        this.capacity = capacity;
+        this.priority = priority;
+        this.entries = new PriorityQueue<>(Comparator.<Entry<E>>comparingLong(Entry::priority).reversed()
+                .thenComparingLong(Entry::sequence));
+    }
+
+    @Override
+    public boolean offer(E item) {
+        Objects.requireNonNull(item);
+        long itemPriority = priority.applyAsLong(item);
+        lock.lock();
+        try {
+            if (entries.size() >= capacity) {
+                return false;
+            }
+            enqueue(item, itemPriority);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(E item, long timeout, TimeUnit unit) throws InterruptedException {
+        Objects.requireNonNull(item);
+        long itemPriority = priority.applyAsLong(item);
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (entries.size() >= capacity) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            enqueue(item, itemPriority);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(E item) throws InterruptedException {
+        Objects.requireNonNull(item);
+        long itemPriority = priority.applyAsLong(item);
+        lock.lockInterruptibly();
+        try {
+            while (entries.size() >= capacity) {
+                notFull.await();
+            }
+            enqueue(item, itemPriority);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E poll() {
+        lock.lock();
+        try {
+            return entries.isEmpty() ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (entries.isEmpty()) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (entries.isEmpty()) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E peek() {
+        lock.lock();
+        try {
+            return entries.isEmpty() ? null : entries.peek().item();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            return capacity - entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> collection) {
+        return drainTo(collection, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> collection, int maxElements) {
+        Objects.requireNonNull(collection);
+        if (collection == this) {
+            throw new IllegalArgumentException("Exception thrown in BoundedPriorityQueue, drainTo the queue itself");
+        }
+        lock.lock();
+        try {
+            int drained = 0;
+            while (drained < maxElements && !entries.isEmpty()) {
+                collection.add(dequeue());
+                drained++;
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the items, in no particular order.
+     * Removing an item through the iterator is not supported.
+     */
+    @Override
+    public Iterator<E> iterator() {
+        lock.lock();
+        try {
+            List<E> snapshot = new ArrayList<>(entries.size());
+            for (Entry<E> entry : entries) {
+                snapshot.add(entry.item());
+            }
+            return Collections.unmodifiableList(snapshot).iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void enqueue(E item, long itemPriority) {
+        entries.add(new Entry<>(item, itemPriority, nextSequence++));
+        notEmpty.signal();
+    }
+
+    private E dequeue() {
+        E item = entries.poll().item();
+        notFull.signal();
+        return item;
+    }
+}
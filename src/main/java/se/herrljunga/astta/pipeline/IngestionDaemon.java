@@ -0,0 +1,296 @@
+package se.herrljunga.astta.pipeline;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.herrljunga.astta.filehandler.StorageHandler;
+import se.herrljunga.astta.filehandler.StoredFile;
+import se.herrljunga.astta.metrics.Metrics;
+import se.herrljunga.astta.speechtotext.ProcessedManifest;
+import se.herrljunga.astta.utils.Config;
+import se.herrljunga.astta.utils.ConfigLoader;
+import se.herrljunga.astta.utils.Utils;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * The IngestionDaemon class.
+ * <p>
+ * This class keeps the application running and transcribes new audio files in small batches as they arrive,
+ * instead of one large batch per scheduled run. The audio source is listed every daemon.pollSeconds, and the files
+ * that are not in the ProcessedManifest are pending. A batch of pending files is run through the TranscriptionPipeline
+ * when there are daemon.batchMaxFiles of them, or when the oldest has waited daemon.batchMaxWaitSeconds.
+ * <p>
+ * The pipeline, the OpenAIAnalyzer with its AdaptiveConcurrencyLimiter and AnalysisCache, the HTTP clients and the
+ * Key Vault cache are created once and stay warm between batches. The batches run one at a time, the files that arrive
+ * during a batch wait for the next one.
+ * <p>
+ * A file that fails stays in the audio source and is pending again after the batch, unless it has been given up.
+ * If the journal has an unfinished run, at startup or after a failed batch, that run is resumed before a new batch is
+ * started. A run that fails to resume journal.maxAttemptsPerCall times is dropped, and its files are batched again.
+ * The temp container is emptied after every completed run, so the next run only discovers its own transcriptions.
+ * <p>
+ * After a failed batch, resume or listing the daemon waits daemon.pollSeconds, doubled for every failure in a row
+ * up to daemon.maxBackoffSeconds, so an outage of a service is not hammered. Only the first failure in a row is
+ * passed to onFailure, and onRecovery is called when a batch succeeds again, so an outage sends two alerts.
+ */
+public class IngestionDaemon {
+    private final StorageHandler audioSource;
+    private final StorageHandler tempStorage;
+    private final TranscriptionPipeline pipeline;
+    private final JobJournal journal;
+    private final ProcessedManifest manifest;
+    private final Consumer<RuntimeException> onFailure;
+    private final Runnable onRecovery;
+    private volatile Config.Daemon settings;
+    private final Map<String, Long> firstSeen = new HashMap<>();
+    private final Object wakeUp = new Object();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private volatile boolean stopping = false;
+    private int failedResumes = 0;
+    private int consecutiveFailures = 0;
+    private volatile int pendingFiles = 0;
+    private final Logger logger = LoggerFactory.getLogger(IngestionDaemon.class);
+
+    /**
+     * Constructs a new IngestionDaemon.
+     *
+     * @param settings    The daemon settings, replaced by the daemon section of a reloaded configuration, see applyConfig().
+     * @param audioSource The StorageHandler for the audio source that is watched.
+     * @param tempStorage The StorageHandler for the temp container the transcriptions are written to.
+     * @param pipeline    The pipeline that runs every batch.
+     * @param journal     The journal of the pipeline.
+     * @param manifest    The manifest of the pipeline, the audio files in it are not batched again.
+     * @param onFailure   Called with the exception of the first failure after a success, for example to send an alert.
+     * @param onRecovery  Called when a batch succeeds after one or more failures.
+     */
+    public IngestionDaemon(Config.Daemon settings, StorageHandler audioSource, StorageHandler tempStorage, TranscriptionPipeline pipeline,
+                           JobJournal journal, ProcessedManifest manifest, Consumer<RuntimeException> onFailure, Runnable onRecovery) {
+        this.settings = settings;
+        this.audioSource = audioSource;
+        this.tempStorage = tempStorage;
+        this.pipeline = pipeline;
+        this.journal = journal;
+        this.manifest = manifest;
+        this.onFailure = onFailure;
+        this.onRecovery = onRecovery;
+        Metrics.registerGauge("daemon_pending_files", () -> pendingFiles);
+    }
+
+    /**
+     * Applies the daemon settings of a reloaded configuration, from the next poll.
+     *
+     * @param config The reloaded configuration.
+     */
+    public void applyConfig(Config config) {
+        this.settings = config.daemon;
+    }
+
+    /**
+     * Watches the audio source and runs batches until stop() is called. A batch that is running when stop() is called
+     * is finished first.
+     */
+    public void run() {
+        logger.info("Daemon started, watching the audio source");
+        try {
+            while (!stopping) {
+                Config.Daemon settings = this.settings;
+                boolean succeeded;
+                if (journal.hasPendingWork()) {
+                    succeeded = resume();
+                } else {
+                    List<StoredFile> batch;
+                    try {
+                        batch = nextBatch(settings, System.currentTimeMillis());
+                    } catch (RuntimeException e) {
+                        logger.error("Could not list the audio source: {}", e.getMessage());
+                        failed(e);
+                        sleep(backoffMillis(settings));
+                        continue;
+                    }
+                    if (batch.isEmpty()) {
+                        sleep(TimeUnit.SECONDS.toMillis(settings.pollSeconds));
+                        continue;
+                    }
+                    succeeded = runBatch(batch);
+                }
+                if (!succeeded) {
+                    // Wait before the failed files are tried again, longer for every failure in a row
+                    sleep(backoffMillis(settings));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            logger.info("Daemon stopped");
+            stopped.countDown();
+        }
+    }
+
+    /**
+     * Tells the daemon to stop after the batch that is running, if any.
+     */
+    public void stop() {
+        stopping = true;
+        synchronized (wakeUp) {
+            wakeUp.notifyAll();
+        }
+    }
+
+    /**
+     * Waits for run() to return after stop().
+     *
+     * @param timeout The longest time to wait.
+     * @return True if the daemon stopped, false if the time ran out.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    public boolean awaitStop(Duration timeout) throws InterruptedException {
+        return stopped.await(timeout.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Lists the audio source and picks the next batch, if a batch is due.
+     *
+     * @param settings The daemon settings.
+     * @param now      The current time in milliseconds.
+     * @return The oldest pending files, at most batchMaxFiles, or an empty list if no batch is due.
+     */
+    private List<StoredFile> nextBatch(Config.Daemon settings, long now) {
+        List<StoredFile> pending = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (StoredFile file : audioSource.listFileDetails()) {
+            if (!manifest.contains(file)) {
+                pending.add(file);
+                names.add(file.name());
+                firstSeen.putIfAbsent(file.name(), now);
+            }
+        }
+        firstSeen.keySet().retainAll(names);
+        pendingFiles = pending.size();
+        if (pending.isEmpty()) {
+            return List.of();
+        }
+        pending.sort(Comparator.comparing((StoredFile file) -> firstSeen.get(file.name())).thenComparing(StoredFile::name));
+        long oldestWaitMillis = now - firstSeen.get(pending.get(0).name());
+        if (pending.size() < settings.batchMaxFiles && oldestWaitMillis < TimeUnit.SECONDS.toMillis(settings.batchMaxWaitSeconds)) {
+            return List.of();
+        }
+        return new ArrayList<>(pending.subList(0, Math.min(pending.size(), settings.batchMaxFiles)));
+    }
+
+    /**
+     * Runs a batch through the pipeline.
+     *
+     * @param batch The audio files of the batch.
+     * @return True if every file of the batch was handled.
+     */
+    private boolean runBatch(List<StoredFile> batch) {
+        logger.info("Starting a batch of {} audio files", batch.size());
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+        for (StoredFile file : batch) {
+            Metrics.record("daemon_file_wait_millis", now - firstSeen.get(file.name()));
+        }
+        boolean succeeded = true;
+        try {
+            pipeline.run(batch);
+            recovered();
+        } catch (RuntimeException e) {
+            logger.error("Batch failed: {}", e.getMessage());
+            failed(e);
+            succeeded = false;
+        }
+        Metrics.recordSince("daemon_batch_millis", start);
+        Metrics.increment("daemon_batches");
+        finishRun();
+        return succeeded;
+    }
+
+    /**
+     * Resumes the unfinished run in the journal.
+     *
+     * @return True if every file of the run was handled.
+     */
+    private boolean resume() {
+        boolean succeeded = true;
+        try {
+            pipeline.run();
+            failedResumes = 0;
+            recovered();
+        } catch (RuntimeException e) {
+            succeeded = false;
+            logger.error("Resumed run failed: {}", e.getMessage());
+            failed(e);
+            if (journal.hasPendingWork() && ++failedResumes >= ConfigLoader.loadConfig().journal.maxAttemptsPerCall) {
+                logger.error("Dropping the run after {} failed attempts to resume it, its audio files are batched again", failedResumes);
+                journal.complete();
+                failedResumes = 0;
+            }
+        }
+        finishRun();
+        return succeeded;
+    }
+
+    private void failed(RuntimeException e) {
+        consecutiveFailures++;
+        if (consecutiveFailures == 1) {
+            onFailure.accept(e);
+        } else {
+            logger.warn("{} failures in a row, no alert is sent until a batch succeeds", consecutiveFailures);
+        }
+    }
+
+    private void recovered() {
+        if (consecutiveFailures > 0) {
+            logger.info("Recovered after {} failures in a row", consecutiveFailures);
+            consecutiveFailures = 0;
+            onRecovery.run();
+        }
+    }
+
+    /**
+     * Gets the time to wait after a failure, daemon.pollSeconds doubled for every earlier failure in a row,
+     * at most daemon.maxBackoffSeconds.
+     */
+    private long backoffMillis(Config.Daemon settings) {
+        long maxMillis = TimeUnit.SECONDS.toMillis(Math.max(settings.pollSeconds, settings.maxBackoffSeconds));
+        long millis = TimeUnit.SECONDS.toMillis(settings.pollSeconds) << Math.min(Math.max(consecutiveFailures - 1, 0), 20);
+        return Math.min(millis, maxMillis);
+    }
+
+    private void finishRun() {
+        logger.info("Run report:\n{}", pipeline.getRunReport().summary());
+        if (journal.hasPendingWork()) {
+            // Keep the transcriptions and temp files, the unfinished run is resumed next
+            journal.close();
+            return;
+        }
+        try {
+            List<String> notDeleted = tempStorage.deleteFromStorage(tempStorage.listFiles());
+            if (!notDeleted.isEmpty()) {
+                logger.warn("Could not delete {} files from the temp container", notDeleted.size());
+            }
+        } catch (RuntimeException e) {
+            logger.error("Could not empty the temp container: {}", e.getMessage());
+        }
+        Utils.deleteFolderIfExists(new File(pipeline.getPathToTemp()));
+    }
+
+    private void sleep(long millis) throws InterruptedException {
+        synchronized (wakeUp) {
+            if (!stopping) {
+                wakeUp.wait(millis);
+            }
+        }
+    }
+}
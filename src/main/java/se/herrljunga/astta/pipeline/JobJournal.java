@@ -0,0 +1,278 @@
+package se.herrljunga.astta.pipeline;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The JobJournal class.
+ * <p>
+ * This class keeps an append-only journal on the local disk of how far each call has come in a run:
+ * transcribed, downloaded, analyzed, uploaded and source deleted. If a run fails, the next run reads the journal,
+ * reuses the transcriptions of the failed run and skips the stages that are already done for each call.
+ * <p>
+ * Each record is one line, "STAGE\tkey". Writing a record is cheap, the journal is only forced to disk (fsync)
+ * every syncEveryRecords records and at least every syncIntervalMillis, so a crash can lose the latest records.
+ * Every stage is safe to run twice, so a lost record only means some work is done again.
+ * <p>
+ * A call that has failed maxAttemptsPerCall times is given up, so a call that always fails can't keep every later
+ * run resuming the same job. Its audio file stays in the audio source and is picked up again by a new transcription.
+ */
+public class JobJournal {
+    /**
+     * The stages of a call, in the order they are done.
+     */
+    public enum Stage {
+        TRANSCRIBED, DOWNLOADED, ANALYZED, UPLOADED, SOURCE_DELETED
+    }
+
+    private static final String SUBMITTED = "SUBMITTED";
+    private static final String TRANSCRIPTION_DONE = "TRANSCRIPTION_DONE";
+    private static final String FAILED = "FAILED";
+    private final Path path;
+    private final int syncEveryRecords;
+    private final int maxAttemptsPerCall;
+    private final Map<String, Stage> stages = new ConcurrentHashMap<>();
+    private final Map<String, Integer> failures = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService syncScheduler;
+    private final List<String> transcriptionUrls = new ArrayList<>();
+    private final Set<String> doneTranscriptionUrls = ConcurrentHashMap.newKeySet();
+    private FileChannel channel;
+    private int unsyncedRecords = 0;
+    private final Logger logger = LoggerFactory.getLogger(JobJournal.class);
+
+    /**
+     * Constructs a new JobJournal and reads the journal of an unfinished run, if there is one.
+     *
+     * @param path               The path of the journal file.
+     * @param syncEveryRecords   Force the journal to disk after this many records.
+     * @param syncIntervalMillis Force the journal to disk at least this often when there are unsynced records.
+     * @param maxAttemptsPerCall Give up a call after it has failed this many times.
+     */
+    public JobJournal(String path, int syncEveryRecords, long syncIntervalMillis, int maxAttemptsPerCall) {
+        this.path = Paths.get(path);
+        this.syncEveryRecords = syncEveryRecords;
+        this.maxAttemptsPerCall = maxAttemptsPerCall;
+        this.syncScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "journal-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        load();
+        syncScheduler.scheduleWithFixedDelay(this::sync, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Checks if there is an unfinished run to resume.
+     *
+     * @return True if a transcription was submitted and the run did not complete.
+     */
+    public synchronized boolean hasPendingWork() {
+        return !transcriptionUrls.isEmpty();
+    }
+
+    public synchronized List<String> getTranscriptionUrls() {
+        return List.copyOf(transcriptionUrls);
+    }
+
+    public boolean isTranscriptionDone(String transcriptionUrl) {
+        return doneTranscriptionUrls.contains(transcriptionUrl);
+    }
+
+    /**
+     * Starts the journal of a new run, any old journal is discarded.
+     *
+     * @param transcriptionUrls The URLs of the submitted transcriptions.
+     */
+    public synchronized void start(List<String> transcriptionUrls) {
+        stages.clear();
+        failures.clear();
+        this.transcriptionUrls.clear();
+        doneTranscriptionUrls.clear();
+        open(StandardOpenOption.TRUNCATE_EXISTING);
+        for (String transcriptionUrl : transcriptionUrls) {
+            this.transcriptionUrls.add(transcriptionUrl);
+            write(SUBMITTED, transcriptionUrl);
+        }
+        sync();
+    }
+
+    /**
+     * Continues the journal of an unfinished run.
+     */
+    public synchronized void resume() {
+        logger.info("Resuming run of transcriptions {}, calls in journal: {}", transcriptionUrls, stages.size());
+        open(StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Records that a call has finished a stage.
+     *
+     * @param stage The stage that was finished.
+     * @param key   The key of the call.
+     */
+    public void record(Stage stage, String key) {
+        stages.merge(key, stage, (old, current) -> old.compareTo(current) >= 0 ? old : current);
+        write(stage.name(), key);
+    }
+
+    /**
+     * Records that a call failed in a stage.
+     *
+     * @param key The key of the call.
+     */
+    public void recordFailure(String key) {
+        failures.merge(key, 1, Integer::sum);
+        write(FAILED, key);
+    }
+
+    /**
+     * Records that a transcription is done, so a resumed run does not need to ask the Speech to Text service.
+     *
+     * @param transcriptionUrl The URL of the transcription.
+     */
+    public void recordTranscriptionDone(String transcriptionUrl) {
+        doneTranscriptionUrls.add(transcriptionUrl);
+        write(TRANSCRIPTION_DONE, transcriptionUrl);
+    }
+
+    /**
+     * Checks if a call has finished a stage.
+     *
+     * @param key   The key of the call.
+     * @param stage The stage.
+     * @return True if the call has finished the stage or a later stage.
+     */
+    public boolean hasReached(String key, Stage stage) {
+        Stage reached = stages.get(key);
+        return reached != null && reached.compareTo(stage) >= 0;
+    }
+
+    /**
+     * Checks if a call has failed too many times to be tried again.
+     *
+     * @param key The key of the call.
+     * @return True if the call has failed maxAttemptsPerCall times.
+     */
+    public boolean isGivenUp(String key) {
+        return failures.getOrDefault(key, 0) >= maxAttemptsPerCall;
+    }
+
+    /**
+     * Marks the run as complete by deleting the journal, the next run starts a new transcription.
+     */
+    public synchronized void complete() {
+        close();
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            logger.error("An error occurred when deleting the journal: {}", e.getMessage());
+            throw new RuntimeException("Exception thrown in JobJournal, complete " + e.getMessage());
+        }
+        transcriptionUrls.clear();
+        logger.info("Run complete, journal deleted");
+    }
+
+    /**
+     * Forces the journal to disk and closes it.
+     */
+    public synchronized void close() {
+        if (channel == null) {
+            return;
+        }
+        sync();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.error("An error occurred when closing the journal: {}", e.getMessage());
+        }
+        channel = null;
+    }
+
+    private synchronized void write(String type, String value) {
+        if (channel == null) {
+            throw new IllegalStateException("The journal is not started");
+        }
+        try {
+            channel.write(ByteBuffer.wrap((type + "\t" + value + "\n").getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            logger.error("An error occurred when writing to the journal: {}", e.getMessage());
+            throw new RuntimeException("Exception thrown in JobJournal, write " + e.getMessage());
+        }
+        if (++unsyncedRecords >= syncEveryRecords) {
+            sync();
+        }
+    }
+
+    private synchronized void sync() {
+        if (channel == null || unsyncedRecords == 0) {
+            return;
+        }
+        try {
+            channel.force(false);
+            unsyncedRecords = 0;
+        } catch (IOException e) {
+            logger.error("An error occurred when syncing the journal: {}", e.getMessage());
+        }
+    }
+
+    private void open(StandardOpenOption mode) {
+        try {
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, mode);
+        } catch (IOException e) {
+            logger.error("An error occurred when opening the journal: {}", e.getMessage());
+            throw new RuntimeException("Exception thrown in JobJournal, open " + e.getMessage());
+        }
+    }
+
+    private void load() {
+        if (!Files.exists(path)) {
+            return;
+        }
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            logger.error("An error occurred when reading the journal: {}", e.getMessage());
+            throw new RuntimeException("Exception thrown in JobJournal, load " + e.getMessage());
+        }
+        for (String line : lines) {
+            String[] record = line.split("\t", 2);
+            if (record.length != 2) {
+                continue; // The last line may be cut off by a crash
+            }
+            switch (record[0]) {
+                case SUBMITTED -> transcriptionUrls.add(record[1]);
+                case TRANSCRIPTION_DONE -> doneTranscriptionUrls.add(record[1]);
+                case FAILED -> failures.merge(record[1], 1, Integer::sum);
+                default -> {
+                    try {
+                        Stage stage = Stage.valueOf(record[0]);
+                        stages.merge(record[1], stage, (old, current) -> old.compareTo(current) >= 0 ? old : current);
+                    } catch (IllegalArgumentException e) {
+                        logger.warn("Skipping unknown journal record: {}", line);
+                    }
+                }
+            }
+        }
+    }
+}
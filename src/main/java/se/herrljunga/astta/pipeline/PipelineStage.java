@@ -0,0 +1,410 @@
+package se.herrljunga.astta.pipeline;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.herrljunga.astta.metrics.Metrics;
+import se.herrljunga.astta.utils.Config;
+import se.herrljunga.astta.utils.ConfigLoader;
+import se.herrljunga.astta.utils.ThreadPools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * The PipelineStage class.
+ * <p>
+ * A stage takes items from an input queue, runs a task on each item with a fixed number of worker threads
+ * and puts the result on an output queue. The output queue is bounded, so a slow stage makes the stages
+ * before it wait instead of piling up work in memory (backpressure).
+ * <p>
+ * A task may return null to drop an item, for example when a file should not continue down the pipeline.
+ * A failing item is logged and recorded, and the stage continues with the next item.
+ * <p>
+ * A stage that calls an external service can be given the Semaphore of that service, see ThreadPools.getServiceLimit(),
+ * the task then only runs while it holds a permit. With virtual threads (execution.mode "virtual") the stage does not
+ * have a fixed number of workers: one dispatcher takes items from the input queue and runs each item on its own
+ * virtual thread, up to maxInFlightPerStage items at a time, and the service Semaphore limits the calls to the service.
+ * <p>
+ * The time of the task of each item is recorded in the histogram stage_&lt;name&gt;_millis, and the time an item waits for
+ * a permit of its service in stage_&lt;name&gt;_permit_wait_millis, see Metrics.
+ * <p>
+ * The number of workers can be changed while the stage runs, see resize().
+ * <p>
+ * A batch stage runs its task on up to batchSize items at a time instead of one, for tasks a service can do for many
+ * items in one request. A worker takes the items that are waiting, and waits up to a poll interval for more
+ * while the batch is not full. The whole batch holds one permit of the service.
+ * The task reports the items that failed in its BatchResult.
+ *
+ * @param <I> The type of items the stage consumes.
+ * @param <O> The type of items the stage produces.
+ */
+public class PipelineStage<I, O> {
+    private static final long POLL_INTERVAL_MILLIS = 200;
+    private final String name;
+    private volatile int workers;
+    private final AtomicInteger runningWorkers = new AtomicInteger();
+    private final BlockingQueue<I> input;
+    private final BlockingQueue<O> output;
+    private final Function<I, O> task;
+    private final int batchSize;
+    private final Function<List<I>, BatchResult<O>> batchTask;
+    private final Function<I, String> describe;
+    private final Semaphore serviceLimit;
+    private final boolean virtual;
+    private final Semaphore inFlight;
+    private final ExecutorService executorService;
+    private final CountDownLatch finished;
+    private final List<Exception> failures = Collections.synchronizedList(new ArrayList<>());
+    private volatile boolean inputClosed = false;
+    private static Config config = ConfigLoader.loadConfig();
+    private final Logger logger = LoggerFactory.getLogger(PipelineStage.class);
+
+    /**
+     * The result of the task of a batch stage.
+     *
+     * @param results  The items to put on the output queue.
+     * @param failures One exception for each item that failed, already logged by the task.
+     * @param <O>      The type of items the stage produces.
+     */
+    public record BatchResult<O>(List<O> results, List<Exception> failures) {
+    }
+
+    /**
+     * Constructs a new PipelineStage that does not call a limited service.
+     *
+     * @param name     The name of the stage, used in logs.
+     * @param workers  The number of worker threads.
+     * @param input    The queue the stage takes items from.
+     * @param output   The queue the stage puts results on.
+     * @param task     The task to run on each item.
+     * @param describe Describes an item in logs.
+     */
+    public PipelineStage(String name, int workers, BlockingQueue<I> input, BlockingQueue<O> output, Function<I, O> task, Function<I, String> describe) {
+        this(name, workers, null, input, output, task, describe);
+    }
+
+    /**
+     * Constructs a new PipelineStage.
+     *
+     * @param name         The name of the stage, used in logs.
+     * @param workers      The number of worker threads when running on platform threads.
+     * @param serviceLimit The Semaphore of the service the task calls, or null if it calls no limited service.
+     * @param input        The queue the stage takes items from.
+     * @param output       The queue the stage puts results on.
+     * @param task         The task to run on each item.
+     * @param describe     Describes an item in logs.
+     */
+    public PipelineStage(String name, int workers, Semaphore serviceLimit, BlockingQueue<I> input, BlockingQueue<O> output,
+                         Function<I, O> task, Function<I, String> describe) {
+        this(name, workers, serviceLimit, input, output, task, 1, null, describe);
+    }
+
+    /**
+     * Constructs a new batch PipelineStage.
+     *
+     * @param name         The name of the stage, used in logs.
+     * @param workers      The number of worker threads when running on platform threads.
+     * @param batchSize    The largest number of items given to the task at a time.
+     * @param serviceLimit The Semaphore of the service the task calls, or null if it calls no limited service.
+     * @param input        The queue the stage takes items from.
+     * @param output       The queue the stage puts results on.
+     * @param batchTask    The task to run on each batch of items.
+     * @param describe     Describes an item in logs.
+     */
+    public PipelineStage(String name, int workers, int batchSize, Semaphore serviceLimit, BlockingQueue<I> input, BlockingQueue<O> output,
+                         Function<List<I>, BatchResult<O>> batchTask, Function<I, String> describe) {
+        this(name, workers, serviceLimit, input, output, null, Math.max(1, batchSize), batchTask, describe);
+    }
+
+    private PipelineStage(String name, int workers, Semaphore serviceLimit, BlockingQueue<I> input, BlockingQueue<O> output,
+                          Function<I, O> task, int batchSize, Function<List<I>, BatchResult<O>> batchTask, Function<I, String> describe) {
+        this.name = name;
+        this.workers = workers;
+        this.serviceLimit = serviceLimit;
+        this.input = input;
+        this.output = output;
+        this.task = task;
+        this.batchSize = batchSize;
+        this.batchTask = batchTask;
+        this.describe = describe;
+        // A stage without a service limit is CPU-bound or local, it keeps its platform workers
+        this.virtual = serviceLimit != null && ThreadPools.useVirtualThreads();
+        // The platform pool grows with the workers started by resize()
+        this.executorService = virtual ? ThreadPools.newExecutor(workers) : Executors.newCachedThreadPool();
+        this.inFlight = virtual ? new Semaphore(config.execution.maxInFlightPerStage) : null;
+        this.finished = new CountDownLatch(1);
+    }
+
+    /**
+     * Starts the worker threads of the stage, or the dispatcher when running on virtual threads.
+     */
+    public void start() {
+        if (virtual) {
+            logger.info("Starting stage {} on virtual threads", name);
+            executorService.submit(this::dispatch);
+            return;
+        }
+        logger.info("Starting stage {} with {} workers", name, workers);
+        int count = workers;
+        runningWorkers.set(count);
+        for (int i = 0; i < count; i++) {
+            executorService.submit(this::work);
+        }
+    }
+
+    /**
+     * Changes the number of worker threads of a running stage, for example after the configuration has been reloaded.
+     * New workers start right away, and workers above the new number stop after their current item.
+     * A stage on virtual threads has no fixed number of workers, its service Semaphore limits it instead.
+     *
+     * @param workers The number of worker threads, at least 1.
+     */
+    public void resize(int workers) {
+        int target = Math.max(1, workers);
+        if (virtual || target == this.workers) {
+            return;
+        }
+        logger.info("Resizing stage {} from {} to {} workers", name, this.workers, target);
+        this.workers = target;
+        while (true) {
+            int running = runningWorkers.get();
+            if (running == 0 || running >= target) {
+                // Not started or already done, or the extra workers stop by themselves
+                return;
+            }
+            if (runningWorkers.compareAndSet(running, running + 1)) {
+                try {
+                    executorService.submit(this::work);
+                } catch (RejectedExecutionException e) {
+                    runningWorkers.decrementAndGet();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Tells the stage that no more items will be put on its input queue.
+     * The workers finish when the queue has been drained.
+     */
+    public void closeInput() {
+        inputClosed = true;
+    }
+
+    /**
+     * Waits for all workers to finish and shuts down the stage.
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    public void awaitCompletion() throws InterruptedException {
+        finished.await();
+        executorService.shutdown();
+        if (virtual) {
+            // The dispatcher is done, wait for the items it started
+            executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        logger.info("Stage {} done, failed items: {}", name, failures.size());
+    }
+
+    /**
+     * Stops the workers without waiting for the input queue to be drained.
+     */
+    public void shutdownNow() {
+        executorService.shutdownNow();
+    }
+
+    /**
+     * Gets the exceptions thrown by the task, one for each failed item.
+     *
+     * @return The failures of this stage.
+     */
+    public List<Exception> getFailures() {
+        return failures;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    private void work() {
+        boolean retired = false;
+        try {
+            while (true) {
+                if (retire()) {
+                    retired = true;
+                    break;
+                }
+                I item = input.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (item == null) {
+                    if (inputClosed && input.isEmpty()) {
+                        break;
+                    }
+                    continue;
+                }
+                if (batchTask != null) {
+                    processBatch(fillBatch(item));
+                } else {
+                    process(item);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (!retired && runningWorkers.decrementAndGet() == 0) {
+                finished.countDown();
+            }
+        }
+    }
+
+    /**
+     * Stops this worker if more workers are running than the stage should have. The last worker never retires.
+     *
+     * @return True if the worker should stop.
+     */
+    private boolean retire() {
+        while (true) {
+            int running = runningWorkers.get();
+            if (running <= workers) {
+                return false;
+            }
+            if (runningWorkers.compareAndSet(running, running - 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void dispatch() {
+        try {
+            while (true) {
+                I item = input.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (item == null) {
+                    if (inputClosed && input.isEmpty()) {
+                        break;
+                    }
+                    continue;
+                }
+                List<I> batch = batchTask != null ? fillBatch(item) : null;
+                inFlight.acquire(); // Keeps the input queue as backpressure when the stage is full
+                executorService.submit(() -> {
+                    try {
+                        if (batch != null) {
+                            processBatch(batch);
+                        } else {
+                            process(item);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            finished.countDown();
+        }
+    }
+
+    private void process(I item) throws InterruptedException {
+        O result;
+        try {
+            result = runTask(item);
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            logger.error("Stage {} failed for {}: {}", name, describe.apply(item), e.getMessage());
+            failures.add(e);
+            return;
+        }
+        if (result != null && output != null) {
+            output.put(result); // Blocks while the next stage is full
+        }
+    }
+
+    /**
+     * Takes the items waiting after the first item of a batch, and waits up to a poll interval for more while the
+     * batch is not full and the input is open.
+     */
+    private List<I> fillBatch(I first) throws InterruptedException {
+        List<I> batch = new ArrayList<>(batchSize);
+        batch.add(first);
+        input.drainTo(batch, batchSize - 1);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(POLL_INTERVAL_MILLIS);
+        while (batch.size() < batchSize && !inputClosed) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            I item = input.poll(remaining, TimeUnit.NANOSECONDS);
+            if (item == null) {
+                break;
+            }
+            batch.add(item);
+            input.drainTo(batch, batchSize - batch.size());
+        }
+        return batch;
+    }
+
+    private void processBatch(List<I> batch) throws InterruptedException {
+        BatchResult<O> result;
+        try {
+            result = runTask(() -> batchTask.apply(batch));
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            // The whole batch failed
+            for (I item : batch) {
+                logger.error("Stage {} failed for {}: {}", name, describe.apply(item), e.getMessage());
+                failures.add(e);
+            }
+            return;
+        }
+        failures.addAll(result.failures());
+        if (output != null) {
+            for (O item : result.results()) {
+                output.put(item); // Blocks while the next stage is full
+            }
+        }
+    }
+
+    private O runTask(I item) throws InterruptedException {
+        return runTask(() -> task.apply(item));
+    }
+
+    private <R> R runTask(Supplier<R> work) throws InterruptedException {
+        if (serviceLimit == null) {
+            return timedTask(work);
+        }
+        // The permit is released before the result is put on the output queue,
+        // so a stage waiting for a full queue does not hold permits a later stage needs
+        long waitStart = System.nanoTime();
+        serviceLimit.acquire();
+        Metrics.recordSince("stage_" + name + "_permit_wait_millis", waitStart);
+        try {
+            return timedTask(work);
+        } finally {
+            serviceLimit.release();
+        }
+    }
+
+    private <R> R timedTask(Supplier<R> work) {
+        long start = System.nanoTime();
+        try {
+            return work.get();
+        } finally {
+            Metrics.recordSince("stage_" + name + "_millis", start);
+        }
+    }
+}
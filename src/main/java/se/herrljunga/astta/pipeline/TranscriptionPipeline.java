@@ -0,0 +1,655 @@
+package se.herrljunga.astta.pipeline;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.herrljunga.astta.analyze.AnalyzeResult;
+import se.herrljunga.astta.analyze.BatchOpenAIAnalyzer;
+import se.herrljunga.astta.analyze.CallOutcome;
+import se.herrljunga.astta.analyze.OpenAIAnalyzer;
+import se.herrljunga.astta.analyze.RunReport;
+import se.herrljunga.astta.analyze.TokenBudgetExceededException;
+import se.herrljunga.astta.filehandler.NdjsonOutputWriter;
+import se.herrljunga.astta.filehandler.StorageHandler;
+import se.herrljunga.astta.filehandler.StoredFile;
+import se.herrljunga.astta.speechtotext.ProcessedManifest;
+import se.herrljunga.astta.speechtotext.Transcriber;
+import se.herrljunga.astta.speechtotext.TranscriptParser;
+import se.herrljunga.astta.utils.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+/**
+ * The TranscriptionPipeline class.
+ * <p>
+ * This class runs the whole chain from transcription to saved analysis as a pipeline of stages
+ * (discover, download, parse, analyze, upload, delete) connected by bounded queues.
+ * Each transcribed file is picked up as soon as the Speech to Text service has written it to the temp container,
+ * so analysis starts while the rest of the batch is still being transcribed.
+ * <p>
+ * The number of workers for each stage is set in the pipeline section of config.yaml,
+ * the analyze stage uses maxThreadsForAnalysis. The parsed calls wait in a BoundedPriorityQueue, so the calls with
+ * the most estimated tokens are analyzed first. The stages that call Blob Storage or OpenAI share a limit per service,
+ * which is what limits them when execution.mode runs them on virtual threads, see PipelineStage.
+ * With openAI.mode "batch" the parsed calls are collected and analyzed with one batch job when every call is parsed,
+ * see BatchOpenAIAnalyzer, and the analyzed calls then go on to the upload stage.
+ * With streamTranscripts the transcriptions are parsed while they are read from the temp container,
+ * so they are never written to the local disk and there is no download stage.
+ * <p>
+ * Every finished stage of a call is recorded in a JobJournal. If a run fails, the next run resumes it:
+ * the transcription of the failed run is reused and the stages a call has already finished are skipped.
+ * A transcription job that fails does not stop the others. The run reports it as a failure, and since its audio files
+ * stay in the audio source, they are sent again with the next new transcription.
+ * The analysis of a call is not kept on the local disk, a call that was analyzed but not saved is found in the AnalysisCache.
+ * <p>
+ * With output.format "ndjson" the analyzed calls are appended to a few NDJSON blobs instead of one blob per call,
+ * see NdjsonOutputWriter. Every run has its own writer, which is closed when the run ends, so the output settings
+ * of a reloaded configuration apply from the next run.
+ * Calls are identified in the journal by the file name of their transcription.
+ * <p>
+ * Every audio file whose analysis has been saved, or that has been given up, is recorded in the ProcessedManifest
+ * before it is deleted, so delta mode does not transcribe it again if the delete fails. The delete stage is a batch stage,
+ * it deletes the audio files of up to blobStorage.deleteBatchSize saved calls with one bulk delete.
+ * A call that is not analyzed because the token budget of the run is used up is not a failure. It is dropped from the
+ * run without being counted against journal.maxAttemptsPerCall, and its audio file stays in the audio source for the
+ * next run.
+ * <p>
+ * When the configuration is reloaded during a run, the stages are resized to the new thread counts, see applyConfig().
+ */
+public class TranscriptionPipeline {
+    private static Config config = ConfigLoader.loadConfig();
+    private final Transcriber transcriber;
+    private final StorageHandler tempStorage;
+    private final StorageHandler reportStorage;
+    private final StorageHandler powerBiStorage;
+    private final StorageHandler audioSource;
+    private final OpenAIAnalyzer analyzer;
+    private final BatchOpenAIAnalyzer batchAnalyzer;
+    private final JobJournal journal;
+    private final ProcessedManifest manifest;
+    private final String pathToTemp;
+    private final String analyzedJsonSaveDirectory;
+    private volatile NdjsonOutputWriter outputWriter;
+    private final Map<String, StoredFile> sourceFiles = new ConcurrentHashMap<>();
+    private final Set<String> failedKeys = ConcurrentHashMap.newKeySet();
+    private final Set<String> budgetSkippedKeys = ConcurrentHashMap.newKeySet();
+    private volatile RunReport runReport = new RunReport();
+    private final List<Exception> batchFailures = Collections.synchronizedList(new ArrayList<>());
+    private final List<Exception> transcriptionFailures = Collections.synchronizedList(new ArrayList<>());
+    private volatile List<PipelineStage<?, ?>> runningStages = List.of();
+    private final Logger logger = LoggerFactory.getLogger(TranscriptionPipeline.class);
+
+    /**
+     * Constructs a new TranscriptionPipeline.
+     *
+     * @param transcriber      The transcriber used to start the transcription and check its status, see BatchTranscriber.
+     * @param tempStorage      The StorageHandler for the temp container the transcriptions are written to.
+     * @param reportStorage    The StorageHandler for transcription reports.
+     * @param powerBiStorage   The StorageHandler for the analyzed calls.
+     * @param audioSource      The StorageHandler for the audio source.
+     * @param analyzer         The OpenAIAnalyzer used to analyze the calls.
+     * @param batchAnalyzer    The BatchOpenAIAnalyzer used to analyze all calls in one batch job, or null to analyze each call when it is parsed.
+     * @param journal          The journal the progress of each call is recorded in.
+     * @param manifest         The manifest the handled audio files are recorded in.
+     */
+    public TranscriptionPipeline(Transcriber transcriber, StorageHandler tempStorage, StorageHandler reportStorage,
+                                 StorageHandler powerBiStorage, StorageHandler audioSource, OpenAIAnalyzer analyzer,
+                                 BatchOpenAIAnalyzer batchAnalyzer, JobJournal journal, ProcessedManifest manifest) {
+        this(transcriber, tempStorage, reportStorage, powerBiStorage, audioSource, analyzer, batchAnalyzer, journal, manifest,
+                config.utils.pathToTemp, config.utils.analyzedJsonSaveDirectory);
+    }
+
+    /**
+     * Constructs a new TranscriptionPipeline with its own temp directory instead of utils.pathToTemp, used by LoadTest
+     * so a simulated run doesn't delete the temp directory of the application.
+     *
+     * @param transcriber               The transcriber used to start the transcription and check its status.
+     * @param tempStorage               The StorageHandler for the temp container the transcriptions are written to.
+     * @param reportStorage             The StorageHandler for transcription reports.
+     * @param powerBiStorage            The StorageHandler for the analyzed calls.
+     * @param audioSource               The StorageHandler for the audio source.
+     * @param analyzer                  The OpenAIAnalyzer used to analyze the calls.
+     * @param batchAnalyzer             The BatchOpenAIAnalyzer, or null to analyze each call when it is parsed.
+     * @param journal                   The journal the progress of each call is recorded in.
+     * @param manifest                  The manifest the handled audio files are recorded in.
+     * @param pathToTemp                The temp directory the transcriptions are downloaded to, ending with a separator.
+     * @param analyzedJsonSaveDirectory The directory of the analyzed files, inside the temp directory.
+     */
+    public TranscriptionPipeline(Transcriber transcriber, StorageHandler tempStorage, StorageHandler reportStorage,
+                                 StorageHandler powerBiStorage, StorageHandler audioSource, OpenAIAnalyzer analyzer,
+                                 BatchOpenAIAnalyzer batchAnalyzer, JobJournal journal, ProcessedManifest manifest,
+                                 String pathToTemp, String analyzedJsonSaveDirectory) {
+        this.transcriber = transcriber;
+        this.tempStorage = tempStorage;
+        this.reportStorage = reportStorage;
+        this.powerBiStorage = powerBiStorage;
+        this.audioSource = audioSource;
+        this.analyzer = analyzer;
+        this.batchAnalyzer = batchAnalyzer;
+        this.journal = journal;
+        this.manifest = manifest;
+        this.pathToTemp = pathToTemp;
+        this.analyzedJsonSaveDirectory = analyzedJsonSaveDirectory;
+    }
+
+    /**
+     * Starts a transcription of every file in the audio source and runs every transcribed file through the pipeline.
+     *
+     * @return The calls that were analyzed, saved and deleted from the audio source.
+     * @throws RuntimeException if the transcription fails or if one or more files failed in a stage.
+     * @see #run(List)
+     */
+    public List<AnalyzedCall> run() {
+        return run(audioSource.listFileDetails());
+    }
+
+    /**
+     * Starts a transcription of the given audio files and runs every transcribed file through the pipeline.
+     * <p>
+     * The method returns when the transcription is done and every discovered file has passed all stages.
+     * A file that fails in one stage does not stop the other files.
+     * If the journal has an unfinished run, that run is resumed instead of starting a new transcription.
+     * The journal is completed when no file failed, or every failed file has been given up.
+     * An audio file that got no transcription is counted in the ProcessedManifest and given up after
+     * journal.maxAttemptsPerCall runs, see recordTranscriptionFailures(). So is an audio file whose transcription
+     * could not be submitted.
+     * <p>
+     * The same pipeline can run many times, see IngestionDaemon. Every run has its own RunReport, the token budget of OpenAIAnalyzer is shared by the runs
+     * of one openAI.tokenBudgetWindowHours window.
+     *
+     * @param files The audio files to transcribe, from the audio source.
+     * @return The calls that were analyzed, saved and deleted from the audio source.
+     * @throws RuntimeException if the transcription fails or if one or more files failed in a stage.
+     */
+    public List<AnalyzedCall> run(List<StoredFile> files) {
+        sourceFiles.clear();
+        failedKeys.clear();
+        batchFailures.clear();
+        transcriptionFailures.clear();
+        budgetSkippedKeys.clear();
+        runReport = new RunReport();
+        for (StoredFile sourceFile : files) {
+            sourceFiles.put(sourceFile.name(), sourceFile);
+        }
+        List<String> transcriptionUrls;
+        boolean resumed = journal.hasPendingWork();
+        if (resumed) {
+            Utils.ensureTempDirectory(pathToTemp, analyzedJsonSaveDirectory);
+            transcriptionUrls = journal.getTranscriptionUrls();
+            journal.resume();
+        } else {
+            Utils.createTempDirectory(pathToTemp, analyzedJsonSaveDirectory);
+            try {
+                transcriptionUrls = transcriber.submitTranscriptions(new ArrayList<>(sourceFiles.values()));
+            } catch (RuntimeException e) {
+                // Counted like a transcription that failed, so files that can never be submitted are given up
+                logger.error("Could not submit the transcriptions: {}", e.getMessage());
+                recordTranscriptionFailures(sourceFiles.values(), "could not submit the transcription");
+                throw e;
+            }
+            journal.start(transcriptionUrls);
+        }
+
+        Config.Output output = ConfigLoader.loadConfig().output;
+        outputWriter = "ndjson".equals(output.format)
+                ? new NdjsonOutputWriter(powerBiStorage, output.prefix, output.partitionByDepartment,
+                output.flushKilobytes * 1024, output.flushIntervalMillis)
+                : null;
+
+        int capacity = config.pipeline.queueCapacity;
+        BlockingQueue<String> discovered = new ArrayBlockingQueue<>(capacity);
+        BlockingQueue<String> downloaded = new ArrayBlockingQueue<>(capacity);
+        // The largest calls are analyzed first, so a long call does not start last and hold up the end of the run
+        BlockingQueue<TranscribedCallInformation> parsed = new BoundedPriorityQueue<>(capacity, analyzer::estimateTokens);
+        BlockingQueue<AnalyzedCall> analyzed = new ArrayBlockingQueue<>(capacity);
+        BlockingQueue<AnalyzedCall> uploaded = new ArrayBlockingQueue<>(capacity);
+        BlockingQueue<AnalyzedCall> done = new LinkedBlockingQueue<>();
+
+        // In stream mode the transcriptions are parsed straight from the temp container, without the download stage
+        boolean stream = config.pipeline.streamTranscripts;
+        Semaphore blobStorage = ThreadPools.getServiceLimit(ThreadPools.Service.BLOB_STORAGE);
+        List<PipelineStage<?, ?>> stages = new ArrayList<>();
+        if (!stream) {
+            stages.add(new PipelineStage<>("download", config.pipeline.downloadThreads, blobStorage, discovered, downloaded,
+                    journaled(JobJournal.Stage.DOWNLOADED, this::download, Utils::removePathFromFilename), blobName -> blobName));
+        }
+        stages.add(new PipelineStage<>("parse", config.pipeline.parseThreads, stream ? blobStorage : null, stream ? discovered : downloaded, parsed,
+                journaled(null, stream ? this::parseStream : this::parse, Utils::removePathFromFilename), Utils::removePathFromFilename));
+        // In batch mode the analyze stage only collects the calls, they are sent as one batch job when parsing is done
+        List<TranscribedCallInformation> batchCalls = Collections.synchronizedList(new ArrayList<>());
+        if (batchAnalyzer != null) {
+            stages.add(new PipelineStage<>("analyze", 1, parsed, analyzed,
+                    journaled(JobJournal.Stage.ANALYZED, call -> collectForBatch(call, batchCalls), TranscriptionPipeline::key), TranscriptionPipeline::key));
+        } else {
+            stages.add(new PipelineStage<>("analyze", config.maxThreadsForAnalysis, ThreadPools.getServiceLimit(ThreadPools.Service.OPENAI), parsed, analyzed,
+                    journaled(JobJournal.Stage.ANALYZED, this::analyze, TranscriptionPipeline::key), TranscriptionPipeline::key));
+        }
+        stages.add(new PipelineStage<>("upload", config.pipeline.uploadThreads, blobStorage, analyzed, uploaded,
+                journaled(JobJournal.Stage.UPLOADED, this::upload, TranscriptionPipeline::key), TranscriptionPipeline::key));
+        stages.add(new PipelineStage<>("delete", config.pipeline.deleteThreads, config.blobStorage.deleteBatchSize, blobStorage, uploaded, done,
+                this::deleteSources, TranscriptionPipeline::key));
+        stages.forEach(PipelineStage::start);
+        runningStages = stages;
+
+        try {
+            Set<String> transcribed = discover(transcriptionUrls, discovered);
+            // A resumed run did not submit the files it listed, so only a new run can tell which files got no transcription
+            if (!resumed) {
+                recordMissingTranscriptions(transcribed);
+            }
+            // Close the stages in order, each one drains its queue before the next is closed
+            for (var stage : stages) {
+                stage.closeInput();
+                stage.awaitCompletion();
+                if (batchAnalyzer != null && stage.getName().equals("analyze")) {
+                    analyzeBatch(batchCalls, analyzed);
+                }
+            }
+        } catch (InterruptedException e) {
+            stages.forEach(PipelineStage::shutdownNow);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Exception thrown in TranscriptionPipeline, run " + e.getMessage());
+        } catch (RuntimeException e) {
+            stages.forEach(PipelineStage::shutdownNow);
+            throw e;
+        } finally {
+            runningStages = List.of();
+            if (outputWriter != null) {
+                outputWriter.close();
+                outputWriter = null;
+            }
+        }
+
+        List<AnalyzedCall> analyzedCalls = new ArrayList<>(done);
+        int failed = stages.stream().mapToInt(stage -> stage.getFailures().size()).sum() + batchFailures.size() + transcriptionFailures.size();
+        logger.info("Pipeline done, analyzed calls: {}, failed files: {}", analyzedCalls.size(), failed);
+        if (!budgetSkippedKeys.isEmpty()) {
+            logger.warn("The token budget of the run is used up, {} calls are left for the next run", budgetSkippedKeys.size());
+        }
+        if (failedKeys.stream().allMatch(journal::isGivenUp)) {
+            for (String key : failedKeys) {
+                logger.error("Giving up {} after too many failed attempts", key);
+                recordInManifest(Utils.getFileName(key), ProcessedManifest.Status.GIVEN_UP);
+            }
+            journal.complete();
+        } else {
+            journal.close();
+        }
+        if (failed > 0) {
+            StringBuilder sb = new StringBuilder();
+            for (var failure : transcriptionFailures) {
+                sb.append("transcribe: ").append(failure.getMessage()).append("\n");
+            }
+            for (var stage : stages) {
+                for (var failure : stage.getFailures()) {
+                    sb.append(stage.getName()).append(": ").append(failure.getMessage()).append("\n");
+                }
+            }
+            for (var failure : batchFailures) {
+                sb.append("analyze: ").append(failure.getMessage()).append("\n");
+            }
+            throw new RuntimeException(failed + " file(s) failed in the pipeline:\n" + sb);
+        }
+        return analyzedCalls;
+    }
+
+    /**
+     * Gets the temp directory the transcriptions are downloaded to.
+     *
+     * @return The path of the temp directory.
+     */
+    public String getPathToTemp() {
+        return pathToTemp;
+    }
+
+    /**
+     * Gets the outcome of every call analyzed in this run, calls reloaded from an earlier run are not included.
+     *
+     * @return The report of the run.
+     */
+    public RunReport getRunReport() {
+        return runReport;
+    }
+
+    /**
+     * Puts every new file in the temp container on the discovered queue until all transcriptions are done.
+     * <p>
+     * The transcriptions are awaited in the background, see Transcriber.awaitTranscription().
+     * A transcription that fails is recorded as a failure of the run, and the other transcriptions continue.
+     * The container is listed every discoveryIntervalSeconds, and right away when a transcription finishes,
+     * so the last files of a finished shard go downstream without waiting for the other shards.
+     * A transcription is marked done before the container is listed, so no file is missed in the last listing.
+     *
+     * @param transcriptionUrls The URLs of the transcriptions.
+     * @param discovered        The queue to put the blob names on.
+     * @return The names of the blobs found in the temp container.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    private Set<String> discover(List<String> transcriptionUrls, BlockingQueue<String> discovered) throws InterruptedException {
+        Set<String> seen = new HashSet<>();
+        Map<String, CompletableFuture<String>> running = new HashMap<>();
+        for (String transcriptionUrl : transcriptionUrls) {
+            if (!journal.isTranscriptionDone(transcriptionUrl)) {
+                running.put(transcriptionUrl, transcriber.awaitTranscription(transcriptionUrl));
+            }
+        }
+        while (true) {
+            for (Iterator<Map.Entry<String, CompletableFuture<String>>> iterator = running.entrySet().iterator(); iterator.hasNext(); ) {
+                Map.Entry<String, CompletableFuture<String>> transcription = iterator.next();
+                if (transcription.getValue().isDone()) {
+                    try {
+                        transcription.getValue().get();
+                        logger.info("Transcription done: {}", transcription.getKey());
+                    } catch (ExecutionException e) {
+                        // Its audio files stay in the audio source, the next run transcribes them again
+                        logger.error("Transcription failed: {}: {}", transcription.getKey(), e.getCause().getMessage());
+                        transcriptionFailures.add(new RuntimeException("Exception thrown in TranscriptionPipeline, discover " + e.getCause().getMessage()));
+                    }
+                    // A failed transcription is done too, a resumed run does not wait for it again
+                    journal.recordTranscriptionDone(transcription.getKey());
+                    iterator.remove();
+                }
+            }
+            for (String blobName : tempStorage.listFiles()) {
+                String key = Utils.removePathFromFilename(blobName);
+                if (!seen.add(blobName) || journal.hasReached(key, JobJournal.Stage.SOURCE_DELETED) || journal.isGivenUp(key)) {
+                    continue;
+                }
+                logger.info("Discovered transcribed file: {}", blobName);
+                journal.record(JobJournal.Stage.TRANSCRIBED, key);
+                discovered.put(blobName); // Blocks while the download stage is full
+            }
+            if (running.isEmpty()) {
+                logger.info("Transcriptions done, discovered files: {}", seen.size());
+                return seen;
+            }
+            // Wait for the next listing, or less if a transcription finishes
+            try {
+                CompletableFuture.anyOf(running.values().toArray(new CompletableFuture[0]))
+                        .get(ConfigLoader.loadConfig().pipeline.discoveryIntervalSeconds, TimeUnit.SECONDS);
+            } catch (TimeoutException | ExecutionException e) {
+                // Checked at the top of the loop
+            }
+        }
+    }
+
+    /**
+     * Records a failure for every audio file of the run that got no transcription, either because the service
+     * reported the file as failed or because the whole transcription failed.
+     *
+     * @param blobNames The names of the blobs found in the temp container, "&lt;audio file name&gt;.json" for every transcription.
+     */
+    private void recordMissingTranscriptions(Set<String> blobNames) {
+        Set<String> transcribed = new HashSet<>();
+        for (String blobName : blobNames) {
+            if (!blobName.contains("_report")) {
+                transcribed.add(Utils.getFileName(blobName));
+            }
+        }
+        List<StoredFile> missing = new ArrayList<>();
+        for (StoredFile sourceFile : sourceFiles.values()) {
+            if (!transcribed.contains(sourceFile.name())) {
+                missing.add(sourceFile);
+            }
+        }
+        recordTranscriptionFailures(missing, "no transcription");
+    }
+
+    /**
+     * Records a failed transcription of audio files in the ProcessedManifest and as failures of the run.
+     * The files stay in the audio source, and a file that has failed journal.maxAttemptsPerCall times is recorded
+     * as GIVEN_UP, so it is not sent to transcription again until it is uploaded with new content.
+     * Files that are already in the manifest are not counted.
+     *
+     * @param files   The audio files.
+     * @param problem What went wrong, for the messages.
+     */
+    private void recordTranscriptionFailures(Collection<StoredFile> files, String problem) {
+        int maxAttempts = ConfigLoader.loadConfig().journal.maxAttemptsPerCall;
+        for (StoredFile sourceFile : files) {
+            if (manifest.contains(sourceFile)) {
+                continue;
+            }
+            int attempts = manifest.recordTranscriptionFailure(sourceFile);
+            logger.error("Failed transcription of {}, attempt {} of {}: {}", sourceFile.name(), attempts, maxAttempts, problem);
+            RuntimeException failure = new RuntimeException("Exception thrown in TranscriptionPipeline, recordTranscriptionFailures " + problem + " of "
+                    + sourceFile.name() + " after " + attempts + " attempt(s)");
+            transcriptionFailures.add(failure);
+            runReport.add(CallOutcome.failed(sourceFile.name(), 0, failure));
+            if (attempts >= maxAttempts) {
+                logger.error("Giving up {} after too many failed transcriptions", sourceFile.name());
+                manifest.record(sourceFile, ProcessedManifest.Status.GIVEN_UP);
+            }
+        }
+    }
+
+    /**
+     * Resizes the stages of the running run to the thread counts of a reloaded configuration.
+     * The application registers it with ConfigLoader.addListener() once, so pipelines built by the tests are not resized.
+     *
+     * @param config The reloaded configuration.
+     */
+    public void applyConfig(Config config) {
+        for (PipelineStage<?, ?> stage : runningStages) {
+            switch (stage.getName()) {
+                case "download" -> stage.resize(config.pipeline.downloadThreads);
+                case "parse" -> stage.resize(config.pipeline.parseThreads);
+                case "analyze" -> stage.resize(batchAnalyzer != null ? 1 : config.maxThreadsForAnalysis);
+                case "upload" -> stage.resize(config.pipeline.uploadThreads);
+                case "delete" -> stage.resize(config.pipeline.deleteThreads);
+                default -> {
+                }
+            }
+        }
+    }
+
+    /**
+     * Wraps the task of a stage so a finished item is recorded in the journal, and a failed item is recorded as a failure.
+     * An item rejected by the token budget is dropped without being recorded as a failure.
+     *
+     * @param stage The stage to record when the task returns an item, or null to only record failures.
+     * @param task  The task of the stage.
+     * @param key   Gets the journal key of an item.
+     * @return The wrapped task.
+     */
+    private <I, O> Function<I, O> journaled(JobJournal.Stage stage, Function<I, O> task, Function<I, String> key) {
+        return item -> {
+            O result;
+            try {
+                result = task.apply(item);
+            } catch (TokenBudgetExceededException e) {
+                logger.warn("Not analyzing {}, the token budget of the run is used up", key.apply(item));
+                budgetSkippedKeys.add(key.apply(item));
+                return null;
+            } catch (RuntimeException e) {
+                failedKeys.add(key.apply(item));
+                journal.recordFailure(key.apply(item));
+                throw e;
+            }
+            if (stage != null && result != null) {
+                journal.record(stage, key.apply(item));
+            }
+            return result;
+        };
+    }
+
+    private static String key(TranscribedCallInformation call) {
+        return Utils.removePathFromFilename(call.getPath());
+    }
+
+    private static String key(AnalyzedCall analyzedCall) {
+        // The analyzed call is saved as <name of the transcription without .json>.json
+        return Utils.removePathFromFilename(analyzedCall.savePath());
+    }
+
+    private String download(String blobName) {
+        String localPath = pathToTemp + Utils.removePathFromFilename(blobName);
+        if (journal.hasReached(Utils.removePathFromFilename(blobName), JobJournal.Stage.DOWNLOADED) && Files.exists(Paths.get(localPath))) {
+            return localPath;
+        }
+        return tempStorage.fetchSingleFile(blobName);
+    }
+
+    private TranscribedCallInformation parse(String path) {
+        if (path.contains("_report")) {
+            reportStorage.saveSingleFileToStorage(path);
+            logger.info("Saved report");
+            return null;
+        }
+        return OpenAIAnalyzer.extractInformationFromTranscribedFile(path);
+    }
+
+    /**
+     * Parses a transcription while reading it from the temp container, reports are copied to the report container.
+     * The blob name is used as the path of the call.
+     */
+    private TranscribedCallInformation parseStream(String blobName) {
+        try (InputStream in = tempStorage.openInputStream(blobName)) {
+            if (blobName.contains("_report")) {
+                reportStorage.saveStreamToStorage(blobName, in);
+                logger.info("Saved report");
+                return null;
+            }
+            return TranscriptParser.parse(new InputStreamReader(in, StandardCharsets.UTF_8), blobName);
+        } catch (IOException e) {
+            logger.error("An error occurred when reading {} from the temp container: {}", blobName, e.getMessage());
+            throw new RuntimeException("Exception thrown in TranscriptionPipeline, parseStream " + e.getMessage());
+        }
+    }
+
+    /**
+     * Analyzes a call. A call that was analyzed in an earlier run that did not finish is found in the AnalysisCache,
+     * the analyzed calls are not kept on the local disk.
+     */
+    private AnalyzedCall analyze(TranscribedCallInformation call) {
+        long start = System.nanoTime();
+        try {
+            AnalyzeResult analyzedCallResult = analyzer.getAnalyzeResult(call);
+            AnalyzedCall analyzedCall = analyzer.buildJsonFile(analyzedCallResult, call);
+            runReport.add(CallOutcome.succeeded(key(call), analyzedCallResult, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+            return analyzedCall;
+        } catch (TokenBudgetExceededException e) {
+            runReport.add(CallOutcome.skipped(key(call), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), e));
+            throw e;
+        } catch (RuntimeException e) {
+            runReport.add(CallOutcome.failed(key(call), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), e));
+            throw e;
+        }
+    }
+
+    private AnalyzedCall collectForBatch(TranscribedCallInformation call, List<TranscribedCallInformation> batchCalls) {
+        batchCalls.add(call);
+        return null;
+    }
+
+    /**
+     * Analyzes the collected calls with one batch job and puts every analyzed call on the analyzed queue,
+     * see BatchOpenAIAnalyzer. A call that fails is recorded like a failure in the analyze stage,
+     * and a call rejected by the token budget is dropped like in the analyze stage.
+     *
+     * @param calls    The collected calls.
+     * @param analyzed The queue of the upload stage.
+     */
+    private void analyzeBatch(List<TranscribedCallInformation> calls, BlockingQueue<AnalyzedCall> analyzed) {
+        if (calls.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        batchAnalyzer.analyzeAll(new ArrayList<>(calls), new BatchOpenAIAnalyzer.Listener() {
+            @Override
+            public void onResult(TranscribedCallInformation call, AnalyzeResult result) {
+                try {
+                    AnalyzedCall analyzedCall = analyzer.buildJsonFile(result, call);
+                    journal.record(JobJournal.Stage.ANALYZED, key(call));
+                    runReport.add(CallOutcome.succeeded(key(call), result, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+                    analyzed.put(analyzedCall); // Blocks while the upload stage is full
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    onFailure(call, e);
+                } catch (RuntimeException e) {
+                    onFailure(call, e);
+                }
+            }
+
+            @Override
+            public void onFailure(TranscribedCallInformation call, Exception e) {
+                if (e instanceof TokenBudgetExceededException budgetExceeded) {
+                    logger.warn("Not analyzing {}, the token budget of the run is used up", key(call));
+                    budgetSkippedKeys.add(key(call));
+                    runReport.add(CallOutcome.skipped(key(call), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), budgetExceeded));
+                    return;
+                }
+                logger.error("Stage analyze failed for {}: {}", key(call), e.getMessage());
+                failedKeys.add(key(call));
+                journal.recordFailure(key(call));
+                runReport.add(CallOutcome.failed(key(call), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), e));
+                batchFailures.add(e);
+            }
+        });
+    }
+
+    private AnalyzedCall upload(AnalyzedCall analyzedCall) {
+        if (journal.hasReached(key(analyzedCall), JobJournal.Stage.UPLOADED)) {
+            return analyzedCall;
+        }
+        if (outputWriter != null) {
+            outputWriter.write(analyzedCall);
+        } else {
+            powerBiStorage.saveAnalyzedCallToStorage(analyzedCall);
+        }
+        return analyzedCall;
+    }
+
+    /**
+     * Deletes the audio files of saved calls from the audio source with one bulk delete, see StorageHandler.deleteFromStorage(List).
+     * Every call is recorded in the ProcessedManifest first, and only the calls whose audio file was deleted
+     * are journaled as SOURCE_DELETED. A call whose audio file could not be deleted is recorded as a failure.
+     *
+     * @param analyzedCalls The saved calls, at most blobStorage.deleteBatchSize.
+     * @return The calls whose audio files were deleted, and a failure for each of the others.
+     */
+    private PipelineStage.BatchResult<AnalyzedCall> deleteSources(List<AnalyzedCall> analyzedCalls) {
+        Map<String, AnalyzedCall> byAudioFileName = new LinkedHashMap<>();
+        for (AnalyzedCall analyzedCall : analyzedCalls) {
+            String audioFileName = Utils.getFileName(analyzedCall.savePath());
+            recordInManifest(audioFileName, ProcessedManifest.Status.PROCESSED);
+            byAudioFileName.put(audioFileName, analyzedCall);
+        }
+        Set<String> notDeleted;
+        try {
+            notDeleted = new HashSet<>(audioSource.deleteFromStorage(new ArrayList<>(byAudioFileName.keySet())));
+        } catch (RuntimeException e) {
+            logger.error("An error occurred when deleting {} audio files: {}", byAudioFileName.size(), e.getMessage());
+            notDeleted = byAudioFileName.keySet();
+        }
+        List<AnalyzedCall> deleted = new ArrayList<>();
+        List<Exception> failures = new ArrayList<>();
+        for (Map.Entry<String, AnalyzedCall> entry : byAudioFileName.entrySet()) {
+            String key = key(entry.getValue());
+            if (notDeleted.contains(entry.getKey())) {
+                logger.error("Stage delete failed for {}: could not delete {}", key, entry.getKey());
+                failedKeys.add(key);
+                journal.recordFailure(key);
+                failures.add(new RuntimeException("Exception thrown in TranscriptionPipeline, deleteSources could not delete " + entry.getKey()));
+            } else {
+                journal.record(JobJournal.Stage.SOURCE_DELETED, key);
+                deleted.add(entry.getValue());
+            }
+        }
+        return new PipelineStage.BatchResult<>(deleted, failures);
+    }
+
+    private void recordInManifest(String audioFileName, ProcessedManifest.Status status) {
+        StoredFile sourceFile = sourceFiles.get(audioFileName);
+        if (sourceFile != null) {
+            manifest.record(sourceFile, status);
+        }
+    }
+}
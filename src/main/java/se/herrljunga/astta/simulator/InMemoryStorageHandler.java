@@ -0,0 +1,240 @@
+package se.herrljunga.astta.simulator;
+
+import com.azure.storage.blob.BlobContainerClient;
+import se.herrljunga.astta.filehandler.StorageHandler;
+import se.herrljunga.astta.filehandler.StoredFile;
+import se.herrljunga.astta.metrics.Metrics;
+import se.herrljunga.astta.utils.AnalyzedCall;
+import se.herrljunga.astta.utils.Config;
+import se.herrljunga.astta.utils.ConfigLoader;
+import se.herrljunga.astta.utils.Utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The InMemoryStorageHandler class implements the StorageHandler interface.
+ * <p>
+ * This class keeps the blobs of one container in memory, so the pipeline can run without Azure Blob Storage,
+ * see LoadTest. Every request waits latencyMillis, like a round trip to Blob Storage, and the blobs are listed
+ * by name. Saved and appended bytes are counted in the same metrics as BlobStorageHandler.
+ */
+public class InMemoryStorageHandler implements StorageHandler {
+    private static Config config = ConfigLoader.loadConfig();
+    private final Map<String, Blob> blobs = new ConcurrentSkipListMap<>();
+    private final long latencyMillis;
+    private final String pathToTemp;
+
+    private record Blob(byte[] data, OffsetDateTime lastModified) {
+    }
+
+    /**
+     * Constructs a new InMemoryStorageHandler.
+     *
+     * @param latencyMillis The time every request takes.
+     */
+    public InMemoryStorageHandler(long latencyMillis) {
+        this(latencyMillis, config.utils.pathToTemp);
+    }
+
+    /**
+     * Constructs a new InMemoryStorageHandler that fetches files to its own temp directory instead of utils.pathToTemp.
+     *
+     * @param latencyMillis The time every request takes.
+     * @param pathToTemp    The directory fetched files are written to, ending with a separator.
+     */
+    public InMemoryStorageHandler(long latencyMillis, String pathToTemp) {
+        this.latencyMillis = latencyMillis;
+        this.pathToTemp = pathToTemp;
+    }
+
+    /**
+     * Saves a blob, overwriting any blob with the same name.
+     *
+     * @param blobName The name of the blob.
+     * @param data     The content of the blob.
+     */
+    public void put(String blobName, byte[] data) {
+        blobs.put(blobName, new Blob(data, OffsetDateTime.now()));
+    }
+
+    /**
+     * Gets the content of a blob.
+     *
+     * @param blobName The name of the blob.
+     * @return The content, or null if there is no such blob.
+     */
+    public byte[] get(String blobName) {
+        Blob blob = blobs.get(blobName);
+        return blob == null ? null : blob.data();
+    }
+
+    @Override
+    public List<String> fetchFile() {
+        List<String> paths = new ArrayList<>();
+        for (String blobName : listFiles()) {
+            paths.add(fetchSingleFile(blobName));
+        }
+        return paths;
+    }
+
+    @Override
+    public List<String> listFiles() {
+        simulateLatency();
+        return new ArrayList<>(blobs.keySet());
+    }
+
+    @Override
+    public List<StoredFile> listFileDetails() {
+        simulateLatency();
+        List<StoredFile> files = new ArrayList<>();
+        blobs.forEach((name, blob) -> files.add(new StoredFile(name, "\"" + Integer.toHexString(blob.hashCode()) + "\"",
+                blob.lastModified(), blob.data().length)));
+        return files;
+    }
+
+    @Override
+    public String getFileUrl(String blobName) {
+        return "memory://" + blobName;
+    }
+
+    @Override
+    public String fetchSingleFile(String blobName) {
+        String localPath = pathToTemp + Utils.removePathFromFilename(blobName);
+        try {
+            Files.write(Paths.get(localPath), read(blobName));
+        } catch (IOException e) {
+            throw new RuntimeException("Exception thrown in InMemoryStorageHandler, fetchSingleFile " + e.getMessage());
+        }
+        return localPath;
+    }
+
+    @Override
+    public InputStream openInputStream(String blobName) {
+        return new ByteArrayInputStream(read(blobName));
+    }
+
+    @Override
+    public void saveToStorage(List<AnalyzedCall> analyzedCalls) {
+        saveAnalyzedCallsToStorage(analyzedCalls);
+    }
+
+    @Override
+    public void saveSingleFileToStorage(String filePath) {
+        try {
+            write(Utils.removePathFromFilename(filePath), Files.readAllBytes(Paths.get(filePath)));
+        } catch (IOException e) {
+            throw new RuntimeException("Exception thrown in InMemoryStorageHandler, saveSingleFileToStorage " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void saveAnalyzedCallToStorage(AnalyzedCall analyzedCall) {
+        write(Utils.removePathFromFilename(analyzedCall.savePath()), analyzedCall.analyzedCallJson().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public List<AnalyzedCall> saveAnalyzedCallsToStorage(List<AnalyzedCall> analyzedCalls) {
+        for (AnalyzedCall analyzedCall : analyzedCalls) {
+            saveAnalyzedCallToStorage(analyzedCall);
+        }
+        return List.of();
+    }
+
+    @Override
+    public void saveStreamToStorage(String blobName, InputStream data) {
+        try {
+            write(Utils.removePathFromFilename(blobName), data.readAllBytes());
+        } catch (IOException e) {
+            throw new RuntimeException("Exception thrown in InMemoryStorageHandler, saveStreamToStorage " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void appendToStorage(String blobName, byte[] data) {
+        simulateLatency();
+        blobs.compute(blobName, (name, blob) -> {
+            ByteArrayOutputStream appended = new ByteArrayOutputStream();
+            if (blob != null) {
+                appended.writeBytes(blob.data());
+            }
+            appended.writeBytes(data);
+            return new Blob(appended.toByteArray(), OffsetDateTime.now());
+        });
+        Metrics.add("blob_uploaded_bytes", data.length);
+    }
+
+    @Override
+    public void deleteFromStorage(String path) {
+        simulateLatency();
+        blobs.remove(path);
+    }
+
+    @Override
+    public List<String> deleteFromStorage(List<String> paths) {
+        simulateLatency();
+        for (String path : paths) {
+            blobs.remove(path);
+        }
+        return List.of();
+    }
+
+    @Override
+    public List<String> getBlobFilePath() {
+        return new ArrayList<>(blobs.keySet());
+    }
+
+    @Override
+    public void deleteContainer() {
+        blobs.clear();
+    }
+
+    /**
+     * There is no container client for a container in memory, the blobs of this handler are the temp container.
+     *
+     * @param tempContainer The name of the container, not used.
+     * @return null.
+     */
+    @Override
+    public BlobContainerClient createTempContainer(String tempContainer) {
+        return null;
+    }
+
+    private byte[] read(String blobName) {
+        simulateLatency();
+        Blob blob = blobs.get(blobName);
+        if (blob == null) {
+            throw new RuntimeException("Exception thrown in InMemoryStorageHandler, read no blob named " + blobName);
+        }
+        Metrics.add("blob_downloaded_bytes", blob.data().length);
+        return blob.data();
+    }
+
+    private void write(String blobName, byte[] data) {
+        simulateLatency();
+        put(blobName, data);
+        Metrics.add("blob_uploaded_bytes", data.length);
+    }
+
+    private void simulateLatency() {
+        if (latencyMillis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(latencyMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Exception thrown in InMemoryStorageHandler, simulateLatency " + e.getMessage());
+        }
+    }
+}
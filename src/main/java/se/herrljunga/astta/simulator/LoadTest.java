@@ -0,0 +1,161 @@
+package se.herrljunga.astta.simulator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.herrljunga.astta.analyze.AnalysisCache;
+import se.herrljunga.astta.analyze.CallOutcome;
+import se.herrljunga.astta.analyze.OpenAIAnalyzer;
+import se.herrljunga.astta.metrics.Histogram;
+import se.herrljunga.astta.metrics.Metrics;
+import se.herrljunga.astta.metrics.MetricsExporter;
+import se.herrljunga.astta.pipeline.JobJournal;
+import se.herrljunga.astta.pipeline.TranscriptionPipeline;
+import se.herrljunga.astta.speechtotext.ProcessedManifest;
+import se.herrljunga.astta.utils.Config;
+import se.herrljunga.astta.utils.ConfigLoader;
+import se.herrljunga.astta.utils.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The LoadTest class.
+ * <p>
+ * This class runs the same TranscriptionPipeline as App, on simulated services instead of Azure: the containers are
+ * InMemoryStorageHandlers, Speech to Text is a SimulatedTranscriber and OpenAIAnalyzer sends its requests to
+ * a SimulatedOpenAIHttpClient. Nothing is read from Key Vault. The size and behaviour of the simulation are set in
+ * the simulator section of config.yaml, the rest of config.yaml applies like in a real run.
+ * <p>
+ * When the run is done, the throughput and the p50 and p99 of every stage are reported, from the histograms in Metrics.
+ * A call that fails is reported, not thrown, since the simulated services fail on purpose.
+ * openAI.mode "batch" is not simulated, the calls are always analyzed one by one.
+ */
+public class LoadTest {
+    private static Config config = ConfigLoader.loadConfig();
+    private static final String[] HISTOGRAMS = {"stage_download_millis", "stage_parse_millis", "stage_analyze_millis",
+            "stage_upload_millis", "stage_delete_millis", "stage_analyze_permit_wait_millis", "openai_request_millis",
+            "openai_limiter_wait_millis", "transcript_parse_millis"};
+    private static final int AUDIO_FILE_BYTES = 44; // The header of a WAV file
+    private final Config.Simulator settings;
+    private final int calls;
+    private final InMemoryStorageHandler audioSource;
+    private final InMemoryStorageHandler tempStorage;
+    private final InMemoryStorageHandler reportStorage;
+    private final InMemoryStorageHandler powerBiStorage;
+    private final String pathToTemp;
+    private final JobJournal journal;
+    private final TranscriptionPipeline pipeline;
+    private static final Logger logger = LoggerFactory.getLogger(LoadTest.class);
+
+    /**
+     * Constructs a new LoadTest with synthetic audio files in the audio source.
+     *
+     * @param settings       The settings of the simulated services.
+     * @param calls          The number of audio files, instead of settings.calls.
+     * @param stateDirectory The directory of the journal, the manifest, the AnalysisCache and the temp directory of the run.
+     */
+    public LoadTest(Config.Simulator settings, int calls, Path stateDirectory) {
+        this.settings = settings;
+        this.calls = calls;
+        // The temp directory of the run is in the state directory, so the one of the application is left alone
+        this.pathToTemp = stateDirectory.resolve("temp") + File.separator;
+        this.audioSource = new InMemoryStorageHandler(settings.blobLatencyMillis, pathToTemp);
+        this.tempStorage = new InMemoryStorageHandler(settings.blobLatencyMillis, pathToTemp);
+        this.reportStorage = new InMemoryStorageHandler(settings.blobLatencyMillis, pathToTemp);
+        this.powerBiStorage = new InMemoryStorageHandler(settings.blobLatencyMillis, pathToTemp);
+        for (int i = 0; i < calls; i++) {
+            audioSource.put(SyntheticCalls.audioFileName(i), new byte[AUDIO_FILE_BYTES]);
+        }
+        SimulatedTranscriber transcriber = new SimulatedTranscriber(tempStorage, settings.transcribedCallsPerSecond,
+                settings.phrasesPerCall, settings.seed);
+        // The AnalysisCache of the run is in the state directory, so no call is answered from an earlier run
+        OpenAIAnalyzer analyzer = new OpenAIAnalyzer("simulator", "https://openai.simulator.local", config.openAI.model,
+                new SimulatedOpenAIHttpClient(settings.openAILatencyMillis, settings.openAIThrottleRate, settings.openAIMalformedRate, settings.seed),
+                new AnalysisCache(true, stateDirectory.resolve("analysis-cache").toString(), config.analysisCache.maxSizeMegabytes));
+        this.journal = new JobJournal(stateDirectory.resolve("journal.log").toString(), config.journal.syncEveryRecords,
+                config.journal.syncIntervalMillis, config.journal.maxAttemptsPerCall);
+        ProcessedManifest manifest = new ProcessedManifest(stateDirectory.resolve("processed-manifest.tsv").toString());
+        this.pipeline = new TranscriptionPipeline(transcriber, tempStorage, reportStorage, powerBiStorage, audioSource,
+                analyzer, null, journal, manifest, pathToTemp, pathToTemp + "analyzed" + File.separator);
+    }
+
+    /**
+     * Runs the pipeline once over all audio files.
+     *
+     * @return The report of the run, with the throughput and the p50 and p99 of every stage.
+     */
+    public String run() {
+        logger.info("Load test of {} calls", calls);
+        long start = System.nanoTime();
+        String failure = null;
+        try {
+            pipeline.run();
+        } catch (RuntimeException e) {
+            failure = e.getMessage();
+        } finally {
+            if (journal.hasPendingWork()) {
+                journal.close();
+            }
+            Utils.deleteFolderIfExists(new File(pathToTemp));
+        }
+        return report(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), failure);
+    }
+
+    public InMemoryStorageHandler getAudioSource() {
+        return audioSource;
+    }
+
+    public InMemoryStorageHandler getReportStorage() {
+        return reportStorage;
+    }
+
+    public InMemoryStorageHandler getPowerBiStorage() {
+        return powerBiStorage;
+    }
+
+    private String report(long millis, String failure) {
+        int done = calls - audioSource.listFiles().size();
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "Load test: %d calls in %.1f s, %.1f calls/s%n",
+                calls, millis / 1000.0, done * 1000.0 / Math.max(1, millis)));
+        sb.append(String.format(Locale.ROOT, "Saved and deleted: %d, analyzed: %d, failed analyses: %d, left in the audio source: %d%n",
+                done, pipeline.getRunReport().count(CallOutcome.Status.SUCCEEDED), pipeline.getRunReport().count(CallOutcome.Status.FAILED),
+                calls - done));
+        sb.append(String.format(Locale.ROOT, "%-36s %8s %8s %8s %8s%n", "timing (ms)", "count", "p50", "p99", "max"));
+        for (String name : HISTOGRAMS) {
+            Histogram histogram = Metrics.getHistogram(name);
+            if (histogram != null) {
+                sb.append(String.format(Locale.ROOT, "%-36s %8d %8d %8d %8d%n", name, histogram.getCount(),
+                        histogram.getPercentile(50), histogram.getPercentile(99), histogram.getMax()));
+            }
+        }
+        if (failure != null) {
+            sb.append("Failures:\n").append(failure);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Runs a load test with the settings in the simulator section of config.yaml.
+     *
+     * @param args The number of calls, optional, overrides simulator.calls.
+     * @throws IOException if the state directory can't be created.
+     */
+    public static void main(String[] args) throws IOException {
+        int calls = args.length > 0 ? Integer.parseInt(args[0]) : config.simulator.calls;
+        Path stateDirectory = Files.createTempDirectory("astta-loadtest");
+        MetricsExporter metricsExporter = new MetricsExporter(config.metrics.prometheusFile, config.metrics.port, config.metrics.exportIntervalSeconds);
+        try {
+            logger.info("\n{}", new LoadTest(config.simulator, calls, stateDirectory).run());
+            logger.info("Metrics:\n{}", Metrics.summary());
+        } finally {
+            metricsExporter.close();
+            Utils.deleteFolderIfExists(stateDirectory.toFile());
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,195 @@
+package se.herrljunga.astta.simulator;
+
+import com.azure.core.http.HttpClient;
+import com.azure.core.http.HttpHeaders;
+import com.azure.core.http.HttpRequest;
+import com.azure.core.http.HttpResponse;
+import com.azure.core.util.BinaryData;
+import com.azure.core.util.Context;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The SimulatedOpenAIHttpClient class.
+ * <p>
+ * This class is an HttpClient for the OpenAIClient that answers chat completions requests itself, without a network,
+ * so OpenAIAnalyzer runs unchanged in the simulator. It is an HttpClient and not a local server because the client
+ * only sends its key over HTTPS.
+ * <p>
+ * Every request takes on average latencyMillis, anywhere from half to one and a half times it.
+ * A share of the requests, throttleRate, is answered with 429 and a short retry-after-ms, which the RetryPolicy and the
+ * AdaptiveConcurrencyLimiter handle like a real throttle. A share of the answers, malformedRate, is cut off in
+ * the middle so it is not valid JSON even after CallAnalysis.tryParse() has repaired it. The other answers are
+ * a synthetic analysis, see SyntheticCalls.analysis(), with the usage of the request.
+ * <p>
+ * The outcome of a request only depends on the seed, the request body and how many times the same body has been sent,
+ * so a run with the same seed and calls gets the same answers, throttles and broken answers, whatever the order
+ * of the requests.
+ */
+public class SimulatedOpenAIHttpClient implements HttpClient {
+    private static final int RETRY_AFTER_MILLIS = 50;
+    private final long latencyMillis;
+    private final double throttleRate;
+    private final double malformedRate;
+    private final long seed;
+    private final Map<Integer, AtomicInteger> attempts = new ConcurrentHashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+
+    /**
+     * Constructs a new SimulatedOpenAIHttpClient.
+     *
+     * @param latencyMillis The average time a request takes.
+     * @param throttleRate  The share of requests answered with 429, between 0 and 1.
+     * @param malformedRate The share of answers that are not valid JSON, between 0 and 1.
+     * @param seed          The seed the outcome of each request is drawn from.
+     */
+    public SimulatedOpenAIHttpClient(long latencyMillis, double throttleRate, double malformedRate, long seed) {
+        this.latencyMillis = latencyMillis;
+        this.throttleRate = throttleRate;
+        this.malformedRate = malformedRate;
+        this.seed = seed;
+    }
+
+    @Override
+    public Mono<HttpResponse> send(HttpRequest request) {
+        return Mono.fromCallable(() -> sendSync(request, Context.NONE)).subscribeOn(Schedulers.boundedElastic());
+    }
+
+    @Override
+    public HttpResponse sendSync(HttpRequest request, Context context) {
+        BinaryData requestBody = request.getBodyAsBinaryData();
+        byte[] requestBytes = requestBody == null ? new byte[0] : requestBody.toBytes();
+        int bodyHash = Arrays.hashCode(requestBytes);
+        int attempt = attempts.computeIfAbsent(bodyHash, hash -> new AtomicInteger()).incrementAndGet();
+        Random random = new Random(mix(mix(seed, bodyHash), attempt));
+        long requestNumber = requests.incrementAndGet();
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep((long) (latencyMillis * (0.5 + random.nextDouble())));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Exception thrown in SimulatedOpenAIHttpClient, sendSync " + e.getMessage());
+            }
+        }
+        if (random.nextDouble() < throttleRate) {
+            HttpHeaders headers = new HttpHeaders()
+                    .set("Content-Type", "application/json")
+                    .set("retry-after-ms", String.valueOf(RETRY_AFTER_MILLIS))
+                    .set("x-ratelimit-remaining-tokens", "0");
+            return new SimulatedResponse(request, 429, headers,
+                    "{\"error\": {\"code\": \"429\", \"message\": \"Rate limit is exceeded. Simulated.\"}}");
+        }
+
+        int promptTokens = requestBytes.length / 4;
+        String content = SyntheticCalls.analysis(random);
+        if (random.nextDouble() < malformedRate) {
+            content = content.substring(0, content.length() / 2);
+        }
+        int completionTokens = content.length() / 4;
+
+        JsonObject message = new JsonObject();
+        message.addProperty("role", "assistant");
+        message.addProperty("content", content);
+        JsonObject choice = new JsonObject();
+        choice.addProperty("index", 0);
+        choice.add("message", message);
+        choice.addProperty("finish_reason", "stop");
+        JsonArray choices = new JsonArray();
+        choices.add(choice);
+        JsonObject usage = new JsonObject();
+        usage.addProperty("prompt_tokens", promptTokens);
+        usage.addProperty("completion_tokens", completionTokens);
+        usage.addProperty("total_tokens", promptTokens + completionTokens);
+        JsonObject completion = new JsonObject();
+        completion.addProperty("id", "chatcmpl-simulated-" + requestNumber);
+        completion.addProperty("object", "chat.completion");
+        completion.addProperty("created", System.currentTimeMillis() / 1000);
+        completion.addProperty("model", "simulated");
+        completion.add("choices", choices);
+        completion.add("usage", usage);
+
+        HttpHeaders headers = new HttpHeaders()
+                .set("Content-Type", "application/json")
+                .set("x-ratelimit-remaining-requests", "1000")
+                .set("x-ratelimit-remaining-tokens", "1000000");
+        return new SimulatedResponse(request, 200, headers, completion.toString());
+    }
+
+    /**
+     * Mixes a value into a seed, so seeds that differ in one value still give unrelated random numbers.
+     */
+    private static long mix(long seed, long value) {
+        long mixed = (seed + value * 0x9E3779B97F4A7C15L) * 0xBF58476D1CE4E5B9L;
+        return mixed ^ (mixed >>> 31);
+    }
+
+    /**
+     * A response with its whole body in memory.
+     */
+    private static class SimulatedResponse extends HttpResponse {
+        private final int statusCode;
+        private final HttpHeaders headers;
+        private final byte[] body;
+
+        private SimulatedResponse(HttpRequest request, int statusCode, HttpHeaders headers, String body) {
+            super(request);
+            this.statusCode = statusCode;
+            this.headers = headers;
+            this.body = body.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        @Override
+        @Deprecated
+        public String getHeaderValue(String name) {
+            return headers.getValue(name);
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return headers;
+        }
+
+        @Override
+        public Flux<ByteBuffer> getBody() {
+            return Flux.defer(() -> Flux.just(ByteBuffer.wrap(body)));
+        }
+
+        @Override
+        public BinaryData getBodyAsBinaryData() {
+            return BinaryData.fromBytes(body);
+        }
+
+        @Override
+        public Mono<byte[]> getBodyAsByteArray() {
+            return Mono.just(body);
+        }
+
+        @Override
+        public Mono<String> getBodyAsString() {
+            return Mono.just(new String(body, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public Mono<String> getBodyAsString(Charset charset) {
+            return Mono.just(new String(body, charset));
+        }
+    }
+}
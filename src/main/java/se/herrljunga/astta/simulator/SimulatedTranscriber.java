@@ -0,0 +1,135 @@
+package se.herrljunga.astta.simulator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.herrljunga.astta.filehandler.StorageHandler;
+import se.herrljunga.astta.filehandler.StoredFile;
+import se.herrljunga.astta.speechtotext.Transcriber;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The SimulatedTranscriber class implements the Transcriber interface.
+ * <p>
+ * This class stands in for the Azure Speech to Text batch API in the simulator. A submitted run is one transcription,
+ * which writes a synthetic transcription of every audio file to the temp container, callsPerSecond files per second,
+ * and then a report file, like the service does. The transcription is done when the report has been written.
+ * <p>
+ * The transcriptions are generated from the name of the audio file and the seed, so the AnalysisCache only answers
+ * a call again if the same seed is used. The failing files get no transcription and are counted as failed in the report,
+ * like a file the service could not transcribe.
+ */
+public class SimulatedTranscriber implements Transcriber {
+    private final StorageHandler tempStorage;
+    private final int callsPerSecond;
+    private final int phrasesPerCall;
+    private final long seed;
+    private final Set<String> failingFiles;
+    private final Map<String, CompletableFuture<String>> transcriptions = new ConcurrentHashMap<>();
+    private final Logger logger = LoggerFactory.getLogger(SimulatedTranscriber.class);
+
+    /**
+     * Constructs a new SimulatedTranscriber.
+     *
+     * @param tempStorage    The temp container the transcriptions are written to.
+     * @param callsPerSecond The number of transcriptions written per second.
+     * @param phrasesPerCall The number of recognized phrases of every transcription, of 10 words each.
+     * @param seed           The seed the transcriptions are generated from.
+     */
+    public SimulatedTranscriber(StorageHandler tempStorage, int callsPerSecond, int phrasesPerCall, long seed) {
+        this(tempStorage, callsPerSecond, phrasesPerCall, seed, Set.of());
+    }
+
+    /**
+     * Constructs a new SimulatedTranscriber that fails to transcribe some audio files.
+     *
+     * @param tempStorage    The temp container the transcriptions are written to.
+     * @param callsPerSecond The number of transcriptions written per second.
+     * @param phrasesPerCall The number of recognized phrases of every transcription, of 10 words each.
+     * @param seed           The seed the transcriptions are generated from.
+     * @param failingFiles   The names of the audio files that get no transcription.
+     */
+    public SimulatedTranscriber(StorageHandler tempStorage, int callsPerSecond, int phrasesPerCall, long seed, Set<String> failingFiles) {
+        this.tempStorage = tempStorage;
+        this.callsPerSecond = callsPerSecond;
+        this.phrasesPerCall = phrasesPerCall;
+        this.seed = seed;
+        this.failingFiles = Set.copyOf(failingFiles);
+    }
+
+    /**
+     * Generates the transcription that is written for an audio file.
+     *
+     * @param audioFileName  The name of the audio file.
+     * @param phrasesPerCall The number of recognized phrases, of 10 words each.
+     * @param seed           The seed the transcriptions are generated from.
+     * @return The transcription, in the JSON format of the service.
+     */
+    public static String transcript(String audioFileName, int phrasesPerCall, long seed) {
+        return SyntheticCalls.transcript(seed ^ audioFileName.hashCode(), phrasesPerCall, 10, false);
+    }
+
+    @Override
+    public List<String> submitTranscriptions(List<StoredFile> sourceFiles) {
+        if (sourceFiles.isEmpty()) {
+            return List.of();
+        }
+        String transcriptionUrl = "simulator://transcriptions/" + UUID.randomUUID();
+        CompletableFuture<String> done = new CompletableFuture<>();
+        transcriptions.put(transcriptionUrl, done);
+        Thread thread = new Thread(() -> transcribe(transcriptionUrl, sourceFiles, done), "simulated-transcriber");
+        thread.setDaemon(true);
+        thread.start();
+        logger.info("Simulated transcription of {} files submitted: {}", sourceFiles.size(), transcriptionUrl);
+        return List.of(transcriptionUrl);
+    }
+
+    /**
+     * Waits for a transcription. A transcription that was not submitted to this transcriber, for example one from
+     * the journal of an earlier run, is done right away since nothing more will be written for it.
+     *
+     * @param transcriptionUrl The URL of the transcription.
+     * @return A future that completes with the URL when the transcription is done.
+     */
+    @Override
+    public CompletableFuture<String> awaitTranscription(String transcriptionUrl) {
+        return transcriptions.getOrDefault(transcriptionUrl, CompletableFuture.completedFuture(transcriptionUrl));
+    }
+
+    private void transcribe(String transcriptionUrl, List<StoredFile> sourceFiles, CompletableFuture<String> done) {
+        try {
+            long start = System.nanoTime();
+            int failed = 0;
+            for (int i = 0; i < sourceFiles.size(); i++) {
+                // File i is written i / callsPerSecond seconds after the start
+                long sleepMillis = (start + i * 1_000_000_000L / callsPerSecond - System.nanoTime()) / 1_000_000;
+                if (sleepMillis > 0) {
+                    Thread.sleep(sleepMillis);
+                }
+                String name = sourceFiles.get(i).name();
+                if (failingFiles.contains(name)) {
+                    failed++;
+                    continue;
+                }
+                String transcript = transcript(name, phrasesPerCall, seed);
+                tempStorage.saveStreamToStorage(name + ".json", new ByteArrayInputStream(transcript.getBytes(StandardCharsets.UTF_8)));
+            }
+            String report = "{\"successfulTranscriptionsCount\": " + (sourceFiles.size() - failed) + ", \"failedTranscriptionsCount\": " + failed + "}";
+            tempStorage.saveStreamToStorage(transcriptionUrl.substring(transcriptionUrl.lastIndexOf('/') + 1) + "_report.json",
+                    new ByteArrayInputStream(report.getBytes(StandardCharsets.UTF_8)));
+            done.complete(transcriptionUrl);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            done.completeExceptionally(e);
+        } catch (RuntimeException e) {
+            done.completeExceptionally(e);
+        }
+    }
+}
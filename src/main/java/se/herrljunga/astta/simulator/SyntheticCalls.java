@@ -0,0 +1,141 @@
+package se.herrljunga.astta.simulator;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * The SyntheticCalls class.
+ * <p>
+ * This class generates the data of calls for the simulator and the benchmarks: audio file names with the agents
+ * GetAgentName knows, Speech to Text results shaped like the real ones, with word level details, and answers
+ * shaped like the answers of the prompt. Everything is generated from a seed, so the same seed gives the same call.
+ */
+public class SyntheticCalls {
+    private static final String[] AGENTS = {"henrik", "linus", "alexander", "axel", "okand"};
+    private static final String[] DEPARTMENTS = {"kunskapskällan", "sundlergymnasiet", "individ och familjeomsorg", "bygg och miljö", "okänt"};
+    private static final String[] KEYWORDS = {"lösenord", "vpn", "telefon", "skrivare", "dator", "applikation"};
+    private static final String[] WORDS = {"hej", "jag", "ringer", "om", "min", "faktura", "och", "det", "är", "något",
+            "fel", "med", "beloppet", "kan", "du", "se", "vad", "som", "har", "hänt", "tack", "för", "att", "väntade",
+            "vi", "skickar", "en", "ny", "till", "dig", "ja", "precis", "bra"};
+
+    private SyntheticCalls() {
+    }
+
+    /**
+     * Gets the name of the audio file of a call, with one of the known agents or an unknown one.
+     *
+     * @param index The number of the call.
+     * @return The audio file name.
+     */
+    public static String audioFileName(int index) {
+        return String.format(Locale.ROOT, "call-%05d-%s.wav", index, AGENTS[index % AGENTS.length]);
+    }
+
+    /**
+     * Builds a Speech to Text result with word level details, like the files in the temp container.
+     * Pretty printed, a call with 120 phrases of 10 words is about 10k lines.
+     *
+     * @param seed           The seed of the call.
+     * @param phrases        The number of recognized phrases.
+     * @param wordsPerPhrase The number of words of each phrase.
+     * @param pretty         True to indent the JSON like the service does, false for compact JSON.
+     * @return The result as JSON.
+     */
+    public static String transcript(long seed, int phrases, int wordsPerPhrase, boolean pretty) {
+        Random random = new Random(seed);
+        StringBuilder display = new StringBuilder();
+        JsonArray recognizedPhrases = new JsonArray();
+        long offsetTicks = 0;
+        for (int p = 0; p < phrases; p++) {
+            StringBuilder phraseText = new StringBuilder();
+            JsonArray words = new JsonArray();
+            for (int w = 0; w < wordsPerPhrase; w++) {
+                String word = WORDS[random.nextInt(WORDS.length)];
+                long durationTicks = 2_000_000 + random.nextInt(3_000_000);
+                JsonObject wordJson = new JsonObject();
+                wordJson.addProperty("word", word);
+                wordJson.addProperty("offset", ticksToDuration(offsetTicks));
+                wordJson.addProperty("duration", ticksToDuration(durationTicks));
+                wordJson.addProperty("offsetInTicks", offsetTicks);
+                wordJson.addProperty("durationInTicks", durationTicks);
+                wordJson.addProperty("confidence", 0.7 + random.nextDouble() * 0.3);
+                words.add(wordJson);
+                phraseText.append(w == 0 ? "" : " ").append(word);
+                offsetTicks += durationTicks;
+            }
+            String text = Character.toUpperCase(phraseText.charAt(0)) + phraseText.substring(1) + ".";
+            display.append(p == 0 ? "" : " ").append(text);
+
+            JsonObject best = new JsonObject();
+            best.addProperty("confidence", 0.9);
+            best.addProperty("lexical", phraseText.toString());
+            best.addProperty("itn", phraseText.toString());
+            best.addProperty("maskedITN", phraseText.toString());
+            best.addProperty("display", text);
+            best.add("words", words);
+            JsonArray nBest = new JsonArray();
+            nBest.add(best);
+            JsonObject phrase = new JsonObject();
+            phrase.addProperty("recognitionStatus", "Success");
+            phrase.addProperty("channel", p % 2);
+            phrase.addProperty("offset", ticksToDuration(offsetTicks));
+            phrase.addProperty("offsetInTicks", offsetTicks);
+            phrase.add("nBest", nBest);
+            recognizedPhrases.add(phrase);
+        }
+
+        JsonArray combined = new JsonArray();
+        for (int channel = 0; channel < 2; channel++) {
+            JsonObject combinedPhrase = new JsonObject();
+            combinedPhrase.addProperty("channel", channel);
+            combinedPhrase.addProperty("lexical", display.toString().toLowerCase(Locale.ROOT));
+            combinedPhrase.addProperty("itn", display.toString().toLowerCase(Locale.ROOT));
+            combinedPhrase.addProperty("maskedITN", display.toString().toLowerCase(Locale.ROOT));
+            combinedPhrase.addProperty("display", display.toString());
+            combined.add(combinedPhrase);
+        }
+        JsonObject transcript = new JsonObject();
+        transcript.addProperty("source", "https://storage.blob.core.windows.net/wavfiles/call.wav");
+        transcript.addProperty("timestamp", "2024-03-01T10:00:00Z");
+        transcript.addProperty("durationInTicks", offsetTicks);
+        transcript.addProperty("duration", ticksToDuration(offsetTicks));
+        transcript.add("combinedRecognizedPhrases", combined);
+        transcript.add("recognizedPhrases", recognizedPhrases);
+        return pretty ? new GsonBuilder().setPrettyPrinting().create().toJson(transcript) : transcript.toString();
+    }
+
+    /**
+     * Builds an answer in the Output Format of prompt.txt, with a random keyword, caller satisfaction, department
+     * and whether the issue was solved.
+     *
+     * @param random The random generator to pick the values with.
+     * @return The analysis as JSON.
+     */
+    public static String analysis(Random random) {
+        JsonObject analysis = new JsonObject();
+        boolean solved = random.nextBoolean();
+        analysis.addProperty("Summary", "användaren ringer om ett problem och får hjälp av supporten.");
+        analysis.addProperty("Solution", solved ? "problemet löstes under samtalet." : "pågående");
+        analysis.add("Keyword", scored("Keyword", KEYWORDS[random.nextInt(KEYWORDS.length)], random));
+        analysis.add("CallerSatisfaction", scored("CallerSatisfactionScore", String.valueOf(random.nextInt(11)), random));
+        analysis.add("Department", scored("Department", DEPARTMENTS[random.nextInt(DEPARTMENTS.length)], random));
+        analysis.add("IssueSolved", scored("IssueSolved", String.valueOf(solved), random));
+        analysis.add("Language", scored("LanguageCode", "sv-SE", random));
+        return analysis.toString();
+    }
+
+    private static JsonObject scored(String name, String value, Random random) {
+        JsonObject scored = new JsonObject();
+        scored.addProperty(name, value);
+        scored.addProperty("Confidence", String.valueOf(50 + random.nextInt(51)));
+        return scored;
+    }
+
+    private static String ticksToDuration(long ticks) {
+        return String.format(Locale.ROOT, "PT%.2fS", ticks / 10_000_000.0);
+    }
+}
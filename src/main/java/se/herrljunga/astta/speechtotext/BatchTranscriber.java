@@ -1,5 +1,6 @@
 package se.herrljunga.astta.speechtotext;
 
+import com.azure.storage.blob.BlobContainerClient;
 import com.azure.storage.common.StorageSharedKeyCredential;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
@@ -10,93 +11,307 @@ import org.slf4j.LoggerFactory;
 import se.herrljunga.astta.App;
 import se.herrljunga.astta.filehandler.BlobStorageHandler;
 import se.herrljunga.astta.filehandler.StorageHandler;
+import se.herrljunga.astta.filehandler.StoredFile;
+import se.herrljunga.astta.http.HttpTransport;
 import se.herrljunga.astta.keyvault.KeyVault;
+import se.herrljunga.astta.metrics.Metrics;
 import se.herrljunga.astta.utils.Config;
 import se.herrljunga.astta.utils.ConfigLoader;
 import se.herrljunga.astta.utils.GenerateSasToken;
 import se.herrljunga.astta.utils.Utils;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The BatchTranscriber class.
  * <p>
  * This class provides methods to transcribe audio files in batch using Azure Speech to Text service.
  * It uses the Azure Storage SDK for Java to interact with Azure Blob Storage.
- * The class is initialized with the keys and URLs of the source and destination containers in Azure Blob Storage, which are retrieved from Azure Key Vault.
+ * The keys and the URLs of the source and destination containers are read from the Key Vault cache for every request,
+ * so a rotated key or SAS token is used once the cache has fetched it again, see KeyVault.
  * It provides a method to start the transcription process, which includes sending a transcription request to Azure Speech to Text service and checking the status of the transcription.
+ * <p>
+ * In delta mode only the audio files that are not in the ProcessedManifest are sent, as a list of file URLs instead of the whole container.
+ * The files can be split into several shards that are transcribed as parallel jobs, so one long job does not hold up the whole run.
+ * <p>
+ * The time from when a transcription is awaited until it is done is recorded in the histogram transcription_wait_millis,
+ * and the number of transcriptions still running is the gauge transcriptions_running, see Metrics.
+ * The status checks run on a thread of their own, which is stopped by close() when the run or the daemon ends.
  */
-public class BatchTranscriber {
+public class BatchTranscriber implements Transcriber, AutoCloseable {
     private static Config config = ConfigLoader.loadConfig();
-    private String speechToTextKey;
-    private String audioSourceContainerUrl;
-    private String destinationContainerUrl;
+    private final BlobContainerClient tempContainerClient;
+    private final StorageHandler audioSource;
+    private final ProcessedManifest manifest;
+    private final OkHttpClient httpClient;
+    private static final int MAX_FAILED_STATUS_CHECKS = 5;
+    private static final long PROGRESS_LOG_INTERVAL_MILLIS = 60_000;
+    private final AtomicInteger runningTranscriptions = new AtomicInteger();
+    private final ScheduledExecutorService statusScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "transcription-status");
+        thread.setDaemon(true);
+        return thread;
+    });
     Logger logger = LoggerFactory.getLogger(App.class);
 
     /**
      * Constructs a new BatchTranscriber instance.
      * <p>
-     * This constructor initializes the keys and URLs of the source and destination containers in Azure Blob Storage, which are retrieved from Azure Key Vault.
-     * It also creates a temporary container in Azure Blob Storage for storing the transcription results.
+     * This constructor creates a temporary container in Azure Blob Storage for storing the transcription results.
+     *
+     * @param audioSource The StorageHandler for the audio source, used to get the URL of each file in delta mode.
+     * @param manifest    The manifest of audio files that are already handled, used in delta mode.
+     * @param transport   The shared HTTP clients, used for the Speech to Text requests and the temp container.
      */
-    public BatchTranscriber() {
-        this.speechToTextKey = KeyVault.getSecret(config.speechToText.secretName);
-        this.audioSourceContainerUrl = KeyVault.getSecret(config.blobStorage.endpoint) + "/" + config.blobStorage.audioSourceContainerName + "?" + KeyVault.getSecret(config.blobStorage.sasTokenSecretName);
-
+    public BatchTranscriber(StorageHandler audioSource, ProcessedManifest manifest, HttpTransport transport) {
+        this.audioSource = audioSource;
+        this.manifest = manifest;
+        this.httpClient = transport.getOkHttpClient();
+        Metrics.registerGauge("transcriptions_running", runningTranscriptions::get);
         StorageHandler tempContainer = new BlobStorageHandler(KeyVault.getSecret(config.blobStorage.endpoint),
                 KeyVault.getSecret(config.blobStorage.sasTokenSecretName),
-                new StorageSharedKeyCredential(KeyVault.getSecret(config.blobStorage.accountSecretName), KeyVault.getSecret(config.blobStorage.accountSecretKey)));
-        var containerClient = tempContainer.createTempContainer(config.blobStorage.tempContainerName);
-        String sasToken = GenerateSasToken.generateSasToken(containerClient);
-        destinationContainerUrl = KeyVault.getSecret(config.blobStorage.endpoint) + "/" + config.blobStorage.tempContainerName + "?" + sasToken;
+                new StorageSharedKeyCredential(KeyVault.getSecret(config.blobStorage.accountSecretName), KeyVault.getSecret(config.blobStorage.accountSecretKey)),
+                transport.getAzureHttpClient());
+        this.tempContainerClient = tempContainer.createTempContainer(config.blobStorage.tempContainerName);
     }
 
     /**
      * Starts the transcription process.
      * <p>
      * This method sends a transcription request to Azure Speech to Text service and checks the status of the transcription.
-     * It waits for the transcription to complete before it returns.
+     * It waits for the transcription to complete before it returns, and logs its progress once a minute.
      */
     public void startTranscription() {
         try {
-            String response = batchTranscribe();
-            String transcriptionUrl = Utils.getElementFromJson(response, "self");
-            getTranscriptionStatus(transcriptionUrl);
-            System.out.print("Transcribing ");
-            while (!getTranscriptionStatus(transcriptionUrl)) {
-                System.out.print("*");
-                Thread.sleep(5000);
+            String transcriptionUrl = submitTranscription();
+            long start = System.nanoTime();
+            long lastProgressLog = System.currentTimeMillis();
+            runningTranscriptions.incrementAndGet();
+            try {
+                while (!isTranscriptionDone(transcriptionUrl)) {
+                    if (System.currentTimeMillis() - lastProgressLog >= PROGRESS_LOG_INTERVAL_MILLIS) {
+                        lastProgressLog = System.currentTimeMillis();
+                        logger.info("Transcribing, waited {} seconds", TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
+                    }
+                    Thread.sleep(5000);
+                }
+            } finally {
+                runningTranscriptions.decrementAndGet();
             }
-            System.out.println("\n");
+            Metrics.recordSince("transcription_wait_millis", start);
+            logger.info("Transcription done after {} seconds", TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
         } catch (InterruptedException e) {
             logger.error("Error while transcribing files{}", e.getMessage());
             throw new RuntimeException("Exception thrown in BatchTranscriber, startTranscription() " + e.getMessage());
         }
     }
 
+    /**
+     * Submits a transcription job without waiting for it to complete.
+     * <p>
+     * The transcription results are written to the temporary container as each file is done,
+     * so callers can start consuming them while the job is still running.
+     *
+     * @return The URL of the created transcription, used to check its status.
+     */
+    public String submitTranscription() {
+        String response = batchTranscribe(createRequestBody(null));
+        String transcriptionUrl = Utils.getElementFromJson(response, "self");
+        logger.info("Transcription submitted: {}", transcriptionUrl);
+        return transcriptionUrl;
+    }
+
+    /**
+     * Submits the transcription jobs for a run without waiting for them to complete.
+     * <p>
+     * Without delta mode and with one shard, the whole audio source container is sent as one transcription.
+     * Otherwise, and always in daemon mode where a batch is only some of the files, the audio files are sent by URL,
+     * split into shards that are submitted in parallel, see createShards().
+     * In delta mode, the audio files already in the manifest are skipped.
+     *
+     * @param sourceFiles The files currently in the audio source container.
+     * @return The URLs of the created transcriptions, empty if there was nothing new to transcribe.
+     */
+    @Override
+    public List<String> submitTranscriptions(List<StoredFile> sourceFiles) {
+        if (!config.speechToText.deltaMode && config.speechToText.shards <= 1 && !config.daemon.enabled) {
+            return List.of(submitTranscription());
+        }
+        List<StoredFile> filesToTranscribe = new ArrayList<>();
+        for (StoredFile sourceFile : sourceFiles) {
+            if (!config.speechToText.deltaMode || !manifest.contains(sourceFile)) {
+                filesToTranscribe.add(sourceFile);
+            }
+        }
+        if (config.speechToText.deltaMode) {
+            logger.info("Delta mode, new audio files: {} of {}", filesToTranscribe.size(), sourceFiles.size());
+        }
+        List<List<StoredFile>> shards = createShards(filesToTranscribe);
+        if (shards.isEmpty()) {
+            return List.of();
+        }
+
+        ExecutorService executorService = Executors.newFixedThreadPool(shards.size());
+        List<Future<String>> futures = new ArrayList<>();
+        for (List<StoredFile> shard : shards) {
+            futures.add(executorService.submit(() -> {
+                List<String> contentUrls = new ArrayList<>();
+                for (StoredFile file : shard) {
+                    contentUrls.add(audioSource.getFileUrl(file.name()));
+                }
+                String response = batchTranscribe(createRequestBody(contentUrls));
+                String transcriptionUrl = Utils.getElementFromJson(response, "self");
+                logger.info("Transcription submitted: {}, files: {}", transcriptionUrl, shard.size());
+                return transcriptionUrl;
+            }));
+        }
+        List<String> transcriptionUrls = new ArrayList<>();
+        try {
+            for (Future<String> future : futures) {
+                transcriptionUrls.add(future.get());
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            logger.error("An error occurred when submitting transcriptions: {}", e.getMessage());
+            throw new RuntimeException("Exception thrown in BatchTranscriber, submitTranscriptions " + e.getMessage());
+        } finally {
+            executorService.shutdown();
+        }
+        return transcriptionUrls;
+    }
+
+    /**
+     * Splits the audio files into shards, one transcription each.
+     * <p>
+     * The number of shards is the configured number of shards, but at least enough to keep every shard within
+     * maxFilesPerTranscription, and never more than the number of files.
+     * With shardBy "count" the files are dealt out one at a time, so the shards get the same number of files.
+     * With shardBy "duration" each file, longest first, goes to the shard with the least total audio so far,
+     * so the shards take about the same time to transcribe. The duration is estimated from the file size.
+     *
+     * @param files The audio files to transcribe.
+     * @return The shards, each a list of files.
+     */
+    private List<List<StoredFile>> createShards(List<StoredFile> files) {
+        int maxFiles = config.speechToText.maxFilesPerTranscription;
+        int shardCount = Math.max(config.speechToText.shards, (files.size() + maxFiles - 1) / maxFiles);
+        shardCount = Math.min(shardCount, files.size());
+        List<List<StoredFile>> shards = new ArrayList<>();
+        double[] shardDurations = new double[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(new ArrayList<>());
+        }
+        if ("duration".equals(config.speechToText.shardBy)) {
+            List<StoredFile> longestFirst = new ArrayList<>(files);
+            longestFirst.sort(Comparator.comparingLong(StoredFile::size).reversed());
+            for (StoredFile file : longestFirst) {
+                int shortest = -1;
+                for (int i = 0; i < shardCount; i++) {
+                    if (shards.get(i).size() < maxFiles && (shortest < 0 || shardDurations[i] < shardDurations[shortest])) {
+                        shortest = i;
+                    }
+                }
+                shards.get(shortest).add(file);
+                shardDurations[shortest] += Utils.estimateAudioDuration(file.size(), config.speechToText.audioBytesPerSecond);
+            }
+        } else {
+            for (int i = 0; i < files.size(); i++) {
+                shards.get(i % shardCount).add(files.get(i));
+            }
+        }
+        logger.info("Split {} audio files into {} shards", files.size(), shardCount);
+        return shards;
+    }
+
+    /**
+     * Waits for a transcription in the background.
+     * <p>
+     * The status of every awaited transcription is checked on one shared scheduler thread. The time between checks
+     * starts at pollInitialSeconds and doubles up to pollMaxSeconds, since a long transcription does not need to be
+     * asked as often. A failed status check is retried, and only fails the transcription after several failures in a row.
+     * A transcription that the service reports as Failed completes the future exceptionally.
+     *
+     * @param transcriptionUrl The URL of the transcription.
+     * @return A future that completes with the URL when the transcription has succeeded.
+     */
+    @Override
+    public CompletableFuture<String> awaitTranscription(String transcriptionUrl) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        long start = System.nanoTime();
+        runningTranscriptions.incrementAndGet();
+        future.whenComplete((url, e) -> {
+            runningTranscriptions.decrementAndGet();
+            if (e == null) {
+                Metrics.recordSince("transcription_wait_millis", start);
+                logger.info("Transcription {} done after {} seconds", url, TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
+            }
+        });
+        // The current configuration, so a reload applies to the next transcription and the next poll
+        scheduleStatusCheck(transcriptionUrl, future, ConfigLoader.loadConfig().speechToText.pollInitialSeconds, 0);
+        return future;
+    }
+
+    /**
+     * Stops checking the status of transcriptions, a transcription still awaited is not completed.
+     */
+    @Override
+    public void close() {
+        statusScheduler.shutdownNow();
+    }
+
+    private void scheduleStatusCheck(String transcriptionUrl, CompletableFuture<String> future, long delaySeconds, int failedChecks) {
+        statusScheduler.schedule(() -> {
+            long nextDelaySeconds = Math.min(delaySeconds * 2, ConfigLoader.loadConfig().speechToText.pollMaxSeconds);
+            String statusResponse;
+            String status;
+            try {
+                statusResponse = getTranscriptionStatusResponse(transcriptionUrl);
+                status = Utils.getElementFromJson(statusResponse, "status");
+            } catch (RuntimeException e) {
+                if (failedChecks + 1 >= MAX_FAILED_STATUS_CHECKS) {
+                    future.completeExceptionally(e);
+                } else {
+                    logger.warn("Status check of {} failed, trying again in {} seconds", transcriptionUrl, nextDelaySeconds);
+                    scheduleStatusCheck(transcriptionUrl, future, nextDelaySeconds, failedChecks + 1);
+                }
+                return;
+            }
+            switch (status) {
+                case "NotStarted", "Running" -> scheduleStatusCheck(transcriptionUrl, future, nextDelaySeconds, 0);
+                case "Failed" -> {
+                    logger.error("Transcription failed: {}", transcriptionUrl);
+                    future.completeExceptionally(new RuntimeException("Exception thrown in BatchTranscriber, awaitTranscription "
+                            + getFailureMessage(transcriptionUrl, statusResponse)));
+                }
+                default -> future.complete(transcriptionUrl);
+            }
+        }, delaySeconds, TimeUnit.SECONDS);
+    }
+
     /**
      * Sends a transcription request to Azure Speech to Text service.
      * <p>
-     * This method creates a JSON request body and sends a POST request to Azure Speech to Text service.
+     * This method sends the JSON request body in a POST request to Azure Speech to Text service.
      * It returns the response from the service as a string.
      *
+     * @param jsonBody The JSON request body, see createRequestBody().
      * @return The response from Azure Speech to Text service as a string.
      */
-    private String batchTranscribe() {
-        OkHttpClient client = new OkHttpClient().newBuilder()
-                .build();
+    private String batchTranscribe(JsonObject jsonBody) {
         MediaType mediaType = MediaType.parse("application/json");
 
-        JsonObject jsonBody = createRequestBody();
-
         RequestBody body = RequestBody.create(mediaType, jsonBody.toString());
         Request request = new Request.Builder()
                 .url(config.utils.transcriptionApiUrl)
                 .method("POST", body)
-                .addHeader("Ocp-Apim-Subscription-Key", speechToTextKey)
+                .addHeader("Ocp-Apim-Subscription-Key", KeyVault.getSecret(config.speechToText.secretName))
                 .addHeader("Content-Type", "application/json")
                 .build();
-        try (Response response = client.newCall(request).execute();) {
+        try (Response response = httpClient.newCall(request).execute();) {
             assert response.body() != null;
             return response.body().string();
         } catch (IOException e) {
@@ -111,18 +326,26 @@ public class BatchTranscriber {
      * This method creates a JSON object with the necessary properties for the transcription request.
      * It returns the JSON object.
      *
+     * @param contentUrls The URLs of the audio files to transcribe, or null to transcribe the whole audio source container.
      * @return The JSON request body as a JsonObject.
      */
     @NotNull
-    private JsonObject createRequestBody() {
+    private JsonObject createRequestBody(List<String> contentUrls) {
         JsonObject jsonBody = new JsonObject();
-        jsonBody.addProperty("contentContainerUrl", audioSourceContainerUrl);
+        if (contentUrls == null) {
+            jsonBody.addProperty("contentContainerUrl", KeyVault.getSecret(config.blobStorage.endpoint) + "/"
+                    + config.blobStorage.audioSourceContainerName + "?" + KeyVault.getSecret(config.blobStorage.sasTokenSecretName));
+        } else {
+            jsonBody.add("contentUrls", new Gson().toJsonTree(contentUrls));
+        }
         jsonBody.addProperty("locale", "sv-SE");
         jsonBody.addProperty("displayName", "My Transcription");
 
         JsonObject properties = new JsonObject();
         properties.addProperty("wordLevelTimestampsEnabled", false);
-        properties.addProperty("destinationContainerUrl", destinationContainerUrl);
+        // A new SAS for every job, the one generated at startup would expire in a daemon that runs for days
+        properties.addProperty("destinationContainerUrl", KeyVault.getSecret(config.blobStorage.endpoint) + "/"
+                + config.blobStorage.tempContainerName + "?" + GenerateSasToken.generateSasToken(tempContainerClient));
         properties.addProperty("diarizationEnabled", false);
         properties.addProperty("timeToLive", "PT12H");
 
@@ -138,20 +361,43 @@ public class BatchTranscriber {
      * Gets the status of the transcription.
      * <p>
      * This method sends a GET request to Azure Speech to Text service to get the status of the transcription.
-     * It returns true if the transcription is done, and false otherwise.
+     * It returns true if the transcription has succeeded, and false while it is queued or running.
      *
      * @param transcriptionUrl The URL of the transcription.
      * @return True if the transcription is done, and false otherwise.
+     * @throws RuntimeException if the transcription has failed.
      */
-    private boolean getTranscriptionStatus(String transcriptionUrl) {
+    public boolean isTranscriptionDone(String transcriptionUrl) {
         String statusResponse = getTranscriptionStatusResponse(transcriptionUrl);
         String status = Utils.getElementFromJson(statusResponse, "status");
+        if (status.equals("Failed")) {
+            logger.error("Transcription failed: {}", transcriptionUrl);
+            throw new RuntimeException("Exception thrown in BatchTranscriber, isTranscriptionDone " + getFailureMessage(transcriptionUrl, statusResponse));
+        }
         return switch (status) {
-            case "Running" -> false;
+            case "NotStarted", "Running" -> false;
             default -> true;
         };
     }
 
+    /**
+     * Describes a failed transcription, with the error the service gives in properties.error when there is one.
+     */
+    private static String getFailureMessage(String transcriptionUrl, String statusResponse) {
+        String message = "the transcription failed: " + transcriptionUrl;
+        try {
+            JsonObject properties = new Gson().fromJson(statusResponse, JsonObject.class).getAsJsonObject("properties");
+            if (properties != null && properties.has("error")) {
+                JsonObject error = properties.getAsJsonObject("error");
+                message += ", " + (error.has("code") ? error.get("code").getAsString() + ": " : "")
+                        + (error.has("message") ? error.get("message").getAsString() : "");
+            }
+        } catch (RuntimeException e) {
+            // The status is enough, the error is only added to the message
+        }
+        return message;
+    }
+
     /**
      * Sends a GET request to Azure Speech to Text service to get the status of the transcription.
      * <p>
@@ -161,14 +407,12 @@ public class BatchTranscriber {
      * @return The response from Azure Speech to Text service as a string.
      */
     private String getTranscriptionStatusResponse(String transcriptionUrl) {
-        OkHttpClient client = new OkHttpClient().newBuilder()
-                .build();
         Request request = new Request.Builder()
                 .url(transcriptionUrl)
                 .method("GET", null)
-                .addHeader("Ocp-Apim-Subscription-Key", speechToTextKey)
+                .addHeader("Ocp-Apim-Subscription-Key", KeyVault.getSecret(config.speechToText.secretName))
                 .build();
-        try (Response response = client.newCall(request).execute()) {
+        try (Response response = httpClient.newCall(request).execute()) {
             assert response.body() != null;
             return response.body().string();
         } catch (IOException e) {
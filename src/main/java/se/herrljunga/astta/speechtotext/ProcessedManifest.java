@@ -0,0 +1,134 @@
+package se.herrljunga.astta.speechtotext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.herrljunga.astta.filehandler.StoredFile;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The ProcessedManifest class.
+ * <p>
+ * This class keeps a local manifest of the audio files that have already been handled, so delta mode only sends
+ * new audio files to transcription. An audio file is recorded as PROCESSED when its analysis has been saved,
+ * and as GIVEN_UP when it failed too many times. A file is only skipped if its name, ETag and last modified time
+ * all match the manifest, so a file that is uploaded again with new content is transcribed again.
+ * <p>
+ * The manifest is an append-only file with one line per record, "STATUS\tname\tETag\tlastModified".
+ * A later line for the same name replaces an earlier one.
+ * <p>
+ * A file that got no transcription is recorded with a TRANSCRIPTION_FAILED line, see recordTranscriptionFailure().
+ * These lines only count the failed transcriptions of the file, they do not make contains() skip it.
+ */
+public class ProcessedManifest {
+    /**
+     * The status of an audio file in the manifest.
+     */
+    public enum Status {
+        PROCESSED, GIVEN_UP
+    }
+
+    private static final String TRANSCRIPTION_FAILED = "TRANSCRIPTION_FAILED";
+
+    private final Path path;
+    private final Map<String, String[]> entries = new ConcurrentHashMap<>();
+    private final Map<String, Integer> transcriptionFailures = new ConcurrentHashMap<>();
+    private final Logger logger = LoggerFactory.getLogger(ProcessedManifest.class);
+
+    /**
+     * Constructs a new ProcessedManifest and reads the manifest file if it exists.
+     *
+     * @param path The path of the manifest file.
+     */
+    public ProcessedManifest(String path) {
+        this.path = Paths.get(path);
+        load();
+    }
+
+    /**
+     * Checks if an audio file has already been handled and has not changed since.
+     *
+     * @param storedFile The audio file.
+     * @return True if the file is in the manifest with the same ETag and last modified time.
+     */
+    public boolean contains(StoredFile storedFile) {
+        String[] entry = entries.get(storedFile.name());
+        return entry != null
+                && entry[2].equals(storedFile.eTag())
+                && entry[3].equals(String.valueOf(storedFile.lastModified()));
+    }
+
+    /**
+     * Records an audio file in the manifest.
+     *
+     * @param storedFile The audio file.
+     * @param status     The status of the file.
+     */
+    public synchronized void record(StoredFile storedFile, Status status) {
+        String[] entry = {status.name(), storedFile.name(), storedFile.eTag(), String.valueOf(storedFile.lastModified())};
+        entries.put(storedFile.name(), entry);
+        append(entry);
+    }
+
+    /**
+     * Records that an audio file got no transcription. The failures are counted per version of the file,
+     * so a file that is uploaded again with new content starts over from zero.
+     *
+     * @param storedFile The audio file.
+     * @return The number of failed transcriptions of this version of the file, including this one.
+     */
+    public synchronized int recordTranscriptionFailure(StoredFile storedFile) {
+        String[] entry = {TRANSCRIPTION_FAILED, storedFile.name(), storedFile.eTag(), String.valueOf(storedFile.lastModified())};
+        append(entry);
+        return transcriptionFailures.merge(versionKey(entry), 1, Integer::sum);
+    }
+
+    private void append(String[] entry) {
+        try {
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            Files.writeString(path, String.join("\t", entry) + "\n", StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            logger.error("An error occurred when writing to the manifest: {}", e.getMessage());
+            throw new RuntimeException("Exception thrown in ProcessedManifest, append " + e.getMessage());
+        }
+    }
+
+    private void load() {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try {
+            List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+            for (String line : lines) {
+                String[] entry = line.split("\t");
+                if (entry.length != 4) {
+                    continue;
+                }
+                if (entry[0].equals(TRANSCRIPTION_FAILED)) {
+                    transcriptionFailures.merge(versionKey(entry), 1, Integer::sum);
+                } else {
+                    entries.put(entry[1], entry);
+                }
+            }
+            logger.info("Loaded manifest of processed audio files, files: {}", entries.size());
+        } catch (IOException e) {
+            logger.error("An error occurred when reading the manifest: {}", e.getMessage());
+            throw new RuntimeException("Exception thrown in ProcessedManifest, load " + e.getMessage());
+        }
+    }
+
+    private static String versionKey(String[] entry) {
+        return entry[1] + "\t" + entry[2] + "\t" + entry[3];
+    }
+}
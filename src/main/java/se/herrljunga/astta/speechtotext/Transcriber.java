@@ -0,0 +1,32 @@
+package se.herrljunga.astta.speechtotext;
+
+import se.herrljunga.astta.filehandler.StoredFile;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The Transcriber interface.
+ * <p>
+ * This interface is what the TranscriptionPipeline needs from a speech to text service: submit the audio files of a run
+ * and wait for the transcriptions. The transcriptions are written to the temp container as "&lt;audio file name&gt;.json",
+ * where the pipeline picks them up. BatchTranscriber sends them to Azure Speech to Text, the simulator package has
+ * a Transcriber that writes synthetic transcriptions without Azure.
+ */
+public interface Transcriber {
+    /**
+     * Submits the transcription jobs for a run without waiting for them to complete.
+     *
+     * @param sourceFiles The files currently in the audio source container.
+     * @return The URLs of the created transcriptions, empty if there was nothing new to transcribe.
+     */
+    List<String> submitTranscriptions(List<StoredFile> sourceFiles);
+
+    /**
+     * Waits for a transcription in the background.
+     *
+     * @param transcriptionUrl The URL of the transcription.
+     * @return A future that completes with the URL when the transcription is done, or exceptionally if it failed.
+     */
+    CompletableFuture<String> awaitTranscription(String transcriptionUrl);
+}
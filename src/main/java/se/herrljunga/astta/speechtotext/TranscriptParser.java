@@ -0,0 +1,97 @@
+package se.herrljunga.astta.speechtotext;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.herrljunga.astta.metrics.Metrics;
+import se.herrljunga.astta.utils.TranscribedCallInformation;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * The TranscriptParser class.
+ * <p>
+ * This class reads the result files of Azure Speech to Text batch transcription.
+ * A result file is often more than 10k lines, most of it word and phrase level details the analysis does not need.
+ * The parser streams through the file once with a Gson JsonReader and only keeps the duration and the display text
+ * of combinedRecognizedPhrases, everything else is skipped without being built into objects.
+ * <p>
+ * The time of each parse is recorded in the histogram transcript_parse_millis. When the reader is a stream of a blob,
+ * the time includes reading the blob.
+ */
+public class TranscriptParser {
+    private static final Logger logger = LoggerFactory.getLogger(TranscriptParser.class);
+
+    /**
+     * Parses a transcription result file on the local filesystem.
+     *
+     * @param path The path of the result file.
+     * @return A TranscribedCallInformation object containing the transcription, duration, and path of the transcribed call.
+     * @throws RuntimeException if the file can't be read or is not valid JSON.
+     */
+    public static TranscribedCallInformation parse(String path) {
+        try (Reader reader = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+            return parse(reader, path);
+        } catch (IOException e) {
+            logger.error("An error occurred when extracting information from {}, {}", path, e.getMessage());
+            throw new RuntimeException("Exception thrown in TranscriptParser, parse " + e.getMessage());
+        }
+    }
+
+    /**
+     * Parses a transcription result from a reader.
+     * <p>
+     * combinedRecognizedPhrases has one entry per audio channel, the display text of the last entry is used.
+     *
+     * @param reader The reader to read the result from, it is not closed.
+     * @param path   The path or name of the result file, used to identify the call.
+     * @return A TranscribedCallInformation object containing the transcription, duration, and path of the transcribed call.
+     * @throws IOException if the reader fails.
+     * @throws RuntimeException if the result is not valid JSON.
+     */
+    public static TranscribedCallInformation parse(Reader reader, String path) throws IOException {
+        String transcription = null;
+        String duration = null;
+        long start = System.nanoTime();
+        try {
+            JsonReader jsonReader = new JsonReader(reader);
+            jsonReader.beginObject();
+            while (jsonReader.hasNext()) {
+                switch (jsonReader.nextName()) {
+                    case "duration" -> duration = jsonReader.nextString();
+                    case "combinedRecognizedPhrases" -> transcription = readDisplayText(jsonReader);
+                    default -> jsonReader.skipValue();
+                }
+            }
+            jsonReader.endObject();
+        } catch (IllegalStateException | JsonParseException e) {
+            logger.error("An error occurred when parsing {}, {}", path, e.getMessage());
+            throw new RuntimeException("Exception thrown in TranscriptParser, parse " + e.getMessage());
+        }
+        Metrics.recordSince("transcript_parse_millis", start);
+        return new TranscribedCallInformation(transcription, duration, path);
+    }
+
+    private static String readDisplayText(JsonReader jsonReader) throws IOException {
+        String transcription = null;
+        jsonReader.beginArray();
+        while (jsonReader.hasNext()) {
+            jsonReader.beginObject();
+            while (jsonReader.hasNext()) {
+                if (jsonReader.nextName().equals("display")) {
+                    transcription = jsonReader.nextString();
+                } else {
+                    jsonReader.skipValue();
+                }
+            }
+            jsonReader.endObject();
+        }
+        jsonReader.endArray();
+        return transcription;
+    }
+}
@@ -9,6 +9,14 @@ public class Config {
         public String region;
         public List<String> supportedLanguages;
         public String secretName;
+        public boolean deltaMode;
+        public int maxFilesPerTranscription;
+        public String manifestPath;
+        public int shards;
+        public String shardBy;
+        public int audioBytesPerSecond;
+        public int pollInitialSeconds;
+        public int pollMaxSeconds;
     }
 
     public static class BlobStorage {
@@ -20,6 +28,12 @@ public class Config {
         public String tempContainerName;
         public String sasTokenSecretName;
         public String endpoint;
+        public int streamBlockSizeKilobytes;
+        public int uploadThreads;
+        public int uploadBlockSizeKilobytes;
+        public int uploadMaxConcurrency;
+        public int deleteBatchSize;
+        public boolean gzipAnalyzedCalls;
     }
 
     public static class OpenAI {
@@ -27,6 +41,34 @@ public class Config {
         public String endpoint;
         public String model;
         public String promptPath;
+        public int minConcurrentRequests;
+        public int initialConcurrentRequests;
+        public int maxRetries;
+        public String mode;
+        public String batchApiVersion;
+        public int batchPollSeconds;
+        public int batchMaxWaitMinutes;
+        public String reducePromptPath;
+        public int chunkSizeTokens;
+        public int maxParallelChunks;
+        public int contextWindowTokens;
+        public int answerTokens;
+        public long tokenBudgetPerRun;
+        public long tokenBudgetPerMinute;
+        public int tokenBudgetWindowHours;
+    }
+
+    public static class Journal {
+        public String path;
+        public int syncEveryRecords;
+        public long syncIntervalMillis;
+        public int maxAttemptsPerCall;
+    }
+
+    public static class AnalysisCache {
+        public boolean enabled;
+        public String directory;
+        public long maxSizeMegabytes;
     }
 
     public static class Utils {
@@ -44,10 +86,90 @@ public class Config {
         public String smtpToAddress;
     }
 
+    public static class KeyVault {
+        public int cacheTtlMinutes;
+        public int refreshAheadMinutes;
+        public int fetchThreads;
+    }
+
+    public static class Pipeline {
+        public int queueCapacity;
+        public int downloadThreads;
+        public int parseThreads;
+        public int uploadThreads;
+        public int deleteThreads;
+        public int discoveryIntervalSeconds;
+        public boolean streamTranscripts;
+    }
+
+    public static class Http {
+        public int maxConnections;
+        public int maxConnectionsPerHost;
+        public int keepAliveSeconds;
+        public int connectTimeoutSeconds;
+        public int responseTimeoutSeconds;
+    }
+
+    public static class Execution {
+        public String mode;
+        public int blobStorageConcurrency;
+        public int openAIConcurrency;
+        public int maxInFlightPerStage;
+    }
+
+    public static class Output {
+        public String format;
+        public String prefix;
+        public boolean partitionByDepartment;
+        public int flushKilobytes;
+        public long flushIntervalMillis;
+    }
+
+    public static class Metrics {
+        public String prometheusFile;
+        public int port;
+        public int exportIntervalSeconds;
+    }
+
+    public static class ConfigReload {
+        public boolean enabled;
+        public int intervalSeconds;
+    }
+
+    public static class Daemon {
+        public boolean enabled;
+        public int pollSeconds;
+        public int batchMaxFiles;
+        public int batchMaxWaitSeconds;
+        public int maxBackoffSeconds;
+    }
+
+    public static class Simulator {
+        public int calls;
+        public int phrasesPerCall;
+        public int transcribedCallsPerSecond;
+        public long blobLatencyMillis;
+        public long openAILatencyMillis;
+        public double openAIThrottleRate;
+        public double openAIMalformedRate;
+        public long seed;
+    }
+
     public SpeechToText speechToText;
     public BlobStorage blobStorage;
     public OpenAI openAI;
+    public AnalysisCache analysisCache;
     public Utils utils;
     public EmailSender emailSender;
+    public KeyVault keyVault;
+    public Pipeline pipeline;
+    public Http http;
+    public Execution execution;
+    public Journal journal;
+    public Output output;
+    public Metrics metrics;
+    public ConfigReload configReload;
+    public Daemon daemon;
+    public Simulator simulator;
     public int maxThreadsForAnalysis;
 }
\ No newline at end of file
@@ -1,20 +1,184 @@
 package se.herrljunga.astta.utils;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.yaml.snakeyaml.Yaml;
+
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 
+/**
+ * The ConfigLoader class.
+ * <p>
+ * This class loads config.yaml once and gives every class the same validated snapshot. The file is read from the path
+ * in the system property "astta.config" when it is set, otherwise from the classpath.
+ * <p>
+ * A snapshot is never changed after it has been loaded. reload() loads a new snapshot and passes it to the listeners,
+ * which apply the settings that can change while running, see ConfigWatcher. A class that keeps the snapshot from
+ * startup in a field keeps the settings it started with. The application registers the listeners of its long-lived
+ * objects once at startup, so the objects built by tests are never changed by a reload.
+ */
 public class ConfigLoader {
+    /**
+     * The system property with the path of a config.yaml outside the jar.
+     */
+    public static final String CONFIG_FILE_PROPERTY = "astta.config";
+    private static final Logger logger = LoggerFactory.getLogger(ConfigLoader.class);
+    private static final List<Consumer<Config>> listeners = new CopyOnWriteArrayList<>();
+    private static volatile Config current;
+
+    /**
+     * Gets the current configuration, loading it the first time.
+     *
+     * @return The current configuration. It must not be changed.
+     * @throws RuntimeException if config.yaml can't be read or is not valid.
+     */
     public static Config loadConfig() {
+        Config config = current;
+        if (config == null) {
+            synchronized (ConfigLoader.class) {
+                if (current == null) {
+                    current = parse();
+                }
+                config = current;
+            }
+        }
+        return config;
+    }
+
+    /**
+     * Loads config.yaml again and passes the new configuration to every listener.
+     * If the file is not valid the current configuration is kept.
+     *
+     * @return The new configuration.
+     * @throws RuntimeException if config.yaml can't be read or is not valid.
+     */
+    public static synchronized Config reload() {
+        Config config = parse();
+        current = config;
+        for (Consumer<Config> listener : listeners) {
+            try {
+                listener.accept(config);
+            } catch (RuntimeException e) {
+                logger.error("Could not apply the reloaded configuration: {}", e.getMessage());
+            }
+        }
+        return config;
+    }
+
+    /**
+     * Adds a listener that is called with the new configuration after every reload().
+     *
+     * @param listener The listener.
+     */
+    public static void addListener(Consumer<Config> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener added with addListener().
+     *
+     * @param listener The listener.
+     */
+    public static void removeListener(Consumer<Config> listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Gets the config.yaml the configuration is loaded from.
+     *
+     * @return The path in the system property "astta.config", or null if the configuration is loaded from the classpath.
+     */
+    public static Path getConfigFile() {
+        String path = System.getProperty(CONFIG_FILE_PROPERTY);
+        return path == null || path.isBlank() ? null : Paths.get(path);
+    }
+
+    private static Config parse() {
         Yaml yaml = new Yaml();
-        try (InputStream in = ConfigLoader.class.getClassLoader().getResourceAsStream("config.yaml")) {
+        Path file = getConfigFile();
+        Config config;
+        try (InputStream in = file != null ? Files.newInputStream(file) : ConfigLoader.class.getClassLoader().getResourceAsStream("config.yaml")) {
             if (in == null) {
                 throw new RuntimeException("config.yaml not found in classpath");
             }
-            return yaml.loadAs(in, Config.class);
+            config = yaml.loadAs(in, Config.class);
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Failed to load configuration", e);
         }
+        validate(config);
+        return config;
     }
-}
 
+    private static void validate(Config config) {
+        if (config == null) {
+            throw new RuntimeException("Invalid configuration: the file is empty");
+        }
+        // Every section the application reads, so a config.yaml written before a section existed is rejected here
+        // and not with a NullPointerException later
+        List<String> missing = new ArrayList<>();
+        requireSection(missing, "speechToText", config.speechToText);
+        requireSection(missing, "blobStorage", config.blobStorage);
+        requireSection(missing, "openAI", config.openAI);
+        requireSection(missing, "analysisCache", config.analysisCache);
+        requireSection(missing, "utils", config.utils);
+        requireSection(missing, "emailSender", config.emailSender);
+        requireSection(missing, "keyVault", config.keyVault);
+        requireSection(missing, "pipeline", config.pipeline);
+        requireSection(missing, "http", config.http);
+        requireSection(missing, "execution", config.execution);
+        requireSection(missing, "journal", config.journal);
+        requireSection(missing, "output", config.output);
+        requireSection(missing, "metrics", config.metrics);
+        requireSection(missing, "configReload", config.configReload);
+        requireSection(missing, "daemon", config.daemon);
+        if (!missing.isEmpty()) {
+            throw new RuntimeException("Invalid configuration: missing section(s) " + String.join(", ", missing));
+        }
+        List<String> problems = new ArrayList<>();
+        requirePositive(problems, "maxThreadsForAnalysis", config.maxThreadsForAnalysis);
+        requirePositive(problems, "pipeline.queueCapacity", config.pipeline.queueCapacity);
+        requirePositive(problems, "pipeline.downloadThreads", config.pipeline.downloadThreads);
+        requirePositive(problems, "pipeline.parseThreads", config.pipeline.parseThreads);
+        requirePositive(problems, "pipeline.uploadThreads", config.pipeline.uploadThreads);
+        requirePositive(problems, "pipeline.deleteThreads", config.pipeline.deleteThreads);
+        requirePositive(problems, "pipeline.discoveryIntervalSeconds", config.pipeline.discoveryIntervalSeconds);
+        requirePositive(problems, "execution.blobStorageConcurrency", config.execution.blobStorageConcurrency);
+        requirePositive(problems, "execution.openAIConcurrency", config.execution.openAIConcurrency);
+        requirePositive(problems, "speechToText.pollInitialSeconds", config.speechToText.pollInitialSeconds);
+        // The durations the shards are balanced by are divided by it
+        requirePositive(problems, "speechToText.audioBytesPerSecond", config.speechToText.audioBytesPerSecond);
+        if (config.speechToText.pollMaxSeconds < config.speechToText.pollInitialSeconds) {
+            problems.add("speechToText.pollMaxSeconds is less than speechToText.pollInitialSeconds");
+        }
+        if (config.openAI.minConcurrentRequests > config.maxThreadsForAnalysis) {
+            problems.add("openAI.minConcurrentRequests is more than maxThreadsForAnalysis");
+        }
+        if (config.daemon.enabled) {
+            requirePositive(problems, "daemon.pollSeconds", config.daemon.pollSeconds);
+            requirePositive(problems, "daemon.batchMaxFiles", config.daemon.batchMaxFiles);
+        }
+        if (!problems.isEmpty()) {
+            throw new RuntimeException("Invalid configuration: " + String.join(", ", problems));
+        }
+    }
+
+    private static void requireSection(List<String> missing, String name, Object section) {
+        if (section == null) {
+            missing.add(name);
+        }
+    }
+
+    private static void requirePositive(List<String> problems, String name, long value) {
+        if (value <= 0) {
+            problems.add(name + " must be more than 0");
+        }
+    }
+}
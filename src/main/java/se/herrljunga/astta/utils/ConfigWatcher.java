@@ -0,0 +1,94 @@
+package se.herrljunga.astta.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The ConfigWatcher class.
+ * <p>
+ * This class checks config.yaml every interval and reloads the configuration when the file has changed, see
+ * ConfigLoader.reload(). The file is polled instead of watched with a WatchService, so it also works on mounted
+ * volumes where file events are not delivered.
+ * <p>
+ * The settings applied without a restart are the thread counts of the pipeline stages, maxThreadsForAnalysis and
+ * openAI.minConcurrentRequests, the execution concurrency limits, the token budgets of OpenAI, the poll and
+ * discovery intervals, and the daemon settings other than daemon.enabled. The output settings apply from the next run
+ * of the pipeline. Other settings need a restart. A file that is not valid is logged and the current
+ * configuration is kept.
+ */
+public class ConfigWatcher implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(ConfigWatcher.class);
+    private final Path file;
+    private final ScheduledExecutorService scheduler;
+    private FileTime lastModified;
+    private long lastSize;
+
+    /**
+     * Constructs a new ConfigWatcher and starts checking the file.
+     *
+     * @param file            The config.yaml the configuration is loaded from, see ConfigLoader.getConfigFile().
+     * @param intervalSeconds The time between checks.
+     */
+    public ConfigWatcher(Path file, long intervalSeconds) {
+        this.file = file;
+        this.lastModified = modified();
+        this.lastSize = size();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "config-watcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::check, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        logger.info("Watching {} for changes every {} s", file, intervalSeconds);
+    }
+
+    /**
+     * Stops checking the file.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    private void check() {
+        FileTime modified = modified();
+        long size = size();
+        if (modified == null || (modified.equals(lastModified) && size == lastSize)) {
+            return;
+        }
+        lastModified = modified;
+        lastSize = size;
+        try {
+            ConfigLoader.reload();
+            logger.info("Configuration reloaded from {}", file);
+        } catch (RuntimeException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            logger.error("Keeping the current configuration, {} could not be loaded: {}", file, cause.getMessage());
+        }
+    }
+
+    private FileTime modified() {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            logger.warn("Could not read the modification time of {}: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    private long size() {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package se.herrljunga.astta.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * The ThreadPools class.
+ * <p>
+ * This class creates the executors for the I/O-bound work of the application, depending on execution.mode in config.yaml.
+ * With "platform" every executor is a fixed pool of platform threads, as before.
+ * With "virtual" every task runs on its own virtual thread, so a call waiting minutes for OpenAI only costs a small
+ * heap-allocated stack instead of a platform thread. Virtual threads need Java 21, on an older runtime the application
+ * logs a warning and uses platform threads.
+ * <p>
+ * Without a fixed pool nothing limits how many calls are sent to a service at once, so each external service has
+ * a shared Semaphore, see getServiceLimit(). The limit is shared by every stage that calls the service, and follows
+ * execution.blobStorageConcurrency and execution.openAIConcurrency when the configuration is reloaded.
+ */
+public class ThreadPools {
+    /**
+     * The external services the application calls.
+     */
+    public enum Service {
+        BLOB_STORAGE, OPENAI
+    }
+
+    private static Config config = ConfigLoader.loadConfig();
+    private static final Logger logger = LoggerFactory.getLogger(ThreadPools.class);
+    private static final boolean virtualThreads = "virtual".equals(config.execution.mode) && virtualThreadsSupported();
+    private static final Map<Service, ServiceLimit> serviceLimits = Map.of(
+            Service.BLOB_STORAGE, new ServiceLimit(config.execution.blobStorageConcurrency),
+            Service.OPENAI, new ServiceLimit(config.execution.openAIConcurrency));
+
+    static {
+        ConfigLoader.addListener(ThreadPools::applyConfig);
+    }
+
+    /**
+     * A Semaphore whose number of permits can be changed while permits are held.
+     * Lowering it takes effect as the held permits are released.
+     */
+    private static class ServiceLimit extends Semaphore {
+        private int permits;
+
+        private ServiceLimit(int permits) {
+            super(permits);
+            this.permits = permits;
+        }
+
+        private synchronized void resize(int newPermits) {
+            if (newPermits > permits) {
+                release(newPermits - permits);
+            } else if (newPermits < permits) {
+                reducePermits(permits - newPermits);
+            }
+            permits = newPermits;
+        }
+    }
+
+    /**
+     * Checks if the executors run their tasks on virtual threads.
+     *
+     * @return True if execution.mode is "virtual" and the runtime supports virtual threads.
+     */
+    public static boolean useVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Creates an executor for I/O-bound tasks.
+     *
+     * @param platformThreads The number of threads when running on platform threads.
+     * @return A virtual thread per task executor in virtual mode, otherwise a fixed thread pool.
+     */
+    public static ExecutorService newExecutor(int platformThreads) {
+        if (virtualThreads) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw new RuntimeException("Exception thrown in ThreadPools, newExecutor " + e.getMessage());
+            }
+        }
+        return Executors.newFixedThreadPool(platformThreads);
+    }
+
+    /**
+     * Gets the Semaphore that limits the number of concurrent calls to a service.
+     *
+     * @param service The service.
+     * @return The shared Semaphore of the service.
+     */
+    public static Semaphore getServiceLimit(Service service) {
+        return serviceLimits.get(service);
+    }
+
+    private static void applyConfig(Config config) {
+        serviceLimits.get(Service.BLOB_STORAGE).resize(config.execution.blobStorageConcurrency);
+        serviceLimits.get(Service.OPENAI).resize(config.execution.openAIConcurrency);
+    }
+
+    private static boolean virtualThreadsSupported() {
+        try {
+            // Java 19 and 20 have the method, but it throws unless preview features are enabled
+            ExecutorService executorService = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            executorService.shutdown();
+            logger.info("Running I/O-bound work on virtual threads");
+            return true;
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            logger.warn("Virtual threads are not supported by Java {}, using platform threads", Runtime.version().feature());
+            return false;
+        }
+    }
+}
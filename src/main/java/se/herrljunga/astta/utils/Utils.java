@@ -30,7 +30,17 @@ public class Utils {
      * If the directory already exists, its contents and the directory are deleted before creating a new directory.
      */
     public static void createTempDirectory() {
-        File path = new File(config.utils.pathToTemp);
+        createTempDirectory(config.utils.pathToTemp, config.utils.analyzedJsonSaveDirectory);
+    }
+
+    /**
+     * Creates the given temporary directories, deleting the temp directory and its contents first if it exists.
+     *
+     * @param pathToTemp                The temp directory.
+     * @param analyzedJsonSaveDirectory The directory of the analyzed files, inside the temp directory.
+     */
+    public static void createTempDirectory(String pathToTemp, String analyzedJsonSaveDirectory) {
+        File path = new File(pathToTemp);
         Path directoryPath = Paths.get(path.getPath());
         // Delete the folder if it exists, we don't want old temp files
         deleteFolderIfExists(path);
@@ -38,8 +48,7 @@ public class Utils {
         try {
             logger.info("Creating temp directory");
             Files.createDirectory(directoryPath);
-            File analyzedJsonSaveDirectory = new File(config.utils.analyzedJsonSaveDirectory);
-            Path analyzedJsonSaveDirectorydirectoryPath = Paths.get(analyzedJsonSaveDirectory.getPath());
+            Path analyzedJsonSaveDirectorydirectoryPath = Paths.get(new File(analyzedJsonSaveDirectory).getPath());
             Files.createDirectory(analyzedJsonSaveDirectorydirectoryPath); // Create temp analyzed directory to store analyzed files
             logger.info("Done creating temp directory");
         } catch (IOException ex) {
@@ -48,6 +57,30 @@ public class Utils {
         }
     }
 
+    /**
+     * Creates the temporary directories if they don't exist, keeping any files already in them.
+     * Used when resuming an unfinished run, where the files from the last run are still needed.
+     */
+    public static void ensureTempDirectory() {
+        ensureTempDirectory(config.utils.pathToTemp, config.utils.analyzedJsonSaveDirectory);
+    }
+
+    /**
+     * Creates the given temporary directories if they don't exist, keeping any files already in them.
+     *
+     * @param pathToTemp                The temp directory.
+     * @param analyzedJsonSaveDirectory The directory of the analyzed files.
+     */
+    public static void ensureTempDirectory(String pathToTemp, String analyzedJsonSaveDirectory) {
+        try {
+            Files.createDirectories(Paths.get(pathToTemp));
+            Files.createDirectories(Paths.get(analyzedJsonSaveDirectory));
+        } catch (IOException ex) {
+            logger.info("An error occurred when trying to create directory.");
+            throw new RuntimeException("Exception thrown in Utils, ensureTempDirectory " + ex.getMessage());
+        }
+    }
+
     /**
      * Deletes file or a directory and its contents.
      *
@@ -131,32 +164,62 @@ public class Utils {
     }
 
 
+    /**
+     * Estimates the duration of an audio file in seconds from its size, without reading the file.
+     * Assumes uncompressed audio with the given byte rate, e.g. 32000 for 16 kHz 16-bit mono.
+     *
+     * @param sizeBytes      the size of the audio file in bytes
+     * @param bytesPerSecond the byte rate of the audio
+     * @return the estimated duration of the audio file in seconds
+     */
+    public static double estimateAudioDuration(long sizeBytes, int bytesPerSecond) {
+        return (double) sizeBytes / bytesPerSecond;
+    }
+
     /**
      * Creates a json object and adds language, duration and tokensUsed to the json object
+     * When the result came from the analysis cache, TokensUsed is 0 and the tokens of the original analysis are added as TokensSavedByCache.
      *
      * @param content    The "base" content of the json file
      * @param duration   The duration of the call
      * @param tokensUsed Tokens used in the analyzing process
+     * @param cacheHit   Whether the analysis was taken from the cache
      * @return a json string of a complete json object
      **/
 
 
-    public static String createJson(String content, String duration, int tokensUsed, String path) {
+    public static String createJson(String content, String duration, int tokensUsed, boolean cacheHit, String path) {
         logger.info("Creating and parsing json: {}", path);
         try {
-            JsonObject jsonObject = new Gson().fromJson(content, JsonObject.class);
-            jsonObject.addProperty("FileLength", duration);
-            jsonObject.addProperty("TokensUsed", tokensUsed);
-            jsonObject.addProperty("AgentName", GetAgentName.getAgentName(path));
-            Gson gson = new GsonBuilder().setPrettyPrinting().create();
-            logger.info("Done creating and parsing json: {}", path);
-            return gson.toJson(jsonObject);
+            return createJson(new Gson().fromJson(content, JsonObject.class), duration, tokensUsed, cacheHit, path);
         } catch (JsonParseException e) {
             logger.error("An error occurred when trying to parse Json.{}", e.getMessage());
             logger.error("Json: {}", content);
             throw new RuntimeException("Exception thrown in Utils, createJson " + e.getMessage());
         }
     }
+
+    /**
+     * Creates a json string from an already parsed analysis and adds duration, tokensUsed and the agent name to it.
+     * The analysis is copied, the given object is not changed. The json is compact, without indentation.
+     *
+     * @param analysis   The parsed "base" content of the json file
+     * @param duration   The duration of the call
+     * @param tokensUsed Tokens used in the analyzing process
+     * @param cacheHit   Whether the analysis was taken from the cache
+     * @param path       The path of the transcribed file
+     * @return a json string of a complete json object
+     **/
+    public static String createJson(JsonObject analysis, String duration, int tokensUsed, boolean cacheHit, String path) {
+        JsonObject jsonObject = analysis.deepCopy();
+        jsonObject.addProperty("FileLength", duration);
+        jsonObject.addProperty("TokensUsed", cacheHit ? 0 : tokensUsed);
+        jsonObject.addProperty("TokensSavedByCache", cacheHit ? tokensUsed : 0);
+        jsonObject.addProperty("CacheHit", cacheHit);
+        jsonObject.addProperty("AgentName", GetAgentName.getAgentName(path));
+        logger.info("Done creating json: {}", path);
+        return jsonObject.toString();
+    }
     /**
      * Validates a JSON string.
      *
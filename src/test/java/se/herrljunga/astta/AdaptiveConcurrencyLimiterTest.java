@@ -0,0 +1,62 @@
+package se.herrljunga.astta;
+
+import org.junit.jupiter.api.Test;
+import se.herrljunga.astta.analyze.AdaptiveConcurrencyLimiter;
+
+import java.time.Duration;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AdaptiveConcurrencyLimiterTest {
+    @Test
+    public void testThrottleHalvesLimit() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 20, 8);
+        limiter.onThrottle(null);
+        assertThat(limiter.getLimit()).isEqualTo(4);
+        limiter.onThrottle(null);
+        limiter.onThrottle(null);
+        limiter.onThrottle(null);
+        assertThat(limiter.getLimit()).isEqualTo(1);
+    }
+
+    @Test
+    public void testSuccessGrowsLimitUpToMax() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 3, 1);
+        for (int i = 0; i < 100; i++) {
+            limiter.onSuccess(-1);
+        }
+        assertThat(limiter.getLimit()).isEqualTo(3);
+    }
+
+    @Test
+    public void testNoGrowthWithoutTokenHeadroom() throws InterruptedException {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 20, 2);
+        limiter.acquire(1000);
+        for (int i = 0; i < 50; i++) {
+            limiter.onSuccess(1500);
+        }
+        limiter.release(1000);
+        assertThat(limiter.getLimit()).isEqualTo(2);
+    }
+
+    @Test
+    public void testAcquireWaitsForRetryAfter() throws InterruptedException {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 20, 4);
+        limiter.onThrottle(Duration.ofMillis(300));
+        long start = System.currentTimeMillis();
+        limiter.acquire(10);
+        assertThat(System.currentTimeMillis() - start).isGreaterThanOrEqualTo(250);
+        assertThat(limiter.getInFlight()).isEqualTo(1);
+        limiter.release(10);
+        assertThat(limiter.getInFlight()).isZero();
+    }
+
+    @Test
+    public void testSetBoundsMovesLimitInside() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 20, 8);
+        limiter.setBounds(1, 4);
+        assertThat(limiter.getLimit()).isEqualTo(4);
+        limiter.setBounds(6, 10);
+        assertThat(limiter.getLimit()).isEqualTo(6);
+    }
+}
@@ -0,0 +1,56 @@
+package se.herrljunga.astta;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import se.herrljunga.astta.analyze.AnalysisCache;
+import se.herrljunga.astta.analyze.AnalyzeResult;
+
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AnalysisCacheTest {
+    @TempDir
+    Path cacheDirectory;
+
+    @Test
+    public void testKeyDependsOnModelPromptAndText() {
+        String key = AnalysisCache.createKey("gpt-4", "prompt", "text");
+        assertThat(AnalysisCache.createKey("gpt-4", "prompt", "text")).isEqualTo(key);
+        assertThat(AnalysisCache.createKey("gpt-35", "prompt", "text")).isNotEqualTo(key);
+        assertThat(AnalysisCache.createKey("gpt-4", "prompt2", "text")).isNotEqualTo(key);
+        assertThat(AnalysisCache.createKey("gpt-4", "promp", "ttext")).isNotEqualTo(key);
+        assertThat(AnalysisCache.createKey("gpt-4", "prompt", "text", "reduce", "3000")).isNotEqualTo(key)
+                .isNotEqualTo(AnalysisCache.createKey("gpt-4", "prompt", "text", "reduce", "2000"));
+    }
+
+    @Test
+    public void testEntriesSurviveRestart() {
+        String key = AnalysisCache.createKey("gpt-4", "prompt", "text");
+        new AnalysisCache(true, cacheDirectory.toString(), 10).put(key, new AnalyzeResult("{\"Summary\": \"x\"}", 123, false));
+
+        AnalyzeResult cached = new AnalysisCache(true, cacheDirectory.toString(), 10).get(key);
+        assertThat(cached).isEqualTo(new AnalyzeResult("{\"Summary\": \"x\"}", 123, true));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntryIsEvicted() {
+        AnalysisCache cache = new AnalysisCache(true, cacheDirectory.toString(), 1);
+        String bigText = "x".repeat(400 * 1024);
+        cache.put("first", new AnalyzeResult(bigText, 1, false));
+        cache.put("second", new AnalyzeResult(bigText, 2, false));
+        cache.get("first");
+        cache.put("third", new AnalyzeResult(bigText, 3, false));
+
+        assertThat(cache.get("second")).isNull();
+        assertThat(cache.get("first")).isNotNull();
+        assertThat(cache.get("third")).isNotNull();
+    }
+
+    @Test
+    public void testDisabledCacheStoresNothing() {
+        AnalysisCache cache = new AnalysisCache(false, cacheDirectory.toString(), 10);
+        cache.put("key", new AnalyzeResult("{}", 1, false));
+        assertThat(cache.get("key")).isNull();
+    }
+}
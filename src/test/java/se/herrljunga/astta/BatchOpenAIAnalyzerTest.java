@@ -0,0 +1,175 @@
+package se.herrljunga.astta;
+
+import com.azure.core.http.HttpClient;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.OkHttpClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import se.herrljunga.astta.analyze.AnalysisCache;
+import se.herrljunga.astta.analyze.AnalyzeResult;
+import se.herrljunga.astta.analyze.BatchOpenAIAnalyzer;
+import se.herrljunga.astta.analyze.OpenAIAnalyzer;
+import se.herrljunga.astta.utils.TranscribedCallInformation;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BatchOpenAIAnalyzerTest {
+    @TempDir
+    Path cacheDirectory;
+    private HttpServer server;
+    private final AtomicInteger statusChecks = new AtomicInteger();
+    private final AtomicInteger synchronousCalls = new AtomicInteger();
+    private final AtomicInteger cancels = new AtomicInteger();
+    private volatile boolean statusUnavailable;
+    private volatile String uploadedFile;
+
+    @BeforeEach
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/openai/", this::handle);
+        server.start();
+    }
+
+    @AfterEach
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testAnswersAreMappedBackAndStragglersAreAnalyzedSynchronously() {
+        String endpoint = "http://localhost:" + server.getAddress().getPort();
+        OpenAIAnalyzer synchronous = new OpenAIAnalyzer("key", endpoint, "gpt-4", HttpClient.createDefault(),
+                new AnalysisCache(true, cacheDirectory.toString(), 10)) {
+            @Override
+            public AnalyzeResult getAnalyzeResult(TranscribedCallInformation transcribedCall) {
+                synchronousCalls.incrementAndGet();
+                return new AnalyzeResult("{\"Summary\": \"synchronous\"}", 50, false);
+            }
+        };
+        BatchOpenAIAnalyzer analyzer = new BatchOpenAIAnalyzer(new OkHttpClient(), "key", endpoint, synchronous,
+                Duration.ofMillis(10), Duration.ofMinutes(1));
+        List<TranscribedCallInformation> calls = List.of(
+                new TranscribedCallInformation("valid", "PT1M", "temp/a.json"),
+                new TranscribedCallInformation("not json", "PT1M", "temp/b.json"),
+                new TranscribedCallInformation("server error", "PT1M", "temp/c.json"));
+
+        Map<String, AnalyzeResult> results = new ConcurrentHashMap<>();
+        analyzer.analyzeAll(calls, new BatchOpenAIAnalyzer.Listener() {
+            @Override
+            public void onResult(TranscribedCallInformation call, AnalyzeResult result) {
+                results.put(call.getPath(), result);
+            }
+
+            @Override
+            public void onFailure(TranscribedCallInformation call, Exception e) {
+                throw new AssertionError(e);
+            }
+        });
+
+        assertThat(uploadedFile).contains("\"custom_id\":\"0\"", "\"custom_id\":\"1\"", "\"custom_id\":\"2\"", "\"model\":\"gpt-4\"",
+                "\"response_format\":{\"type\":\"json_object\"}");
+        // The first status check fails and is tried again
+        assertThat(statusChecks.get()).isEqualTo(3);
+        assertThat(cancels.get()).isZero();
+        assertThat(results.get("temp/a.json").result()).isEqualTo("{\"Summary\":\"batch\"}");
+        assertThat(results.get("temp/a.json").tokensUsed()).isEqualTo(120);
+        assertThat(results.get("temp/a.json").analysis().summary()).isEqualTo("batch");
+        assertThat(results.get("temp/b.json").result()).contains("synchronous");
+        assertThat(results.get("temp/c.json").result()).contains("synchronous");
+        assertThat(synchronousCalls.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void testJobIsCancelledBeforeFallingBackWhenItsStatusIsUnavailable() {
+        statusUnavailable = true;
+        String endpoint = "http://localhost:" + server.getAddress().getPort();
+        OpenAIAnalyzer synchronous = new OpenAIAnalyzer("key", endpoint, "gpt-4", HttpClient.createDefault(),
+                new AnalysisCache(true, cacheDirectory.toString(), 10)) {
+            @Override
+            public AnalyzeResult getAnalyzeResult(TranscribedCallInformation transcribedCall) {
+                synchronousCalls.incrementAndGet();
+                return new AnalyzeResult("{\"Summary\": \"synchronous\"}", 50, false);
+            }
+        };
+        BatchOpenAIAnalyzer analyzer = new BatchOpenAIAnalyzer(new OkHttpClient(), "key", endpoint, synchronous,
+                Duration.ofMillis(10), Duration.ofMinutes(1));
+        List<TranscribedCallInformation> calls = List.of(
+                new TranscribedCallInformation("first", "PT1M", "temp/a.json"),
+                new TranscribedCallInformation("second", "PT1M", "temp/b.json"));
+
+        Map<String, AnalyzeResult> results = new ConcurrentHashMap<>();
+        analyzer.analyzeAll(calls, new BatchOpenAIAnalyzer.Listener() {
+            @Override
+            public void onResult(TranscribedCallInformation call, AnalyzeResult result) {
+                results.put(call.getPath(), result);
+            }
+
+            @Override
+            public void onFailure(TranscribedCallInformation call, Exception e) {
+                throw new AssertionError(e);
+            }
+        });
+
+        assertThat(statusChecks.get()).isEqualTo(5);
+        assertThat(cancels.get()).isEqualTo(1);
+        assertThat(results).hasSize(2);
+        assertThat(synchronousCalls.get()).isEqualTo(2);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        String requestBody = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        String response;
+        if (method.equals("POST") && path.equals("/openai/files")) {
+            uploadedFile = requestBody;
+            response = "{\"id\": \"file-in\", \"status\": \"processed\"}";
+        } else if (method.equals("POST") && path.equals("/openai/batches")) {
+            response = "{\"id\": \"batch-1\", \"status\": \"validating\"}";
+        } else if (method.equals("GET") && path.equals("/openai/batches/batch-1")) {
+            int check = statusChecks.incrementAndGet();
+            if (statusUnavailable || check == 1) {
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+                return;
+            }
+            response = check < 3
+                    ? "{\"id\": \"batch-1\", \"status\": \"in_progress\"}"
+                    : "{\"id\": \"batch-1\", \"status\": \"completed\", \"output_file_id\": \"file-out\"}";
+        } else if (method.equals("POST") && path.equals("/openai/batches/batch-1/cancel")) {
+            cancels.incrementAndGet();
+            response = "{\"id\": \"batch-1\", \"status\": \"cancelling\"}";
+        } else if (method.equals("GET") && path.equals("/openai/files/file-out/content")) {
+            response = outputLine("0", 200, "{\\\"Summary\\\": \\\"batch\\\"}") + "\n"
+                    + outputLine("1", 200, "Sorry, I can't") + "\n"
+                    + outputLine("2", 500, "") + "\n";
+        } else {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+        }
+        byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, bytes.length);
+        exchange.getResponseBody().write(bytes);
+        exchange.close();
+    }
+
+    private static String outputLine(String customId, int statusCode, String content) {
+        return "{\"custom_id\": \"" + customId + "\", \"response\": {\"status_code\": " + statusCode + ", \"body\": "
+                + "{\"choices\": [{\"index\": 0, \"message\": {\"role\": \"assistant\", \"content\": \"" + content + "\"}}],"
+                + " \"usage\": {\"prompt_tokens\": 100, \"completion_tokens\": 20, \"total_tokens\": 120}}}, \"error\": null}";
+    }
+}
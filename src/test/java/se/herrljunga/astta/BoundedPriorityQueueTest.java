@@ -0,0 +1,32 @@
+package se.herrljunga.astta;
+
+import org.junit.jupiter.api.Test;
+import se.herrljunga.astta.pipeline.BoundedPriorityQueue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BoundedPriorityQueueTest {
+    @Test
+    public void testHighestPriorityFirstAndCapacityIsKept() throws InterruptedException {
+        BoundedPriorityQueue<String> queue = new BoundedPriorityQueue<>(3, String::length);
+        queue.put("aa");
+        queue.put("aaaa");
+        queue.put("bb");
+
+        assertThat(queue.offer("aaa")).isFalse();
+        assertThat(queue.offer("aaa", 10, TimeUnit.MILLISECONDS)).isFalse();
+        assertThat(queue.remainingCapacity()).isZero();
+
+        // Same priority in the order the items were added
+        assertThat(queue.take()).isEqualTo("aaaa");
+        assertThat(queue.offer("aaa")).isTrue();
+        List<String> rest = new ArrayList<>();
+        queue.drainTo(rest);
+        assertThat(rest).containsExactly("aaa", "aa", "bb");
+        assertThat(queue.poll(10, TimeUnit.MILLISECONDS)).isNull();
+    }
+}
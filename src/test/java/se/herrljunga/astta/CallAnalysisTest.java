@@ -0,0 +1,45 @@
+package se.herrljunga.astta;
+
+import org.junit.jupiter.api.Test;
+import se.herrljunga.astta.analyze.CallAnalysis;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CallAnalysisTest {
+    private static final String ANSWER = """
+            {
+              "Summary": "The caller could not log in.",
+              "Solution": "The password was reset.",
+              "Keyword": {"Keyword": "Password", "Confidence": "90"},
+              "CallerSatisfaction": {"CallerSatisfactionScore": 8, "Confidence": "70"},
+              "Department": {"Department": "Ekonomi", "Confidence": "60"},
+              "IssueSolved": {"IssueSolved": "true", "Confidence": "95"},
+              "Language": {"LanguageCode": "sv", "Confidence": "99"}
+            }""";
+
+    @Test
+    public void testAnswerIsParsedIntoFields() {
+        CallAnalysis analysis = CallAnalysis.tryParse(ANSWER);
+
+        assertThat(analysis.summary()).isEqualTo("The caller could not log in.");
+        assertThat(analysis.keyword()).isEqualTo(new CallAnalysis.Scored("Password", "90"));
+        assertThat(analysis.callerSatisfaction().value()).isEqualTo("8");
+        assertThat(analysis.issueSolved().value()).isEqualTo("true");
+        assertThat(analysis.language().value()).isEqualTo("sv");
+    }
+
+    @Test
+    public void testCodeFenceAndSurroundingTextAreRepaired() {
+        CallAnalysis analysis = CallAnalysis.tryParse("Here is the analysis:\n```json\n" + ANSWER + "\n```\nHope it helps!");
+
+        assertThat(analysis).isNotNull();
+        assertThat(analysis.department().value()).isEqualTo("Ekonomi");
+    }
+
+    @Test
+    public void testMissingFieldsAreNullAndInvalidAnswersAreRejected() {
+        assertThat(CallAnalysis.tryParse("{\"Summary\": \"short\"}").language()).isNull();
+        assertThat(CallAnalysis.tryParse("Sorry, I can't")).isNull();
+        assertThat(CallAnalysis.tryParse("{\"Summary\": ")).isNull();
+    }
+}
@@ -0,0 +1,88 @@
+package se.herrljunga.astta;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import se.herrljunga.astta.utils.Config;
+import se.herrljunga.astta.utils.ConfigLoader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ConfigLoaderTest {
+    @TempDir
+    Path directory;
+
+    @AfterEach
+    public void restoreConfig() {
+        System.clearProperty(ConfigLoader.CONFIG_FILE_PROPERTY);
+        ConfigLoader.reload();
+    }
+
+    @Test
+    public void testConfigIsLoadedOnce() {
+        assertThat(ConfigLoader.loadConfig()).isSameAs(ConfigLoader.loadConfig());
+    }
+
+    @Test
+    public void testReloadAppliesValidFileOnly() throws IOException {
+        String bundled;
+        try (InputStream in = ConfigLoader.class.getClassLoader().getResourceAsStream("config.yaml")) {
+            bundled = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        Path file = directory.resolve("config.yaml");
+        Files.writeString(file, bundled.replaceAll("(?m)^maxThreadsForAnalysis: \\d+", "maxThreadsForAnalysis: 7"));
+        System.setProperty(ConfigLoader.CONFIG_FILE_PROPERTY, file.toString());
+        AtomicReference<Config> applied = new AtomicReference<>();
+        Consumer<Config> listener = applied::set;
+        ConfigLoader.addListener(listener);
+        Config reloaded;
+        try {
+            reloaded = ConfigLoader.reload();
+        } finally {
+            ConfigLoader.removeListener(listener);
+        }
+        assertThat(reloaded.maxThreadsForAnalysis).isEqualTo(7);
+        assertThat(ConfigLoader.loadConfig()).isSameAs(reloaded);
+        assertThat(applied.get()).isSameAs(reloaded);
+
+        Files.writeString(file, bundled.replaceAll("(?m)^maxThreadsForAnalysis: \\d+", "maxThreadsForAnalysis: 0"));
+        assertThatThrownBy(ConfigLoader::reload).hasMessageContaining("maxThreadsForAnalysis");
+        assertThat(ConfigLoader.loadConfig()).isSameAs(reloaded);
+    }
+
+    @Test
+    public void testFileWithoutASectionIsRejected() throws IOException {
+        String bundled;
+        try (InputStream in = ConfigLoader.class.getClassLoader().getResourceAsStream("config.yaml")) {
+            bundled = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        Path file = directory.resolve("config.yaml");
+        // A config.yaml from before the daemon and metrics sections existed
+        Files.writeString(file, bundled.replaceAll("(?m)^(daemon|metrics):\\n(  .*\\n)+", ""));
+        System.setProperty(ConfigLoader.CONFIG_FILE_PROPERTY, file.toString());
+
+        assertThatThrownBy(ConfigLoader::reload).hasMessageContaining("missing section(s) metrics, daemon");
+    }
+
+    @Test
+    public void testZeroAudioBytesPerSecondIsRejected() throws IOException {
+        String bundled;
+        try (InputStream in = ConfigLoader.class.getClassLoader().getResourceAsStream("config.yaml")) {
+            bundled = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        Path file = directory.resolve("config.yaml");
+        Files.writeString(file, bundled.replaceAll("(?m)^  audioBytesPerSecond: \\d+", "  audioBytesPerSecond: 0"));
+        System.setProperty(ConfigLoader.CONFIG_FILE_PROPERTY, file.toString());
+
+        assertThatThrownBy(ConfigLoader::reload).hasMessageContaining("speechToText.audioBytesPerSecond must be more than 0");
+    }
+}
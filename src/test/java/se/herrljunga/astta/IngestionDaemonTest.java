@@ -0,0 +1,207 @@
+package se.herrljunga.astta;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import se.herrljunga.astta.analyze.AnalysisCache;
+import se.herrljunga.astta.analyze.OpenAIAnalyzer;
+import se.herrljunga.astta.filehandler.StoredFile;
+import se.herrljunga.astta.pipeline.IngestionDaemon;
+import se.herrljunga.astta.pipeline.JobJournal;
+import se.herrljunga.astta.pipeline.TranscriptionPipeline;
+import se.herrljunga.astta.simulator.InMemoryStorageHandler;
+import se.herrljunga.astta.simulator.SimulatedOpenAIHttpClient;
+import se.herrljunga.astta.simulator.SimulatedTranscriber;
+import se.herrljunga.astta.simulator.SyntheticCalls;
+import se.herrljunga.astta.speechtotext.ProcessedManifest;
+import se.herrljunga.astta.speechtotext.Transcriber;
+import se.herrljunga.astta.utils.Config;
+import se.herrljunga.astta.utils.ConfigLoader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class IngestionDaemonTest {
+    @TempDir
+    Path stateDirectory;
+    private final InMemoryStorageHandler audioSource = new InMemoryStorageHandler(0);
+    private final InMemoryStorageHandler tempStorage = new InMemoryStorageHandler(0);
+    private final InMemoryStorageHandler reportStorage = new InMemoryStorageHandler(0);
+    private final InMemoryStorageHandler powerBiStorage = new InMemoryStorageHandler(0);
+    private final List<RuntimeException> failures = new ArrayList<>();
+    private final AtomicInteger recoveries = new AtomicInteger();
+    private ProcessedManifest manifest;
+
+    @AfterEach
+    public void restoreConfig() {
+        System.clearProperty(ConfigLoader.CONFIG_FILE_PROPERTY);
+        ConfigLoader.reload();
+    }
+
+    @Test
+    public void testFilesArrivingWhileRunningAreBatched() throws Exception {
+        runDaemon();
+
+        assertThat(failures).isEmpty();
+        assertThat(powerBiStorage.listFiles()).hasSize(6);
+        assertThat(reportStorage.listFiles().size()).isGreaterThanOrEqualTo(2);
+        assertThat(tempStorage.listFiles()).isEmpty();
+    }
+
+    @Test
+    public void testOneAlertPerOutageAndOneOnRecovery() throws Exception {
+        AtomicInteger submits = new AtomicInteger();
+        SimulatedTranscriber transcriber = new SimulatedTranscriber(tempStorage, 500, 3, 42);
+        // The first two submits fail, like during an outage of the speech service
+        runDaemon(new Transcriber() {
+            @Override
+            public List<String> submitTranscriptions(List<StoredFile> sourceFiles) {
+                if (submits.incrementAndGet() <= 2) {
+                    throw new RuntimeException("Speech to Text is unavailable");
+                }
+                return transcriber.submitTranscriptions(sourceFiles);
+            }
+
+            @Override
+            public CompletableFuture<String> awaitTranscription(String transcriptionUrl) {
+                return transcriber.awaitTranscription(transcriptionUrl);
+            }
+        });
+
+        assertThat(failures).hasSize(1);
+        assertThat(recoveries.get()).isEqualTo(1);
+        assertThat(powerBiStorage.listFiles()).hasSize(6);
+    }
+
+    @Test
+    public void testFileThatCannotBeSubmittedIsGivenUp() throws Exception {
+        AtomicInteger submits = new AtomicInteger();
+        IngestionDaemon daemon = newDaemon(new Transcriber() {
+            @Override
+            public List<String> submitTranscriptions(List<StoredFile> sourceFiles) {
+                submits.incrementAndGet();
+                throw new RuntimeException("The audio file is rejected");
+            }
+
+            @Override
+            public CompletableFuture<String> awaitTranscription(String transcriptionUrl) {
+                return CompletableFuture.completedFuture(transcriptionUrl);
+            }
+        });
+        addAudioFiles(0, 1);
+        Thread thread = new Thread(daemon::run, "daemon-test");
+        thread.start();
+        try {
+            long deadline = System.currentTimeMillis() + 30_000;
+            while (!manifest.contains(audioSource.listFileDetails().get(0)) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+        } finally {
+            daemon.stop();
+            assertThat(daemon.awaitStop(Duration.ofSeconds(30))).isTrue();
+        }
+
+        assertThat(manifest.contains(audioSource.listFileDetails().get(0))).isTrue();
+        assertThat(submits.get()).isEqualTo(ConfigLoader.loadConfig().journal.maxAttemptsPerCall);
+        assertThat(failures).hasSize(1);
+        assertThat(recoveries.get()).isZero();
+    }
+
+    @Test
+    public void testNdjsonOutputIsWrittenByEveryBatch() throws Exception {
+        useConfig("(?m)^  format: \"json\"", "  format: \"ndjson\"");
+
+        runDaemon();
+
+        assertThat(failures).isEmpty();
+        long lines = 0;
+        for (String blobName : powerBiStorage.listFiles()) {
+            assertThat(blobName).endsWith(".ndjson");
+            lines += new String(powerBiStorage.get(blobName), StandardCharsets.UTF_8).lines().count();
+        }
+        assertThat(lines).isEqualTo(6);
+    }
+
+    /**
+     * Runs a daemon while 4 audio files arrive, and then 2 more, so the files are handled in at least two batches.
+     */
+    private void runDaemon() throws InterruptedException {
+        runDaemon(new SimulatedTranscriber(tempStorage, 500, 3, 42));
+    }
+
+    private void runDaemon(Transcriber transcriber) throws InterruptedException {
+        IngestionDaemon daemon = newDaemon(transcriber);
+        Thread thread = new Thread(daemon::run, "daemon-test");
+        thread.start();
+        try {
+            addAudioFiles(0, 4);
+            awaitEmpty();
+            addAudioFiles(4, 2);
+            awaitEmpty();
+        } finally {
+            daemon.stop();
+            assertThat(daemon.awaitStop(Duration.ofSeconds(30))).isTrue();
+        }
+    }
+
+    private IngestionDaemon newDaemon(Transcriber transcriber) {
+        Config config = ConfigLoader.loadConfig();
+        JobJournal journal = new JobJournal(stateDirectory.resolve("journal.log").toString(), config.journal.syncEveryRecords,
+                config.journal.syncIntervalMillis, config.journal.maxAttemptsPerCall);
+        manifest = new ProcessedManifest(stateDirectory.resolve("processed-manifest.tsv").toString());
+        TranscriptionPipeline pipeline = new TranscriptionPipeline(transcriber,
+                tempStorage, reportStorage, powerBiStorage, audioSource,
+                new OpenAIAnalyzer("simulator", "https://openai.simulator.local", config.openAI.model, new SimulatedOpenAIHttpClient(5, 0, 0, 42),
+                        new AnalysisCache(true, stateDirectory.resolve("analysis-cache").toString(), 10)),
+                null, journal, manifest, pathToTemp(), pathToTemp() + "analyzed" + File.separator);
+
+        Config.Daemon settings = new Config.Daemon();
+        settings.enabled = true;
+        settings.pollSeconds = 1;
+        settings.batchMaxFiles = 3;
+        settings.batchMaxWaitSeconds = 1;
+        settings.maxBackoffSeconds = 4;
+        return new IngestionDaemon(settings, audioSource, tempStorage, pipeline, journal, manifest, failures::add, recoveries::incrementAndGet);
+    }
+
+    private void addAudioFiles(int first, int count) {
+        for (int i = first; i < first + count; i++) {
+            audioSource.put(SyntheticCalls.audioFileName(i), new byte[44]);
+        }
+    }
+
+    private void awaitEmpty() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (!audioSource.listFiles().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat(audioSource.listFiles()).isEmpty();
+    }
+
+    private String pathToTemp() {
+        // Not utils.pathToTemp, the pipeline deletes its temp directory and that one belongs to the application
+        return stateDirectory.resolve("temp") + File.separator;
+    }
+
+    private void useConfig(String regex, String replacement) throws IOException {
+        String bundled;
+        try (InputStream in = ConfigLoader.class.getClassLoader().getResourceAsStream("config.yaml")) {
+            bundled = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        Path file = stateDirectory.resolve("config.yaml");
+        Files.writeString(file, bundled.replaceAll(regex, replacement));
+        System.setProperty(ConfigLoader.CONFIG_FILE_PROPERTY, file.toString());
+        ConfigLoader.reload();
+    }
+}
@@ -0,0 +1,54 @@
+package se.herrljunga.astta;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import se.herrljunga.astta.pipeline.JobJournal;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class JobJournalTest {
+    @TempDir
+    Path stateDirectory;
+
+    @Test
+    public void testUnfinishedRunIsResumed() {
+        String path = stateDirectory.resolve("journal.log").toString();
+        JobJournal journal = new JobJournal(path, 100, 1000, 2);
+        journal.start(List.of("https://speech/transcriptions/1", "https://speech/transcriptions/2"));
+        journal.recordTranscriptionDone("https://speech/transcriptions/2");
+        journal.record(JobJournal.Stage.TRANSCRIBED, "a.json");
+        journal.record(JobJournal.Stage.ANALYZED, "a.json");
+        journal.record(JobJournal.Stage.TRANSCRIBED, "b.json");
+        journal.recordFailure("b.json");
+        journal.close();
+
+        JobJournal resumed = new JobJournal(path, 100, 1000, 2);
+        assertThat(resumed.hasPendingWork()).isTrue();
+        assertThat(resumed.getTranscriptionUrls()).containsExactly("https://speech/transcriptions/1", "https://speech/transcriptions/2");
+        assertThat(resumed.isTranscriptionDone("https://speech/transcriptions/1")).isFalse();
+        assertThat(resumed.isTranscriptionDone("https://speech/transcriptions/2")).isTrue();
+        assertThat(resumed.hasReached("a.json", JobJournal.Stage.DOWNLOADED)).isTrue();
+        assertThat(resumed.hasReached("a.json", JobJournal.Stage.UPLOADED)).isFalse();
+        assertThat(resumed.isGivenUp("b.json")).isFalse();
+
+        resumed.resume();
+        resumed.recordFailure("b.json");
+        assertThat(resumed.isGivenUp("b.json")).isTrue();
+        resumed.complete();
+        assertThat(resumed.hasPendingWork()).isFalse();
+        assertThat(Files.exists(Path.of(path))).isFalse();
+    }
+
+    @Test
+    public void testCutOffLastLineIsIgnored() throws Exception {
+        Path path = stateDirectory.resolve("journal.log");
+        Files.writeString(path, "SUBMITTED\thttps://speech/transcriptions/2\nUPLOADED\ta.json\nSOURCE_DEL");
+        JobJournal journal = new JobJournal(path.toString(), 100, 1000, 2);
+        assertThat(journal.hasReached("a.json", JobJournal.Stage.UPLOADED)).isTrue();
+        assertThat(journal.hasReached("a.json", JobJournal.Stage.SOURCE_DELETED)).isFalse();
+    }
+}
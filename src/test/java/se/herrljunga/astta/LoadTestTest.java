@@ -0,0 +1,36 @@
+package se.herrljunga.astta;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import se.herrljunga.astta.simulator.LoadTest;
+import se.herrljunga.astta.utils.Config;
+
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LoadTestTest {
+    @TempDir
+    Path stateDirectory;
+
+    @Test
+    public void testPipelineRunsOnSimulatedServices() {
+        Config.Simulator settings = new Config.Simulator();
+        settings.phrasesPerCall = 3;
+        settings.transcribedCallsPerSecond = 500;
+        settings.blobLatencyMillis = 0;
+        settings.openAILatencyMillis = 5;
+        settings.openAIThrottleRate = 0.05;
+        settings.openAIMalformedRate = 0.1;
+        settings.seed = 42;
+
+        LoadTest loadTest = new LoadTest(settings, 20, stateDirectory);
+        String report = loadTest.run();
+
+        int left = loadTest.getAudioSource().listFiles().size();
+        assertThat(report).contains("Load test: 20 calls").contains("stage_analyze_millis");
+        assertThat(left).isLessThan(20);
+        assertThat(loadTest.getPowerBiStorage().listFiles()).hasSize(20 - left);
+        assertThat(loadTest.getReportStorage().listFiles()).hasSize(1);
+    }
+}
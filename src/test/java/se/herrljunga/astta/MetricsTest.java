@@ -0,0 +1,60 @@
+package se.herrljunga.astta;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import se.herrljunga.astta.metrics.Histogram;
+import se.herrljunga.astta.metrics.Metrics;
+import se.herrljunga.astta.metrics.MetricsExporter;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MetricsTest {
+    @Test
+    public void testPercentilesAreEstimatedFromTheBuckets() {
+        Histogram histogram = new Histogram(new long[]{10, 100, 1000});
+        for (int i = 0; i < 90; i++) {
+            histogram.record(5);
+        }
+        for (int i = 0; i < 9; i++) {
+            histogram.record(50);
+        }
+        histogram.record(5000);
+
+        assertThat(histogram.getCount()).isEqualTo(100);
+        assertThat(histogram.getPercentile(50)).isEqualTo(10);
+        assertThat(histogram.getPercentile(95)).isEqualTo(100);
+        assertThat(histogram.getPercentile(100)).isEqualTo(5000);
+    }
+
+    @Test
+    public void testPrometheusFormat() {
+        Metrics.add("test_prometheus_bytes", 42);
+        Metrics.record("test_prometheus_millis", 3);
+        Metrics.record("test_prometheus_millis", 700);
+
+        String prometheus = Metrics.toPrometheus();
+
+        assertThat(prometheus).contains("# TYPE astta_test_prometheus_bytes_total counter\nastta_test_prometheus_bytes_total 42\n");
+        assertThat(prometheus).contains("# TYPE astta_test_prometheus_millis histogram\n");
+        assertThat(prometheus).contains("astta_test_prometheus_millis_bucket{le=\"1\"} 0\n");
+        assertThat(prometheus).contains("astta_test_prometheus_millis_bucket{le=\"5\"} 1\n");
+        assertThat(prometheus).contains("astta_test_prometheus_millis_bucket{le=\"1000\"} 2\n");
+        assertThat(prometheus).contains("astta_test_prometheus_millis_bucket{le=\"+Inf\"} 2\n");
+        assertThat(prometheus).contains("astta_test_prometheus_millis_sum 703\nastta_test_prometheus_millis_count 2\n");
+        assertThat(Metrics.summary()).contains("test_prometheus_millis count=2 avg=351 p50=5 p95=700 p99=700 max=700");
+    }
+
+    @Test
+    public void testExporterWritesFileOnClose(@TempDir Path directory) throws IOException {
+        Path file = directory.resolve("metrics/astta.prom");
+        Metrics.increment("test_exporter_calls");
+
+        new MetricsExporter(file.toString(), 0, 60).close();
+
+        assertThat(Files.readString(file)).contains("astta_test_exporter_calls_total 1");
+    }
+}
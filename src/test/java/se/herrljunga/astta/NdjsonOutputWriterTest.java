@@ -0,0 +1,63 @@
+package se.herrljunga.astta;
+
+import org.junit.jupiter.api.Test;
+import se.herrljunga.astta.filehandler.NdjsonOutputWriter;
+import se.herrljunga.astta.filehandler.StorageHandler;
+import se.herrljunga.astta.utils.AnalyzedCall;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NdjsonOutputWriterTest {
+    private final Map<String, StringBuilder> blobs = new ConcurrentHashMap<>();
+    private final AtomicInteger appends = new AtomicInteger();
+
+    // Only appendToStorage is used by the writer
+    private final StorageHandler storage = (StorageHandler) Proxy.newProxyInstance(StorageHandler.class.getClassLoader(),
+            new Class<?>[]{StorageHandler.class}, (proxy, method, args) -> {
+                if (!method.getName().equals("appendToStorage")) {
+                    throw new UnsupportedOperationException(method.getName());
+                }
+                appends.incrementAndGet();
+                blobs.computeIfAbsent((String) args[0], name -> new StringBuilder())
+                        .append(new String((byte[]) args[1], StandardCharsets.UTF_8));
+                return null;
+            });
+
+    @Test
+    public void testCallsAreAppendedAsLinesPartitionedByDepartment() throws Exception {
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        try (NdjsonOutputWriter writer = new NdjsonOutputWriter(storage, "calls/", true, 1024 * 1024, 50)) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 40; i++) {
+                String department = i % 2 == 0 ? "Bygg och miljö" : "IT/Support";
+                AnalyzedCall call = new AnalyzedCall("temp/analyzed/call" + i + ".json",
+                        "{\n  \"Summary\": \"call " + i + "\",\n  \"Department\": {\"Department\": \"" + department + "\", \"Confidence\": \"90\"}\n}");
+                futures.add(executorService.submit(() -> writer.write(call)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executorService.shutdown();
+        }
+
+        String day = LocalDate.now().toString();
+        assertThat(blobs).containsOnlyKeys("calls/" + day + "/bygg-och-miljö.ndjson", "calls/" + day + "/it-support.ndjson");
+        String[] lines = blobs.get("calls/" + day + "/bygg-och-miljö.ndjson").toString().split("\n");
+        assertThat(lines).hasSize(20).allSatisfy(line -> assertThat(line).startsWith("{\"Summary\":\"call ").contains("\"Call\":\"call"));
+        // Lines written at the same time share an append
+        assertThat(appends.get()).isLessThan(40);
+    }
+}
@@ -0,0 +1,85 @@
+package se.herrljunga.astta;
+
+import org.junit.jupiter.api.Test;
+import se.herrljunga.astta.pipeline.PipelineStage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PipelineStageTest {
+    @Test
+    public void testResizeChangesConcurrency() throws InterruptedException {
+        BlockingQueue<Integer> input = new LinkedBlockingQueue<>();
+        BlockingQueue<Integer> output = new LinkedBlockingQueue<>();
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        PipelineStage<Integer, Integer> stage = new PipelineStage<>("test", 1, input, output, item -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            running.decrementAndGet();
+            return item;
+        }, String::valueOf);
+        for (int i = 0; i < 10; i++) {
+            input.add(i);
+        }
+
+        stage.start();
+        stage.resize(4);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (running.get() < 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(running.get()).isEqualTo(4);
+
+        stage.resize(1);
+        release.countDown();
+        stage.closeInput();
+        stage.awaitCompletion();
+        assertThat(output).hasSize(10);
+        assertThat(maxRunning.get()).isEqualTo(4);
+    }
+
+    @Test
+    public void testBatchStageGivesTheTaskFullBatchesAndRecordsFailures() throws InterruptedException {
+        BlockingQueue<Integer> input = new LinkedBlockingQueue<>();
+        BlockingQueue<Integer> output = new LinkedBlockingQueue<>();
+        List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        PipelineStage<Integer, Integer> stage = new PipelineStage<>("test", 1, 4, null, input, output, items -> {
+            batchSizes.add(items.size());
+            List<Integer> results = new ArrayList<>();
+            List<Exception> failures = new ArrayList<>();
+            for (Integer item : items) {
+                if (item % 5 == 0) {
+                    failures.add(new RuntimeException("failed " + item));
+                } else {
+                    results.add(item);
+                }
+            }
+            return new PipelineStage.BatchResult<>(results, failures);
+        }, String::valueOf);
+        for (int i = 1; i <= 10; i++) {
+            input.add(i);
+        }
+
+        stage.start();
+        stage.closeInput();
+        stage.awaitCompletion();
+
+        assertThat(batchSizes).containsExactly(4, 4, 2);
+        assertThat(output).containsExactly(1, 2, 3, 4, 6, 7, 8, 9);
+        assertThat(stage.getFailures()).hasSize(2);
+    }
+}
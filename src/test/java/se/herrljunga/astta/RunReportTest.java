@@ -0,0 +1,45 @@
+package se.herrljunga.astta;
+
+import org.junit.jupiter.api.Test;
+import se.herrljunga.astta.analyze.AnalyzeResult;
+import se.herrljunga.astta.analyze.CallOutcome;
+import se.herrljunga.astta.analyze.RunReport;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RunReportTest {
+    @Test
+    public void testOutcomesAreCounted() {
+        RunReport report = new RunReport();
+        report.add(CallOutcome.succeeded("a.json", new AnalyzeResult("{}", 100, false, 1), 10));
+        report.add(CallOutcome.succeeded("b.json", new AnalyzeResult("{}", 200, false, 3), 30));
+        report.add(CallOutcome.succeeded("c.json", new AnalyzeResult("{}", 300, true), 1));
+        report.add(CallOutcome.failed("d.json", 20, new RuntimeException("Couldn't create valid JSON file after 3 tries.")));
+
+        assertThat(report.count(CallOutcome.Status.SUCCEEDED)).isEqualTo(1);
+        assertThat(report.count(CallOutcome.Status.RETRIED)).isEqualTo(1);
+        assertThat(report.count(CallOutcome.Status.CACHED)).isEqualTo(1);
+        assertThat(report.count(CallOutcome.Status.FAILED)).isEqualTo(1);
+        assertThat(report.summary())
+                .contains("Tokens used: 300")
+                .contains("Latency ms, median: 10, max: 30")
+                .contains("Failed d.json: Couldn't create valid JSON file after 3 tries.");
+    }
+
+    @Test
+    public void testNoOutcomeIsLostUnderConcurrentAdds() throws Exception {
+        RunReport report = new RunReport();
+        ExecutorService executorService = Executors.newFixedThreadPool(20);
+        for (int i = 0; i < 10_000; i++) {
+            String call = i + ".json";
+            executorService.submit(() -> report.add(CallOutcome.succeeded(call, new AnalyzeResult("{}", 1, false), 1)));
+        }
+        executorService.shutdown();
+        assertThat(executorService.awaitTermination(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(report.getOutcomes()).hasSize(10_000);
+    }
+}
@@ -0,0 +1,33 @@
+package se.herrljunga.astta;
+
+import org.junit.jupiter.api.Test;
+import se.herrljunga.astta.keyvault.SecretRefresher;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SecretRefresherTest {
+    @Test
+    public void testListenerIsCalledOnceWhenTheSecretChanges() throws InterruptedException {
+        AtomicReference<String> sasToken = new AtomicReference<>("sv=1");
+        List<String> updates = new CopyOnWriteArrayList<>();
+        try (SecretRefresher refresher = new SecretRefresher(Duration.ofMillis(10), name -> sasToken.get())) {
+            refresher.watch("sastoken", updates::add);
+            Thread.sleep(100);
+            assertThat(updates).isEmpty();
+
+            sasToken.set("sv=2");
+            long deadline = System.currentTimeMillis() + 5_000;
+            while (updates.isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(100);
+        }
+
+        assertThat(updates).containsExactly("sv=2");
+    }
+}
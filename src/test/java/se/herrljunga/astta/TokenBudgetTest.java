@@ -0,0 +1,99 @@
+package se.herrljunga.astta;
+
+import org.junit.jupiter.api.Test;
+import se.herrljunga.astta.analyze.TokenBudget;
+import se.herrljunga.astta.analyze.TokenEstimator;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+public class TokenBudgetTest {
+    @Test
+    public void testRequestOverTheRunBudgetIsRejected() throws InterruptedException {
+        TokenBudget budget = new TokenBudget(1000, 0);
+
+        budget.settle(budget.acquire(600), 300);
+        budget.acquire(600);
+
+        assertThat(budget.getUsedTokens()).isEqualTo(900);
+        assertThatThrownBy(() -> budget.acquire(200)).isInstanceOf(RuntimeException.class).hasMessageContaining("budget");
+    }
+
+    @Test
+    public void testFailedRequestGivesBackItsTokens() throws InterruptedException {
+        TokenBudget budget = new TokenBudget(1000, 1000);
+
+        budget.settle(budget.acquire(800), 0);
+        budget.acquire(900);
+
+        assertThat(budget.getUsedTokens()).isEqualTo(900);
+    }
+
+    @Test
+    public void testCorrectionLeavesTheMinuteWithItsRequest() throws InterruptedException {
+        AtomicLong now = new AtomicLong();
+        TokenBudget budget = new TokenBudget(0, 1000, 0, now::get);
+
+        TokenBudget.Reservation early = budget.acquire(800);
+        now.addAndGet(61_000);
+        // The request has left the minute, its correction must not give the current minute 700 extra tokens
+        budget.settle(early, 100);
+        budget.acquire(1000);
+
+        Thread waiting = new Thread(() -> {
+            try {
+                budget.acquire(500);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiting.start();
+        waiting.join(200);
+        assertThat(waiting.isAlive()).isTrue();
+
+        budget.setLimits(0, 0, 0);
+        waiting.join(1000);
+        assertThat(waiting.isAlive()).isFalse();
+    }
+
+    @Test
+    public void testSettleWithinTheMinuteFreesTheTokens() throws InterruptedException {
+        AtomicLong now = new AtomicLong();
+        TokenBudget budget = new TokenBudget(0, 1000, 0, now::get);
+
+        budget.settle(budget.acquire(900), 100);
+        now.addAndGet(1_000);
+        // 100 + 900 fits, so this does not wait although the first request was estimated at 900
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> budget.acquire(900));
+
+        assertThat(budget.getUsedTokens()).isEqualTo(1000);
+    }
+
+    @Test
+    public void testRunBudgetStartsOverAfterTheWindow() throws InterruptedException {
+        AtomicLong now = new AtomicLong();
+        TokenBudget budget = new TokenBudget(1000, 0, 60_000, now::get);
+
+        TokenBudget.Reservation late = budget.acquire(900);
+        assertThatThrownBy(() -> budget.acquire(200)).isInstanceOf(RuntimeException.class).hasMessageContaining("budget");
+        now.addAndGet(60_000);
+        budget.acquire(600);
+        // A request from the last window is not settled against the new one
+        budget.settle(late, 100);
+
+        assertThat(budget.getUsedTokens()).isEqualTo(600);
+    }
+
+    @Test
+    public void testEstimateIncludesPromptTextAndAnswer() {
+        TokenEstimator estimator = new TokenEstimator("gpt-4", 500);
+
+        assertThat(estimator.countTokens("hello world")).isEqualTo(2);
+        assertThat(estimator.estimateRequest("hello", "world")).isEqualTo(2 + estimator.getOverheadTokens());
+        assertThat(estimator.getOverheadTokens()).isGreaterThan(500);
+    }
+}
@@ -0,0 +1,40 @@
+package se.herrljunga.astta;
+
+import org.junit.jupiter.api.Test;
+import se.herrljunga.astta.analyze.TranscriptChunker;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TranscriptChunkerTest {
+    @Test
+    public void testShortTextIsOneChunk() {
+        assertThat(TranscriptChunker.split("Hej. Hur kan jag hjälpa dig?", 100)).containsExactly("Hej. Hur kan jag hjälpa dig?");
+    }
+
+    @Test
+    public void testLongTextIsSplitBetweenSentences() {
+        String sentence = "Jag kan inte logga in på datorn.";
+        String text = (sentence + " ").repeat(20).strip();
+
+        List<String> chunks = TranscriptChunker.split(text, 20);
+
+        assertThat(chunks).hasSizeGreaterThan(1);
+        assertThat(chunks).allSatisfy(chunk -> {
+            assertThat(chunk.length()).isLessThanOrEqualTo(80);
+            assertThat(chunk).startsWith("Jag").endsWith(".");
+        });
+        assertThat(String.join(" ", chunks)).isEqualTo(text);
+    }
+
+    @Test
+    public void testSentenceLongerThanAChunkIsSplitBetweenWords() {
+        String text = "ord ".repeat(100).strip();
+
+        List<String> chunks = TranscriptChunker.split(text, 10);
+
+        assertThat(chunks).allSatisfy(chunk -> assertThat(chunk.length()).isLessThanOrEqualTo(40));
+        assertThat(String.join(" ", chunks)).isEqualTo(text);
+    }
+}
@@ -0,0 +1,42 @@
+package se.herrljunga.astta;
+
+import org.junit.jupiter.api.Test;
+import se.herrljunga.astta.speechtotext.TranscriptParser;
+import se.herrljunga.astta.utils.TranscribedCallInformation;
+
+import java.io.StringReader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class TranscriptParserTest {
+    private static final String TRANSCRIPT = """
+            {
+              "source": "https://storage/wavfiles/call.wav",
+              "timestamp": "2024-03-01T10:00:00Z",
+              "durationInTicks": 1230000000,
+              "duration": "PT2M3S",
+              "combinedRecognizedPhrases": [
+                {"channel": 0, "lexical": "hej", "itn": "hej", "maskedITN": "hej", "display": "Hej."},
+                {"channel": 1, "lexical": "hej hej", "itn": "hej hej", "maskedITN": "hej hej", "display": "Hej, hej."}
+              ],
+              "recognizedPhrases": [
+                {"channel": 0, "offset": "PT0S", "nBest": [{"confidence": 0.9, "display": "Hej.", "words": [{"word": "hej"}]}]}
+              ]
+            }
+            """;
+
+    @Test
+    public void testDurationAndLastDisplayAreExtracted() throws Exception {
+        TranscribedCallInformation call = TranscriptParser.parse(new StringReader(TRANSCRIPT), "temp/call.json");
+        assertThat(call.getTranscribedText()).isEqualTo("Hej, hej.");
+        assertThat(call.getCallDuration()).isEqualTo("PT2M3S");
+        assertThat(call.getPath()).isEqualTo("temp/call.json");
+    }
+
+    @Test
+    public void testMalformedTranscriptThrows() {
+        assertThatThrownBy(() -> TranscriptParser.parse(new StringReader("{\"duration\": [1, 2"), "temp/call.json"))
+                .isInstanceOf(RuntimeException.class);
+    }
+}
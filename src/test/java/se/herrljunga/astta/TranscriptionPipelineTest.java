@@ -0,0 +1,152 @@
+package se.herrljunga.astta;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import se.herrljunga.astta.analyze.AnalysisCache;
+import se.herrljunga.astta.analyze.CallOutcome;
+import se.herrljunga.astta.analyze.OpenAIAnalyzer;
+import se.herrljunga.astta.filehandler.StoredFile;
+import se.herrljunga.astta.pipeline.JobJournal;
+import se.herrljunga.astta.pipeline.TranscriptionPipeline;
+import se.herrljunga.astta.simulator.InMemoryStorageHandler;
+import se.herrljunga.astta.simulator.SimulatedOpenAIHttpClient;
+import se.herrljunga.astta.simulator.SimulatedTranscriber;
+import se.herrljunga.astta.simulator.SyntheticCalls;
+import se.herrljunga.astta.speechtotext.ProcessedManifest;
+import se.herrljunga.astta.speechtotext.TranscriptParser;
+import se.herrljunga.astta.utils.Config;
+import se.herrljunga.astta.utils.ConfigLoader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class TranscriptionPipelineTest {
+    @TempDir
+    Path stateDirectory;
+
+    @AfterEach
+    public void restoreConfig() {
+        System.clearProperty(ConfigLoader.CONFIG_FILE_PROPERTY);
+        ConfigLoader.reload();
+    }
+
+    @Test
+    public void testCallsOverTheTokenBudgetAreLeftForTheNextRun() throws IOException {
+        Config config = ConfigLoader.loadConfig();
+        InMemoryStorageHandler audioSource = new InMemoryStorageHandler(0);
+        InMemoryStorageHandler tempStorage = new InMemoryStorageHandler(0);
+        InMemoryStorageHandler powerBiStorage = new InMemoryStorageHandler(0);
+        JobJournal journal = new JobJournal(stateDirectory.resolve("journal.log").toString(), config.journal.syncEveryRecords,
+                config.journal.syncIntervalMillis, config.journal.maxAttemptsPerCall);
+        ProcessedManifest manifest = new ProcessedManifest(stateDirectory.resolve("processed-manifest.tsv").toString());
+        OpenAIAnalyzer analyzer = new OpenAIAnalyzer("simulator", "https://openai.simulator.local", config.openAI.model, new SimulatedOpenAIHttpClient(5, 0, 0, 42),
+                new AnalysisCache(true, stateDirectory.resolve("analysis-cache").toString(), 10));
+        TranscriptionPipeline pipeline = new TranscriptionPipeline(new SimulatedTranscriber(tempStorage, 500, 3, 42),
+                tempStorage, new InMemoryStorageHandler(0), powerBiStorage, audioSource, analyzer, null, journal, manifest, pathToTemp(), pathToTemp() + "analyzed" + File.separator);
+        analyzer.applyConfig(useConfig("(?m)^  tokenBudgetPerRun: \\d+", "  tokenBudgetPerRun: 1"));
+        for (int i = 0; i < 2; i++) {
+            audioSource.put(SyntheticCalls.audioFileName(i), new byte[44]);
+        }
+
+        assertThat(pipeline.run()).isEmpty();
+
+        assertThat(pipeline.getRunReport().count(CallOutcome.Status.SKIPPED)).isEqualTo(2);
+        assertThat(pipeline.getRunReport().count(CallOutcome.Status.FAILED)).isZero();
+        assertThat(powerBiStorage.listFiles()).isEmpty();
+        assertThat(audioSource.listFileDetails()).hasSize(2).noneMatch(manifest::contains);
+        assertThat(journal.hasPendingWork()).isFalse();
+    }
+
+    @Test
+    public void testConsecutiveRunsShareTheTokenBudget() throws IOException {
+        Config config = ConfigLoader.loadConfig();
+        InMemoryStorageHandler audioSource = new InMemoryStorageHandler(0);
+        InMemoryStorageHandler tempStorage = new InMemoryStorageHandler(0);
+        JobJournal journal = new JobJournal(stateDirectory.resolve("journal.log").toString(), config.journal.syncEveryRecords,
+                config.journal.syncIntervalMillis, config.journal.maxAttemptsPerCall);
+        OpenAIAnalyzer analyzer = new OpenAIAnalyzer("simulator", "https://openai.simulator.local", config.openAI.model, new SimulatedOpenAIHttpClient(5, 0, 0, 42),
+                new AnalysisCache(false, stateDirectory.resolve("analysis-cache").toString(), 10));
+        TranscriptionPipeline pipeline = new TranscriptionPipeline(new SimulatedTranscriber(tempStorage, 500, 3, 42),
+                tempStorage, new InMemoryStorageHandler(0), new InMemoryStorageHandler(0), audioSource, analyzer,
+                null, journal, new ProcessedManifest(stateDirectory.resolve("processed-manifest.tsv").toString()),
+                pathToTemp(), pathToTemp() + "analyzed" + File.separator);
+        String first = SyntheticCalls.audioFileName(0);
+        String second = SyntheticCalls.audioFileName(1);
+        int secondEstimate = analyzer.estimateTokens(TranscriptParser.parse(new StringReader(SimulatedTranscriber.transcript(second, 3, 42)), second + ".json"));
+
+        audioSource.put(first, new byte[44]);
+        pipeline.run(audioSource.listFileDetails());
+        assertThat(pipeline.getRunReport().count(CallOutcome.Status.SUCCEEDED)).isEqualTo(1);
+        int firstTokens = pipeline.getRunReport().getOutcomes().get(0).tokensUsed();
+        // The second call fits in the budget on its own, but not after the tokens of the first run
+        analyzer.applyConfig(useConfig("(?m)^  tokenBudgetPerRun: \\d+", "  tokenBudgetPerRun: " + (firstTokens + secondEstimate - 1)));
+        // Emptied between runs like the IngestionDaemon does
+        tempStorage.deleteFromStorage(tempStorage.listFiles());
+
+        audioSource.put(second, new byte[44]);
+        assertThat(pipeline.run(audioSource.listFileDetails())).isEmpty();
+        assertThat(pipeline.getRunReport().count(CallOutcome.Status.SKIPPED)).isEqualTo(1);
+        assertThat(audioSource.listFiles()).containsExactly(second);
+    }
+
+    @Test
+    public void testFileWithoutTranscriptionIsGivenUpAfterMaxAttempts() {
+        Config config = ConfigLoader.loadConfig();
+        InMemoryStorageHandler audioSource = new InMemoryStorageHandler(0);
+        InMemoryStorageHandler tempStorage = new InMemoryStorageHandler(0);
+        InMemoryStorageHandler powerBiStorage = new InMemoryStorageHandler(0);
+        String failing = SyntheticCalls.audioFileName(1);
+        JobJournal journal = new JobJournal(stateDirectory.resolve("journal.log").toString(), config.journal.syncEveryRecords,
+                config.journal.syncIntervalMillis, config.journal.maxAttemptsPerCall);
+        String manifestPath = stateDirectory.resolve("processed-manifest.tsv").toString();
+        ProcessedManifest manifest = new ProcessedManifest(manifestPath);
+        TranscriptionPipeline pipeline = new TranscriptionPipeline(new SimulatedTranscriber(tempStorage, 500, 3, 42, Set.of(failing)),
+                tempStorage, new InMemoryStorageHandler(0), powerBiStorage, audioSource,
+                new OpenAIAnalyzer("simulator", "https://openai.simulator.local", config.openAI.model, new SimulatedOpenAIHttpClient(5, 0, 0, 42),
+                        new AnalysisCache(true, stateDirectory.resolve("analysis-cache").toString(), 10)),
+                null, journal, manifest, pathToTemp(), pathToTemp() + "analyzed" + File.separator);
+        for (int i = 0; i < 2; i++) {
+            audioSource.put(SyntheticCalls.audioFileName(i), new byte[44]);
+        }
+
+        for (int attempt = 1; attempt < config.journal.maxAttemptsPerCall; attempt++) {
+            assertThatThrownBy(pipeline::run).hasMessageContaining("no transcription of " + failing);
+            assertThat(audioSource.listFileDetails()).singleElement().matches(file -> !manifest.contains(file));
+        }
+        assertThatThrownBy(pipeline::run).hasMessageContaining("no transcription of " + failing);
+
+        assertThat(pipeline.getRunReport().count(CallOutcome.Status.FAILED)).isEqualTo(1);
+        assertThat(powerBiStorage.listFiles()).hasSize(1);
+        StoredFile givenUp = audioSource.listFileDetails().get(0);
+        assertThat(givenUp.name()).isEqualTo(failing);
+        assertThat(manifest.contains(givenUp)).isTrue();
+        assertThat(new ProcessedManifest(manifestPath).contains(givenUp)).isTrue();
+        assertThat(journal.hasPendingWork()).isFalse();
+    }
+
+    private String pathToTemp() {
+        // Not utils.pathToTemp, the pipeline deletes its temp directory and that one belongs to the application
+        return stateDirectory.resolve("temp") + File.separator;
+    }
+
+    private Config useConfig(String regex, String replacement) throws IOException {
+        String bundled;
+        try (InputStream in = ConfigLoader.class.getClassLoader().getResourceAsStream("config.yaml")) {
+            bundled = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        Path file = stateDirectory.resolve("config.yaml");
+        Files.writeString(file, bundled.replaceAll(regex, replacement));
+        System.setProperty(ConfigLoader.CONFIG_FILE_PROPERTY, file.toString());
+        return ConfigLoader.reload();
+    }
+}